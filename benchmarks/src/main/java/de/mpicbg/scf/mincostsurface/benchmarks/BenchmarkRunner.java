@@ -0,0 +1,47 @@
+package de.mpicbg.scf.mincostsurface.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+/**
+ *
+ * Run the benchmarks with the GC profiler (allocation rate per operation and GC time), once per thread count.
+ *
+ * The graph building, the outputs and the resampling use all the processors the JVM sees, so each thread count is
+ * run in forks limited to that number of processors (-XX:ActiveProcessorCount, Java 8u191 or later), with the
+ * threads parameter of the benchmarks set to the same count. The thread counts are given by the system property
+ * bench.threads (default "1,<number of processors>"). The other arguments are the usual JMH options, e.g.
+ *
+ *     java -Dbench.threads=1,4,8 -jar target/benchmarks.jar ProcessBenchmark -p size=256x256x64
+ *
+ * The results of a thread count are written to jmh-threads-<count>.json.
+ *
+ */
+public class BenchmarkRunner {
+
+
+	public static void main(final String... args) throws Exception
+	{
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		String threadCounts = System.getProperty("bench.threads", "1," + Runtime.getRuntime().availableProcessors());
+		for(String threads : threadCounts.split(","))
+		{
+			threads = threads.trim();
+			Options options = new OptionsBuilder()
+					.parent( commandLine )
+					.addProfiler( GCProfiler.class )
+					.jvmArgsAppend( "-XX:ActiveProcessorCount=" + threads )
+					.param( "threads", threads )
+					.resultFormat( ResultFormatType.JSON )
+					.result( "jmh-threads-" + threads + ".json" )
+					.build();
+			new Runner( options ).run();
+		}
+	}
+
+}
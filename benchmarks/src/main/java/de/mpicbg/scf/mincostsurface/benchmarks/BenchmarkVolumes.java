@@ -0,0 +1,102 @@
+package de.mpicbg.scf.mincostsurface.benchmarks;
+
+import java.util.Random;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+
+
+/**
+ *
+ * Synthetic inputs shared by the benchmarks.
+ *
+ * The cost volume has a low cost along a smooth surface z0(x, y) = Depth/2 + Depth/4 sin(2 pi x/Width) cos(2 pi y/Height),
+ * growing with the distance to it, plus uniform noise. The values are in [0, 255] whatever the pixel type, and the
+ * same seed gives the same volume, so that the solvers do the same work in each run.
+ *
+ */
+public class BenchmarkVolumes {
+
+
+	/**
+	 * @param size the dimensions of the volume, "width x height x depth", e.g. "256x256x64"
+	 */
+	public static long[] parseSize(String size)
+	{
+		String[] s = size.split("x");
+		return new long[] {Long.parseLong(s[0]), Long.parseLong(s[1]), Long.parseLong(s[2])};
+	}
+
+
+
+	/**
+	 * @param dims width, height and depth of the volume
+	 * @param pixelType "UnsignedByte", "UnsignedShort" or "Float"
+	 * @return the cost volume
+	 */
+	@SuppressWarnings({"rawtypes", "unchecked"})
+	public static Img cost(long[] dims, String pixelType)
+	{
+		Img img;
+		switch( pixelType )
+		{
+			case "UnsignedByte":
+				img = ArrayImgs.unsignedBytes(dims);
+				break;
+			case "UnsignedShort":
+				img = ArrayImgs.unsignedShorts(dims);
+				break;
+			case "Float":
+				img = ArrayImgs.floats(dims);
+				break;
+			default:
+				throw new IllegalArgumentException("unknown pixel type " + pixelType);
+		}
+
+		Random random = new Random(42);
+		double Width = dims[0], Height = dims[1], Depth = dims[2];
+		Cursor< ? extends RealType<?> > cursor = img.localizingCursor();
+		while( cursor.hasNext() )
+		{
+			cursor.fwd();
+			double x = cursor.getDoublePosition(0), y = cursor.getDoublePosition(1), z = cursor.getDoublePosition(2);
+			double z0 = Depth/2 + Depth/4 * Math.sin(2*Math.PI*x/Width) * Math.cos(2*Math.PI*y/Height);
+			double value = Math.min(255, 192*Math.abs(z-z0)/Depth*4 + 64*random.nextDouble());
+			cursor.get().setReal( Math.round(value) );
+		}
+		return img;
+	}
+
+
+
+	/**
+	 * @return the altitude map of the low cost surface of cost()
+	 */
+	public static Img<FloatType> surface(long[] dims)
+	{
+		Img<FloatType> map = ArrayImgs.floats(dims[0], dims[1]);
+		double Width = dims[0], Height = dims[1], Depth = dims[2];
+		Cursor<FloatType> cursor = map.localizingCursor();
+		while( cursor.hasNext() )
+		{
+			cursor.fwd();
+			double x = cursor.getDoublePosition(0), y = cursor.getDoublePosition(1);
+			cursor.get().setReal( Depth/2 + Depth/4 * Math.sin(2*Math.PI*x/Width) * Math.cos(2*Math.PI*y/Height) );
+		}
+		return map;
+	}
+
+
+
+	/**
+	 * @param threads the thread count of a benchmark, 0 for all the processors
+	 */
+	public static int threads(int threads)
+	{
+		return threads>0 ? threads : Runtime.getRuntime().availableProcessors();
+	}
+
+}
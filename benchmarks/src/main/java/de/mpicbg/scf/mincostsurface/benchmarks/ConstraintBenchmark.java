@@ -0,0 +1,85 @@
+package de.mpicbg.scf.mincostsurface.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import net.imglib2.img.Img;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.mpicbg.scf.mincostsurface.MinCostZSurface;
+
+
+/**
+ *
+ * The constraint builders of MinCostZSurface, on 2 surface graphs built before each call
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@SuppressWarnings({"rawtypes", "unchecked"})
+public class ConstraintBenchmark {
+
+
+	@Param({"128x128x32", "256x256x64"})
+	public String size;
+
+	@Param({"UnsignedByte", "Float"})
+	public String pixelType;
+
+	@Param({"1", "3"})
+	public int max_dz;
+
+	@Param({"0"}) // the edges are filled by all the processors, see BenchmarkRunner
+	public int threads;
+
+	private Img cost;
+	private MinCostZSurface detector;
+
+
+
+	@Setup(Level.Trial)
+	public void setupCost()
+	{
+		cost = BenchmarkVolumes.cost( BenchmarkVolumes.parseSize(size), pixelType );
+	}
+
+	@Setup(Level.Invocation)
+	public void setupGraphs()
+	{
+		detector = new MinCostZSurface();
+		detector.Create_Surface_Graph(cost, max_dz);
+		detector.Create_Surface_Graph(cost, max_dz);
+	}
+
+
+
+	@Benchmark
+	public MinCostZSurface noCrossingConstraint()
+	{
+		detector.Add_NoCrossing_Constraint_Between_Surfaces(1, 2, 2, 8);
+		return detector;
+	}
+
+	@Benchmark
+	public MinCostZSurface crossingConstraint()
+	{
+		detector.Add_Crossing_Constraint_Between_Surfaces(1, 2, 4, 4);
+		return detector;
+	}
+
+}
@@ -0,0 +1,81 @@
+package de.mpicbg.scf.mincostsurface.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.mpicbg.scf.mincostsurface.MaxFlowSolver;
+import de.mpicbg.scf.mincostsurface.MinCostZSurface;
+
+
+/**
+ *
+ * The outputs of a processed MinCostZSurface: get_Altitude_Map() and get_Surface_Mask()
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@SuppressWarnings({"rawtypes", "unchecked"})
+public class ExtractionBenchmark {
+
+
+	@Param({"128x128x32", "256x256x64"})
+	public String size;
+
+	@Param({"UnsignedByte", "Float"})
+	public String pixelType;
+
+	@Param({"1", "3"})
+	public int max_dz;
+
+	@Param({"0"}) // the outputs are computed by all the processors, see BenchmarkRunner
+	public int threads;
+
+	private MinCostZSurface detector;
+
+
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		Img cost = BenchmarkVolumes.cost( BenchmarkVolumes.parseSize(size), pixelType );
+		detector = new MinCostZSurface();
+		detector.setSolverType( MaxFlowSolver.Type.IMPLICIT_GRID );
+		detector.Create_Surface_Graph(cost, max_dz);
+		detector.Process();
+	}
+
+
+
+	@Benchmark
+	public Img<FloatType> altitudeMap()
+	{
+		return detector.get_Altitude_Map(1);
+	}
+
+	@Benchmark
+	public Img<ByteType> surfaceMask()
+	{
+		return detector.get_Surface_Mask(1);
+	}
+
+}
@@ -0,0 +1,75 @@
+package de.mpicbg.scf.mincostsurface.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import net.imglib2.img.Img;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.mpicbg.scf.mincostsurface.MaxFlowSolver;
+import de.mpicbg.scf.mincostsurface.MinCostZSurface;
+
+
+/**
+ *
+ * MinCostZSurface.Create_Surface_Graph(), with the edge arrays (GRAPH_CUT) or without them (IMPLICIT_GRID)
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@SuppressWarnings({"rawtypes", "unchecked"})
+public class GraphBuildBenchmark {
+
+
+	@Param({"128x128x32", "256x256x64"})
+	public String size;
+
+	@Param({"UnsignedByte", "UnsignedShort", "Float"})
+	public String pixelType;
+
+	@Param({"1", "3"})
+	public int max_dz;
+
+	@Param({"GRAPH_CUT", "IMPLICIT_GRID"})
+	public String solver;
+
+	@Param({"0"}) // the graph is filled by all the processors, see BenchmarkRunner
+	public int threads;
+
+	private Img cost;
+
+
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		cost = BenchmarkVolumes.cost( BenchmarkVolumes.parseSize(size), pixelType );
+	}
+
+
+
+	@Benchmark
+	public MinCostZSurface createSurfaceGraph()
+	{
+		MinCostZSurface detector = new MinCostZSurface();
+		detector.setSolverType( MaxFlowSolver.Type.valueOf(solver) );
+		detector.Create_Surface_Graph(cost, max_dz);
+		return detector;
+	}
+
+}
@@ -0,0 +1,96 @@
+package de.mpicbg.scf.mincostsurface.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import net.imglib2.img.Img;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.mpicbg.scf.mincostsurface.DualDecompositionMaxFlow;
+import de.mpicbg.scf.mincostsurface.MaxFlowSolver;
+import de.mpicbg.scf.mincostsurface.MinCostZSurface;
+import de.mpicbg.scf.mincostsurface.ParallelPushRelabelMaxFlow;
+
+
+/**
+ *
+ * MinCostZSurface.Process() with each solver, on a single surface graph built before each call
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@SuppressWarnings({"rawtypes", "unchecked"})
+public class ProcessBenchmark {
+
+
+	@Param({"128x128x32", "256x256x64"})
+	public String size;
+
+	@Param({"UnsignedByte", "Float"})
+	public String pixelType;
+
+	@Param({"1", "3"})
+	public int max_dz;
+
+	@Param({"GRAPH_CUT", "IMPLICIT_GRID", "DUAL_DECOMPOSITION", "PARALLEL_PUSH_RELABEL"})
+	public String solver;
+
+	@Param({"0"}) // threads of DUAL_DECOMPOSITION and PARALLEL_PUSH_RELABEL, 0 for all the processors
+	public int threads;
+
+	private Img cost;
+	private MinCostZSurface detector;
+
+
+
+	@Setup(Level.Trial)
+	public void setupCost()
+	{
+		cost = BenchmarkVolumes.cost( BenchmarkVolumes.parseSize(size), pixelType );
+	}
+
+	@Setup(Level.Invocation)
+	public void setupGraph()
+	{
+		detector = new MinCostZSurface();
+		detector.setSolverType( MaxFlowSolver.Type.valueOf(solver) );
+		detector.Create_Surface_Graph(cost, max_dz);
+	}
+
+
+
+	@Benchmark
+	public float process()
+	{
+		MaxFlowSolver maxFlowSolver;
+		switch( MaxFlowSolver.Type.valueOf(solver) )
+		{
+			case DUAL_DECOMPOSITION:
+				maxFlowSolver = new DualDecompositionMaxFlow( BenchmarkVolumes.threads(threads), 100 );
+				break;
+			case PARALLEL_PUSH_RELABEL:
+				maxFlowSolver = new ParallelPushRelabelMaxFlow( BenchmarkVolumes.threads(threads) );
+				break;
+			default:
+				maxFlowSolver = MaxFlowSolver.Type.valueOf(solver).create();
+		}
+		detector.Process( maxFlowSolver );
+		return detector.getMaxFlow();
+	}
+
+}
@@ -0,0 +1,82 @@
+package de.mpicbg.scf.mincostsurface.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.mpicbg.scf.mincostsurface.img_utils;
+
+
+/**
+ *
+ * img_utils.downsample() of the cost volume, and img_utils.upsample() of an altitude map back to the volume width and height
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@SuppressWarnings({"rawtypes", "unchecked"})
+public class ResampleBenchmark {
+
+
+	@Param({"256x256x64", "512x512x128"})
+	public String size;
+
+	@Param({"UnsignedByte", "UnsignedShort", "Float"})
+	public String pixelType;
+
+	@Param({"0.5", "0.25"})
+	public float ratio;
+
+	@Param({"Gaussian", "Area"})
+	public String downsampling;
+
+	@Param({"0"}) // the resampling uses all the processors, see BenchmarkRunner
+	public int threads;
+
+	private long[] dims;
+	private Img cost;
+	private Img<FloatType> map;
+
+
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		dims = BenchmarkVolumes.parseSize(size);
+		cost = BenchmarkVolumes.cost( dims, pixelType );
+		map = img_utils.downsample( BenchmarkVolumes.surface(dims), new float[] {ratio, ratio} );
+	}
+
+
+
+	@Benchmark
+	public Img downsample()
+	{
+		return img_utils.downsample( cost, new float[] {ratio, ratio, ratio}, img_utils.Downsampling.valueOf(downsampling) );
+	}
+
+	@Benchmark
+	public Img<FloatType> upsample()
+	{
+		return img_utils.upsample( map, new long[] {dims[0], dims[1]}, img_utils.Interpolator.Linear, 1/ratio, 0 );
+	}
+
+}
@@ -0,0 +1,90 @@
+package de.mpicbg.scf.mincostsurface.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.mpicbg.scf.mincostsurface.img_utils;
+
+
+/**
+ *
+ * The reslicing of the volume along an altitude map: img_utils.ZSurface_reslice(), ZSurface_resliceTiles() and
+ * ZSurface_resliceCached(), whose excerpt is read entirely so that all its cells are computed
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@SuppressWarnings({"rawtypes", "unchecked"})
+public class ResliceBenchmark {
+
+
+	@Param({"256x256x64", "512x512x128"})
+	public String size;
+
+	@Param({"UnsignedByte", "UnsignedShort", "Float"})
+	public String pixelType;
+
+	@Param({"10"})
+	public int halfHeight;
+
+	@Param({"0"}) // parallelism of ZSurface_resliceTiles, 0 for all the processors
+	public int threads;
+
+	private Img cost;
+	private Img<FloatType> map;
+
+
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		long[] dims = BenchmarkVolumes.parseSize(size);
+		cost = BenchmarkVolumes.cost( dims, pixelType );
+		map = BenchmarkVolumes.surface( dims );
+	}
+
+
+
+	@Benchmark
+	public Img reslice()
+	{
+		return img_utils.ZSurface_reslice( cost, map, halfHeight, halfHeight );
+	}
+
+	@Benchmark
+	public Img resliceTiles()
+	{
+		return img_utils.ZSurface_resliceTiles( cost, map, halfHeight, halfHeight, BenchmarkVolumes.threads(threads) );
+	}
+
+	@Benchmark
+	public double resliceCached()
+	{
+		Img excerpt = img_utils.ZSurface_resliceCached( cost, map, halfHeight, halfHeight );
+		double sum = 0;
+		for( Object value : excerpt )
+			sum += ((RealType<?>)value).getRealDouble();
+		return sum;
+	}
+
+}
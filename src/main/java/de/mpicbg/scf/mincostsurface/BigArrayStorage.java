@@ -0,0 +1,197 @@
+package de.mpicbg.scf.mincostsurface;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+
+/**
+ *
+ * Where the BigFloatArray and BigIntArray of the graphs and of the solvers are allocated.
+ *
+ * HEAP stores them in Java arrays (ChunkedFloatArray, ChunkedIntArray). The off-heap storages keep them out of the
+ * Java heap, in chunks of direct ByteBuffers (direct()) or of files mapped in memory (mapped()), so that the heap size
+ * does not limit the graph size and the garbage collector does not scan them. Mapped files are created in a scratch
+ * directory and deleted as soon as they are mapped (the space is released when the arrays are garbage collected),
+ * the operating system can then page them out to the disk. Off-heap memory is only released when the arrays are
+ * garbage collected.
+ *
+ */
+public class BigArrayStorage {
+
+
+	public static final BigArrayStorage HEAP = new BigArrayStorage(false, null);
+
+	static final int CHUNK_BITS = ChunkedFloatArray.CHUNK_BITS;
+	static final long CHUNK_MASK = ChunkedFloatArray.CHUNK_MASK;
+
+	private final boolean offHeap;
+	private final File scratchDirectory;
+
+
+
+	private BigArrayStorage(boolean offHeap, File scratchDirectory)
+	{
+		this.offHeap = offHeap;
+		this.scratchDirectory = scratchDirectory;
+	}
+
+
+
+	/**
+	 * @return a storage in direct ByteBuffers
+	 */
+	public static BigArrayStorage direct()
+	{
+		return new BigArrayStorage(true, null);
+	}
+
+	/**
+	 * @param scratchDirectory the directory of the mapped files
+	 * @return a storage in files mapped in memory
+	 */
+	public static BigArrayStorage mapped(File scratchDirectory)
+	{
+		return new BigArrayStorage(true, scratchDirectory);
+	}
+
+
+
+	public boolean isOffHeap(){ return offHeap;}
+
+	/**
+	 * @return the directory of the mapped files, null if the arrays are not mapped
+	 */
+	public File getScratchDirectory(){ return scratchDirectory;}
+
+
+
+	public BigFloatArray floats(long size)
+	{
+		if( !offHeap )
+			return new ChunkedFloatArray(size);
+		return new BufferFloatArray(size, allocate(size));
+	}
+
+	public BigIntArray ints(long size)
+	{
+		if( !offHeap )
+			return new ChunkedIntArray(size);
+		return new BufferIntArray(size, allocate(size));
+	}
+
+
+
+	/**
+	 * @return the chunks of 2^CHUNK_BITS elements of 4 bytes for an array of size elements, filled with 0
+	 */
+	private ByteBuffer[] allocate(long size)
+	{
+		int nChunks = (int)((size+CHUNK_MASK) >>> CHUNK_BITS);
+		ByteBuffer[] chunks = new ByteBuffer[nChunks];
+		if( scratchDirectory==null )
+		{
+			for(int i=0; i<nChunks; i++)
+				chunks[i] = ByteBuffer.allocateDirect( 4*chunkSize(size, i) ).order( ByteOrder.nativeOrder() );
+			return chunks;
+		}
+
+		try {
+			File file = File.createTempFile("mincostsurface", ".bin", scratchDirectory);
+			try( RandomAccessFile raf = new RandomAccessFile(file, "rw") )
+			{
+				raf.setLength( 4*size );
+				FileChannel channel = raf.getChannel();
+				for(int i=0; i<nChunks; i++)
+					chunks[i] = channel.map( FileChannel.MapMode.READ_WRITE, ((long)i<<CHUNK_BITS)*4, 4L*chunkSize(size, i) ).order( ByteOrder.nativeOrder() );
+			}
+			finally {
+				if( !file.delete() )
+					file.deleteOnExit();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("could not map an array of " + size + " elements in " + scratchDirectory, e);
+		}
+		return chunks;
+	}
+
+	private static int chunkSize(long size, int i)
+	{
+		return (int)Math.min(1L<<CHUNK_BITS, size-((long)i<<CHUNK_BITS));
+	}
+
+
+
+	/**
+	 * BigFloatArray in chunks of ByteBuffers
+	 */
+	private static class BufferFloatArray implements BigFloatArray
+	{
+		private final long size;
+		private final ByteBuffer[] chunks;
+
+		BufferFloatArray(long size, ByteBuffer[] chunks){ this.size = size; this.chunks = chunks; }
+
+		@Override
+		public long size(){ return size;}
+
+		@Override
+		public float get(long index)
+		{
+			return chunks[(int)(index>>>CHUNK_BITS)].getFloat( 4*(int)(index & CHUNK_MASK) );
+		}
+
+		@Override
+		public void set(long index, float value)
+		{
+			chunks[(int)(index>>>CHUNK_BITS)].putFloat( 4*(int)(index & CHUNK_MASK), value );
+		}
+
+		@Override
+		public void fill(float value)
+		{
+			for(ByteBuffer chunk : chunks)
+				for(int i=0; i<chunk.capacity(); i+=4)
+					chunk.putFloat(i, value);
+		}
+	}
+
+	/**
+	 * BigIntArray in chunks of ByteBuffers
+	 */
+	private static class BufferIntArray implements BigIntArray
+	{
+		private final long size;
+		private final ByteBuffer[] chunks;
+
+		BufferIntArray(long size, ByteBuffer[] chunks){ this.size = size; this.chunks = chunks; }
+
+		@Override
+		public long size(){ return size;}
+
+		@Override
+		public int get(long index)
+		{
+			return chunks[(int)(index>>>CHUNK_BITS)].getInt( 4*(int)(index & CHUNK_MASK) );
+		}
+
+		@Override
+		public void set(long index, int value)
+		{
+			chunks[(int)(index>>>CHUNK_BITS)].putInt( 4*(int)(index & CHUNK_MASK), value );
+		}
+
+		@Override
+		public void fill(int value)
+		{
+			for(ByteBuffer chunk : chunks)
+				for(int i=0; i<chunk.capacity(); i+=4)
+					chunk.putInt(i, value);
+		}
+	}
+
+}
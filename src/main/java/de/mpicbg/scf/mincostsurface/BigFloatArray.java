@@ -0,0 +1,24 @@
+package de.mpicbg.scf.mincostsurface;
+
+
+/**
+ *
+ * A float array indexed by long, used to store per node and per edge values of graphs
+ * with more than 2^31 nodes.
+ *
+ */
+public interface BigFloatArray {
+
+
+	public long size();
+
+	public float get(long index);
+
+	public void set(long index, float value);
+
+	/**
+	 * set all the elements of the array to value
+	 */
+	public void fill(float value);
+
+}
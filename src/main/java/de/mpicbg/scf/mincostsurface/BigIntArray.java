@@ -0,0 +1,24 @@
+package de.mpicbg.scf.mincostsurface;
+
+
+/**
+ *
+ * An int array indexed by long, used to store per node values of graphs
+ * with more than 2^31 nodes.
+ *
+ */
+public interface BigIntArray {
+
+
+	public long size();
+
+	public int get(long index);
+
+	public void set(long index, int value);
+
+	/**
+	 * set all the elements of the array to value
+	 */
+	public void fill(int value);
+
+}
@@ -0,0 +1,88 @@
+package de.mpicbg.scf.mincostsurface;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+
+/**
+ *
+ * BigFloatArray whose elements can be updated concurrently by several threads. The float values are
+ * stored as int bits in AtomicIntegerArray chunks of 2^CHUNK_BITS elements.
+ *
+ */
+public class ChunkedAtomicFloatArray implements BigFloatArray {
+
+
+	static final int CHUNK_BITS = ChunkedFloatArray.CHUNK_BITS;
+	static final long CHUNK_MASK = ChunkedFloatArray.CHUNK_MASK;
+
+	private final long size;
+	private final AtomicIntegerArray[] chunks;
+
+
+
+	public ChunkedAtomicFloatArray(long size)
+	{
+		this.size = size;
+		int nChunks = (int)((size+CHUNK_MASK) >>> CHUNK_BITS);
+		chunks = new AtomicIntegerArray[nChunks];
+		for(int i=0; i<nChunks; i++)
+			chunks[i] = new AtomicIntegerArray( (int)Math.min(1L<<CHUNK_BITS, size-((long)i<<CHUNK_BITS)) );
+	}
+
+
+
+	@Override
+	public long size(){ return size;}
+
+	@Override
+	public float get(long index)
+	{
+		return Float.intBitsToFloat( chunks[(int)(index>>>CHUNK_BITS)].get((int)(index & CHUNK_MASK)) );
+	}
+
+	@Override
+	public void set(long index, float value)
+	{
+		chunks[(int)(index>>>CHUNK_BITS)].set( (int)(index & CHUNK_MASK), Float.floatToRawIntBits(value) );
+	}
+
+	@Override
+	public void fill(float value)
+	{
+		int bits = Float.floatToRawIntBits(value);
+		for(AtomicIntegerArray chunk : chunks)
+			for(int i=0; i<chunk.length(); i++)
+				chunk.set(i, bits);
+	}
+
+
+
+	/**
+	 * set the element to update if its current value is expect (compared bit to bit)
+	 * @return true if the element was updated
+	 */
+	public boolean compareAndSet(long index, float expect, float update)
+	{
+		return chunks[(int)(index>>>CHUNK_BITS)].compareAndSet( (int)(index & CHUNK_MASK), Float.floatToRawIntBits(expect), Float.floatToRawIntBits(update) );
+	}
+
+
+
+	/**
+	 * atomically add delta to the element
+	 * @return the value of the element before the addition
+	 */
+	public float getAndAdd(long index, float delta)
+	{
+		AtomicIntegerArray chunk = chunks[(int)(index>>>CHUNK_BITS)];
+		int i = (int)(index & CHUNK_MASK);
+		while( true )
+		{
+			int bits = chunk.get(i);
+			float value = Float.intBitsToFloat(bits);
+			if( chunk.compareAndSet(i, bits, Float.floatToRawIntBits(value+delta)) )
+				return value;
+		}
+	}
+
+}
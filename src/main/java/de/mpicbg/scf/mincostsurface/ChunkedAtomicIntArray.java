@@ -0,0 +1,68 @@
+package de.mpicbg.scf.mincostsurface;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+
+/**
+ *
+ * BigIntArray whose elements can be updated concurrently by several threads, stored as
+ * AtomicIntegerArray chunks of 2^CHUNK_BITS elements.
+ *
+ */
+public class ChunkedAtomicIntArray implements BigIntArray {
+
+
+	static final int CHUNK_BITS = ChunkedIntArray.CHUNK_BITS;
+	static final long CHUNK_MASK = ChunkedIntArray.CHUNK_MASK;
+
+	private final long size;
+	private final AtomicIntegerArray[] chunks;
+
+
+
+	public ChunkedAtomicIntArray(long size)
+	{
+		this.size = size;
+		int nChunks = (int)((size+CHUNK_MASK) >>> CHUNK_BITS);
+		chunks = new AtomicIntegerArray[nChunks];
+		for(int i=0; i<nChunks; i++)
+			chunks[i] = new AtomicIntegerArray( (int)Math.min(1L<<CHUNK_BITS, size-((long)i<<CHUNK_BITS)) );
+	}
+
+
+
+	@Override
+	public long size(){ return size;}
+
+	@Override
+	public int get(long index)
+	{
+		return chunks[(int)(index>>>CHUNK_BITS)].get( (int)(index & CHUNK_MASK) );
+	}
+
+	@Override
+	public void set(long index, int value)
+	{
+		chunks[(int)(index>>>CHUNK_BITS)].set( (int)(index & CHUNK_MASK), value );
+	}
+
+	@Override
+	public void fill(int value)
+	{
+		for(AtomicIntegerArray chunk : chunks)
+			for(int i=0; i<chunk.length(); i++)
+				chunk.set(i, value);
+	}
+
+
+
+	/**
+	 * set the element to update if its current value is expect
+	 * @return true if the element was updated
+	 */
+	public boolean compareAndSet(long index, int expect, int update)
+	{
+		return chunks[(int)(index>>>CHUNK_BITS)].compareAndSet( (int)(index & CHUNK_MASK), expect, update );
+	}
+
+}
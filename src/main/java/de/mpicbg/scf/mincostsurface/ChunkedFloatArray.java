@@ -0,0 +1,55 @@
+package de.mpicbg.scf.mincostsurface;
+
+import java.util.Arrays;
+
+
+/**
+ *
+ * BigFloatArray stored on the heap as a list of float[] chunks of 2^CHUNK_BITS elements
+ *
+ */
+public class ChunkedFloatArray implements BigFloatArray {
+
+
+	static final int CHUNK_BITS = 24;
+	static final long CHUNK_MASK = (1L<<CHUNK_BITS)-1;
+
+	private final long size;
+	private final float[][] chunks;
+
+
+
+	public ChunkedFloatArray(long size)
+	{
+		this.size = size;
+		int nChunks = (int)((size+CHUNK_MASK) >>> CHUNK_BITS);
+		chunks = new float[nChunks][];
+		for(int i=0; i<nChunks; i++)
+			chunks[i] = new float[ (int)Math.min(1L<<CHUNK_BITS, size-((long)i<<CHUNK_BITS)) ];
+	}
+
+
+
+	@Override
+	public long size(){ return size;}
+
+	@Override
+	public float get(long index)
+	{
+		return chunks[(int)(index>>>CHUNK_BITS)][(int)(index & CHUNK_MASK)];
+	}
+
+	@Override
+	public void set(long index, float value)
+	{
+		chunks[(int)(index>>>CHUNK_BITS)][(int)(index & CHUNK_MASK)] = value;
+	}
+
+	@Override
+	public void fill(float value)
+	{
+		for(float[] chunk : chunks)
+			Arrays.fill(chunk, value);
+	}
+
+}
@@ -0,0 +1,296 @@
+package de.mpicbg.scf.mincostsurface;
+
+import net.imglib2.multithreading.SimpleMultiThreading;
+
+
+/**
+ *
+ * Parallel max-flow solver splitting the z-surface graph in subdomains by dual decomposition.
+ *
+ * The volume is cut in y-stripes, consecutive stripes share one row. The unary terms (terminal weights) of the nodes
+ * of a shared row are split between the 2 stripes: the first one receives w/2 + lambda and the second one w/2 - lambda,
+ * where w is the node weight and lambda a price attached to the node. The stripes graphs are solved in parallel with
+ * ImplicitGridMaxFlow, then the price of each shared node labelled differently by its 2 stripes is updated with a
+ * subgradient step. Only the terminal weights of the shared rows change between 2 iterations, so each stripe solver
+ * starts from its previous flow (see ImplicitGridMaxFlow.recomputeMaximumFlow) instead of solving from scratch. As soon as the stripes agree on every shared node, the union of their labellings is a minimum cut
+ * of the whole graph (the edges inside a shared row have infinite or zero weights, duplicating them does not change
+ * the energy). If they do not agree after maxIterations, the whole graph is solved with a single ImplicitGridMaxFlow,
+ * so the result is always exact.
+ *
+ */
+public class DualDecompositionMaxFlow implements MaxFlowSolver {
+
+
+	private int nSubdomains;
+	private int maxIterations;
+
+	private ZSurfaceGraph graph;
+	private long Width;
+	private long Slice;
+	private long nNodes_perSurf;
+	private long[] rowStart;      // subdomain k covers the rows [rowStart[k], rowEnd[k])
+	private long[] rowEnd;        // rowEnd[k]-1 = rowStart[k+1] is the row shared by subdomains k and k+1
+	private int[] rowOwner;       // subdomain used to label the nodes of each row
+	private ZSurfaceGraph[] subGraphs;
+	private MaxFlowSolver[] subSolvers;
+	private MaxFlowSolver globalSolver; // only used if the subdomains did not agree
+	private float maxFlow;
+	private int nIterations;
+	private BigArrayStorage storage = BigArrayStorage.HEAP;
+
+
+
+	public DualDecompositionMaxFlow()
+	{
+		this( Runtime.getRuntime().availableProcessors(), 100 );
+	}
+
+
+
+	/**
+	 * @param nSubdomains number of stripes solved in parallel
+	 * @param maxIterations maximum number of price updates before falling back to a global solve
+	 */
+	public DualDecompositionMaxFlow(int nSubdomains, int maxIterations)
+	{
+		this.nSubdomains = nSubdomains;
+		this.maxIterations = maxIterations;
+	}
+
+
+
+	/**
+	 * @return the number of price updates of the last computation
+	 */
+	public int getNIterations(){ return nIterations;}
+
+	/**
+	 * @return true if the last computation fell back to a global solve
+	 */
+	public boolean isFallback(){ return globalSolver!=null;}
+
+
+
+	@Override
+	public void setStorage(BigArrayStorage storage){ this.storage = storage;}
+
+
+
+	@Override
+	public float computeMaximumFlow(ZSurfaceGraph graph)
+	{
+		this.graph = graph;
+		globalSolver = null;
+		nIterations = 0;
+
+		long[] dims = graph.getDimensions();
+		Width = dims[0];
+		Slice = dims[0]*dims[1];
+		nNodes_perSurf = graph.getNNodesPerSurface();
+		long Height = dims[1];
+
+		// each subdomain needs at least 2 rows
+		int n = (int)Math.min(nSubdomains, Height/2);
+		if( n<2 )
+			return solveGlobal();
+
+		rowStart = new long[n];
+		rowEnd = new long[n];
+		for(int k=0; k<n; k++)
+			rowStart[k] = Height*k/n;
+		for(int k=0; k<n; k++)
+			rowEnd[k] = k<n-1 ? rowStart[k+1]+1 : Height;
+		rowOwner = new int[(int)Height];
+		for(int k=0; k<n; k++)
+			for(long y=rowStart[k]; y<rowEnd[k]; y++)
+				rowOwner[(int)y] = k;
+
+		subGraphs = new ZSurfaceGraph[n];
+		subSolvers = new MaxFlowSolver[n];
+		for(int k=0; k<n; k++)
+		{
+			subGraphs[k] = graph.getRows(rowStart[k], rowEnd[k]);
+			subSolvers[k] = new ImplicitGridMaxFlow();
+			subSolvers[k].setStorage( storage );
+		}
+
+		// one price per node of each shared row
+		int nSurf = graph.getNSurfaces();
+		long nShared = nSurf*Width*dims[2];
+		BigFloatArray[] lambda = new BigFloatArray[n-1];
+		for(int k=0; k<n-1; k++)
+			lambda[k] = storage.floats(nShared);
+
+		// initial step: mean absolute finite weight of the shared nodes
+		double sum = 0;
+		long count = 0;
+		for(int k=0; k<n-1; k++)
+			for(long i=0; i<nShared; i++)
+			{
+				float w = getWeight( sharedNode(k, i) );
+				if( Math.abs(w) < graph.getInfiniteWeight()/2 )
+				{	sum += Math.abs(w);
+					count++;
+				}
+			}
+		double step0 = count>0 && sum>0 ? sum/count : 1;
+
+		for(int t=0; t<maxIterations; t++)
+		{
+			nIterations = t+1;
+			for(int k=0; k<n-1; k++)
+				setSharedWeights(k, lambda[k], nShared);
+			solveSubdomains( t>0 );
+
+			long nDisagree = 0;
+			float step = (float)(step0/(1+t));
+			for(int k=0; k<n-1; k++)
+				for(long i=0; i<nShared; i++)
+				{
+					boolean a = subSolvers[k].isSourceSide( lastRowNode(k, i) );
+					boolean b = subSolvers[k+1].isSourceSide( firstRowNode(k+1, i) );
+					if( a==b )
+						continue;
+					nDisagree++;
+					// the first stripe pays lambda when the node is on the source side
+					lambda[k].set(i, lambda[k].get(i) + (a ? step : -step) );
+				}
+
+			if( nDisagree==0 )
+			{
+				maxFlow = (float) graph.getCutEnergy( this::isSourceSide );
+				return maxFlow;
+			}
+		}
+
+		return solveGlobal();
+	}
+
+
+
+	private float solveGlobal()
+	{
+		subGraphs = null;
+		subSolvers = null;
+		globalSolver = new ImplicitGridMaxFlow();
+		globalSolver.setStorage( storage );
+		maxFlow = globalSolver.computeMaximumFlow(graph);
+		return maxFlow;
+	}
+
+
+
+	/**
+	 * @param warm true to restart each stripe from the flow of the previous iteration
+	 */
+	private void solveSubdomains(final boolean warm)
+	{
+		final Thread[] threads = SimpleMultiThreading.newThreads( subGraphs.length );
+		for ( int k = 0; k < threads.length; k++ )
+		{
+			final int finalK = k;
+			threads[ k ] = new Thread( "MinCostZSurface subdomain " + finalK)
+			{
+				@Override
+				public void run()
+				{
+					if( warm )
+						subSolvers[finalK].recomputeMaximumFlow( subGraphs[finalK] );
+					else
+						subSolvers[finalK].computeMaximumFlow( subGraphs[finalK] );
+				}
+			};
+		}
+		SimpleMultiThreading.startAndJoin( threads );
+	}
+
+
+
+	/**
+	 * split the weight of the nodes of the row shared by subdomains k and k+1
+	 */
+	private void setSharedWeights(int k, BigFloatArray lambda, long nShared)
+	{
+		for(long i=0; i<nShared; i++)
+		{
+			float w = getWeight( sharedNode(k, i) ) / 2;
+			float l = lambda.get(i);
+			setWeight( subGraphs[k], lastRowNode(k, i), w+l );
+			setWeight( subGraphs[k+1], firstRowNode(k+1, i), w-l );
+		}
+	}
+
+
+
+	/**
+	 * @return the cost of the node being on the source side relative to the sink side
+	 */
+	private float getWeight(long node)
+	{
+		return graph.getSinkWeight(node) - graph.getSourceWeight(node);
+	}
+
+	private static void setWeight(ZSurfaceGraph g, long node, float w)
+	{
+		if( w>0 )
+			g.setTerminalWeights(node, 0, w);
+		else
+			g.setTerminalWeights(node, -w, 0);
+	}
+
+
+
+	// the nodes of a shared row are numbered i = x + z*Width + surface*Width*Depth
+
+	private long sharedNode(int k, long i)
+	{
+		long x = i % Width;
+		long sz = i / Width;
+		long Depth = nNodes_perSurf/Slice;
+		return (sz/Depth)*nNodes_perSurf + (sz%Depth)*Slice + rowStart[k+1]*Width + x;
+	}
+
+	private long firstRowNode(int k, long i)
+	{
+		return subNode(k, i, 0);
+	}
+
+	private long lastRowNode(int k, long i)
+	{
+		return subNode(k, i, rowEnd[k]-rowStart[k]-1);
+	}
+
+	private long subNode(int k, long i, long y)
+	{
+		long x = i % Width;
+		long sz = i / Width;
+		long Depth = nNodes_perSurf/Slice;
+		long subSlice = Width*(rowEnd[k]-rowStart[k]);
+		return (sz/Depth)*subSlice*Depth + (sz%Depth)*subSlice + y*Width + x;
+	}
+
+
+
+	@Override
+	public float getMaxFlow(){ return maxFlow;}
+
+
+
+	@Override
+	public boolean isSourceSide(long node)
+	{
+		if( globalSolver!=null )
+			return globalSolver.isSourceSide(node);
+
+		int s = (int)(node / nNodes_perSurf);
+		long p = node - s*nNodes_perSurf;
+		long z = p / Slice;
+		long y = (p - z*Slice) / Width;
+		long x = p - z*Slice - y*Width;
+		int k = rowOwner[(int)y];
+		long subSlice = Width*(rowEnd[k]-rowStart[k]);
+		long Depth = nNodes_perSurf/Slice;
+		return subSolvers[k].isSourceSide( s*subSlice*Depth + z*subSlice + (y-rowStart[k])*Width + x );
+	}
+
+}
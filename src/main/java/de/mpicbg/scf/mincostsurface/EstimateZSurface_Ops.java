@@ -0,0 +1,118 @@
+package de.mpicbg.scf.mincostsurface;
+
+import net.imagej.ops.AbstractOp;
+import net.imagej.ops.Op;
+
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Util;
+
+import org.scijava.ItemIO;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+
+@Plugin(type = Op.class, menuPath = "Plugins>MinCostZSurface>Estimate memory and time", name="EstimateZSurface", headless = true, label="EstimateZSurface")
+public class EstimateZSurface_Ops extends AbstractOp {
+
+
+    @Parameter ( label = "cost image", persist = false ) // only its dimensions and type are used
+    private Img input;
+
+    @Parameter ( label = "rescale xy" )  // downsampling factor of the input image for the direction x and y
+    private float downsample_factor_xy;
+
+    @Parameter ( label = "rescale z" ) // downsampling factor of the input image for the direction z
+    private float downsample_factor_z;
+
+    @Parameter ( label = "Max_delta_z between adjacent voxel" ) // at the rescaled size, as in the other ops
+    private int max_dz;
+
+    @Parameter ( label = "number of surfaces", choices = {"1", "2"} )
+    private String nSurfaces = "1";
+
+    @Parameter( label = "Max_distance between surfaces (in pixel)", required = false, persist = false ) // 2 surfaces only, no crossing constraint as in MinCost2ZSurface
+    private int max_dist = 0;
+
+    @Parameter( label = "Min_distance between surfaces (in pixel)", required = false, persist = false )
+    private int min_dist = 0;
+
+    @Parameter ( label = "max-flow solver", choices = {"GRAPH_CUT", "IMPLICIT_GRID", "DUAL_DECOMPOSITION", "PARALLEL_PUSH_RELABEL"}, required = false, persist = false ) // see MaxFlowSolver.Type
+    private String solver = "GRAPH_CUT";
+
+    @Parameter ( label = "auto rescale", required = false, persist = false ) // choose the largest factors, with the ratio of rescale z to rescale xy, fitting the budgets
+    private boolean auto = false;
+
+    @Parameter ( label = "heap budget (in MB, 0 for the maximum heap)", required = false, persist = false )
+    private long maxHeapMB = 0;
+
+    @Parameter ( label = "time budget (in s, 0 for none)", required = false, persist = false )
+    private double maxSeconds = 0;
+
+
+
+    // output
+
+    @Parameter  (type = ItemIO.OUTPUT)
+    private float rescale_xy;
+
+    @Parameter  (type = ItemIO.OUTPUT)
+    private float rescale_z;
+
+    @Parameter  (type = ItemIO.OUTPUT)
+    private boolean fits;
+
+    @Parameter  (type = ItemIO.OUTPUT)
+    private String estimate;
+
+
+
+    @Override
+    public void run() {
+
+        if ( input.numDimensions() != 3 ) {
+            System.err.println("The data should be of dimensions 3 (found " + input.numDimensions() + " dimensions)");
+            return;
+        }
+        long[] dims = new long[3];
+        input.dimensions( dims );
+
+        // the distances of the ops are given at the rescaled size, the estimator takes them at full resolution
+        float factor_xy = Math.min(1, downsample_factor_xy);
+        float factor_z = Math.min(1, downsample_factor_z);
+        ZSurfaceEstimator estimator = new ZSurfaceEstimator( dims );
+        estimator.setSolverType( MaxFlowSolver.Type.valueOf(solver) );
+        estimator.setBytesPerVoxel( Math.max(1, ((RealType<?>)Util.getTypeFromInterval(input)).getBitsPerPixel() / 8) );
+        int n = Integer.parseInt( nSurfaces );
+        for(int s=0; s<n; s++)
+            estimator.addSurface( max_dz * factor_xy / factor_z );
+        if( n==2 )
+            estimator.addNoCrossingConstraint(1, 2, min_dist / factor_z, max_dist / factor_z);
+
+        long maxHeapBytes = maxHeapMB>0 ? maxHeapMB<<20 : Runtime.getRuntime().maxMemory();
+        ZSurfaceEstimator.Estimate e = estimator.estimate( factor_xy, factor_z );
+        System.out.println("estimate for " + e);
+        if( auto )
+        {
+            // search from the finest factors with the anisotropy of the given ones
+            float scale = Math.max(factor_xy, factor_z);
+            ZSurfaceEstimator.Estimate chosen = estimator.chooseFactors( factor_xy/scale, factor_z/scale, maxHeapBytes, maxSeconds );
+            if( chosen==null )
+                System.out.println("no rescaling fits a heap of " + (maxHeapBytes>>20) + " MB" + (maxSeconds>0 ? " and " + maxSeconds + " s" : ""));
+            else
+            {
+                e = chosen;
+                System.out.println("chosen " + e);
+            }
+        }
+
+        rescale_xy = e.factor_xy;
+        rescale_z = e.factor_z;
+        fits = e.fits( maxHeapBytes, maxSeconds );
+        estimate = e.toString();
+        if( !fits )
+            System.out.println("the estimate does not fit a heap of " + (maxHeapBytes>>20) + " MB" + (maxSeconds>0 ? " and " + maxSeconds + " s" : ""));
+
+    }
+
+}
@@ -0,0 +1,87 @@
+package de.mpicbg.scf.mincostsurface;
+
+import graphcut.GraphCut;
+import graphcut.Terminal;
+
+
+/**
+ *
+ * MaxFlowSolver using the Boykov-Kolmogorov GraphCut solver implemented in FIJI Graph_Cut plugin by Jan Funke:
+ * http://fiji.sc/Graph_Cut
+ *
+ * The explicit edge arrays of the graph are used when available, otherwise the edges are enumerated from the
+ * edge families.
+ *
+ */
+public class GraphCutSolver implements MaxFlowSolver {
+
+
+	private GraphCut graphCut_Solver;
+	private float maxFlow;
+
+
+
+	@Override
+	public float computeMaximumFlow(ZSurfaceGraph graph)
+	{
+		// GraphCut indexes nodes and edges with int
+		if( graph.isLarge() )
+			throw new IllegalArgumentException("GraphCut can not solve graphs with more than 2^31 nodes or edges, use another solver");
+
+		// determine the number of nodes (except terminal nodes)
+		int nNodes = (int)graph.getNNodes();
+
+		// determine the number of edges in the graph (except edges from or to terminals)
+		long nEdges = 0;
+		if( graph.hasEdgeArrays() )
+			for(int[][] edges : graph.getEdges())
+				nEdges += edges[0].length;
+		else
+			nEdges = graph.getNEdges();
+
+		// instanciate the solver
+		graphCut_Solver = new GraphCut( nNodes, (int)nEdges );
+
+		// feed the graphcut solver with the surface graphs and surfaces constraints
+		if( graph.hasEdgeArrays() )
+		{
+			for(int i=0; i<graph.getEdges().size(); i++)
+			{
+				int[][] edges = graph.getEdges().get(i);
+				float[][] ws = graph.getEdgesWeights().get(i);
+				for( int j=0; j<edges[0].length; j++)
+					graphCut_Solver.setEdgeWeight(edges[0][j], edges[1][j], ws[0][j], ws[1][j]);
+			}
+		}
+		else
+		{
+			for(int i=0; i<graph.getNFamilies(); i++)
+			{
+				final ZSurfaceGraph.EdgeFamily f = graph.getFamily(i);
+				graph.visitEdges(f, (tail, head) -> graphCut_Solver.setEdgeWeight((int)tail, (int)head, f.capacity, f.reverseCapacity) );
+			}
+		}
+
+		for( int j=0; j<nNodes; j++)
+			graphCut_Solver.setTerminalWeights(j, graph.getSourceWeight(j), graph.getSinkWeight(j));
+
+		// Solve the mincut maxflow problem
+		maxFlow = graphCut_Solver.computeMaximumFlow(false, null);
+
+		return maxFlow;
+	}
+
+
+
+	@Override
+	public float getMaxFlow(){ return maxFlow;}
+
+
+
+	@Override
+	public boolean isSourceSide(long node)
+	{
+		return graphCut_Solver.getTerminal( (int)node ) == Terminal.FOREGROUND;
+	}
+
+}
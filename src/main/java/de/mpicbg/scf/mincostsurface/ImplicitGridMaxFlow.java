@@ -0,0 +1,382 @@
+package de.mpicbg.scf.mincostsurface;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ *
+ * Max-flow solver working directly on the implicit description of the z-surface graph (see ZSurfaceGraph).
+ *
+ * The end points of the edges are never stored, they are computed from the node index. The solver only keeps,
+ * for each node, its label, its excess (or remaining capacity to the sink) and the flow on each edge leaving it.
+ * This uses a fraction of the memory needed to store the edge arrays and to copy them in graphcut.GraphCut.
+ * Nodes are indexed with long and the per node values are stored in chunked arrays, so graphs with more than
+ * 2^31 nodes can be solved.
+ *
+ * The max-flow is computed with a FIFO push-relabel algorithm with global relabelling. The excess of a node and
+ * the residual capacity of its edge to the sink are stored in a single value: since a node always pushes its
+ * excess to the sink first, at most one of them is positive at any time.
+ *
+ * Once the flow is computed, the nodes that can still reach the sink in the residual graph are labelled
+ * background, the other ones are labelled foreground (i.e. connected to the source).
+ *
+ * After a modification of the graph, recomputeMaximumFlow() starts from the flow of the last computation: the flow
+ * of the edge families that were kept is reused, the flow of the removed families is given back to their end points
+ * and the excesses are rebuilt from the new terminal weights (in the spirit of the dynamic graph cuts of Kohli and
+ * Torr). A global relabelling then makes the distance labels valid for the new residual graph, so only the flow
+ * that changed has to be pushed again.
+ *
+ */
+public class ImplicitGridMaxFlow implements MaxFlowSolver {
+
+
+	private ZSurfaceGraph graph;
+	private ImplicitGridTopology topology;
+	private List<ZSurfaceGraph.EdgeFamily> families; // families of the last computation, in the order of flow
+	private long[] dimensions;
+	private int[] zOffsets;
+	// edge families unrolled in primitive arrays (see ImplicitGridTopology)
+	private int[] fFrom, fTo;
+	private float[] fCapacity, fReverseCapacity;
+	private int[][] outFamilies; // for each surface, the families whose edges leave the surface nodes
+	private int[][] inFamilies;  // for each surface, the families whose edges enter the surface nodes
+
+	private long nNodes;
+	private long nNodes_perSurf;
+	private long Width;
+	private long Slice;
+	private int maxLabel;        // label of the nodes that are cut from the sink
+
+	private BigFloatArray excess;  // excess of a node if positive, minus the residual capacity to the sink otherwise
+	private BigFloatArray[] flow;  // flow on the edge of each family leaving a node (indexed by tail position in its surface)
+	private BigIntArray label;     // distance label
+	private LongFifo queue;        // FIFO of the active nodes, also used for the breadth first search of global relabelling
+	private BigArrayStorage storage = BigArrayStorage.HEAP;
+
+	private double flowToSink;
+	private float maxFlow;
+	private long relabelSinceUpdate;
+
+
+
+	private void init(ZSurfaceGraph graph)
+	{
+		initTopology(graph);
+
+		// the buffers of the last computation are reused if the graph has the same size (e.g. the frames of a time-lapse)
+		if( excess==null || excess.size()!=nNodes )
+		{
+			excess = storage.floats(nNodes);
+			label = storage.ints(nNodes);
+			queue = new LongFifo();
+		}
+		BigFloatArray[] oldFlow = flow;
+		flow = new BigFloatArray[families.size()];
+		for(int i=0; i<flow.length; i++)
+		{
+			if( oldFlow!=null && i<oldFlow.length && oldFlow[i].size()==nNodes_perSurf )
+			{	flow[i] = oldFlow[i];
+				flow[i].fill(0);
+			}
+			else
+				flow[i] = storage.floats(nNodes_perSurf);
+		}
+	}
+
+
+
+	private void initTopology(ZSurfaceGraph graph)
+	{
+		this.graph = graph;
+		dimensions = graph.getDimensions();
+		zOffsets = graph.getZOffsets();
+		families = new ArrayList<ZSurfaceGraph.EdgeFamily>();
+		for(int i=0; i<graph.getNFamilies(); i++)
+			families.add( graph.getFamily(i) );
+
+		ImplicitGridTopology t = new ImplicitGridTopology(graph);
+		topology = t;
+		fFrom = t.fFrom; fTo = t.fTo;
+		fCapacity = t.fCapacity; fReverseCapacity = t.fReverseCapacity;
+		outFamilies = t.outFamilies;
+		inFamilies = t.inFamilies;
+		Width = t.Width;
+		Slice = t.Slice;
+		nNodes_perSurf = t.nNodes_perSurf;
+		nNodes = t.nNodes;
+		maxLabel = (int)Math.min(nNodes, Integer.MAX_VALUE);
+	}
+
+
+
+	@Override
+	public void setStorage(BigArrayStorage storage)
+	{
+		// the buffers of the previous storage are not reused
+		if( storage!=this.storage )
+		{
+			this.storage = storage;
+			excess = null;
+			label = null;
+			flow = null;
+		}
+	}
+
+
+
+	@Override
+	public float computeMaximumFlow(ZSurfaceGraph graph)
+	{
+		init(graph);
+
+		flowToSink = 0;
+		for(long v=0; v<nNodes; v++)
+		{
+			float src = graph.getSourceWeight(v);
+			float snk = graph.getSinkWeight(v);
+			// the flow going straight from the source to the sink through v
+			flowToSink += Math.min(src, snk);
+			excess.set(v, src - snk);
+		}
+
+		pushRelabel();
+
+		maxFlow = (float) flowToSink;
+		return maxFlow;
+	}
+
+
+
+	@Override
+	public float recomputeMaximumFlow(ZSurfaceGraph graph)
+	{
+		// the flow can only be reused if the nodes did not change
+		if( excess==null || graph.getNNodes()!=nNodes || !Arrays.equals(graph.getDimensions(), dimensions) || !Arrays.equals(graph.getZOffsets(), zOffsets) )
+			return computeMaximumFlow(graph);
+
+		List<ZSurfaceGraph.EdgeFamily> oldFamilies = families;
+		BigFloatArray[] oldFlow = flow;
+		initTopology(graph);
+		flow = new BigFloatArray[families.size()];
+		for(int i=0; i<flow.length; i++)
+		{
+			int old = oldFamilies.indexOf( families.get(i) );
+			flow[i] = old>=0 ? oldFlow[old] : storage.floats(nNodes_perSurf);
+		}
+
+		// excess from the new terminal weights and the flow kept on the edges
+		for(long v=0; v<nNodes; v++)
+			excess.set(v, graph.getSourceWeight(v) - graph.getSinkWeight(v));
+		for(long v=0; v<nNodes; v++)
+		{
+			int s = (int)(v / nNodes_perSurf);
+			long p = v - s*nNodes_perSurf;
+			long z = p / Slice;
+			long y = (p - z*Slice) / Width;
+			long x = p - z*Slice - y*Width;
+			for(int fi : outFamilies[s])
+			{
+				float f = flow[fi].get(p);
+				if( f==0 )
+					continue;
+				long w = fTo[fi]*nNodes_perSurf + topology.headPosition(fi, x, y, z);
+				excess.set(v, excess.get(v) - f);
+				excess.set(w, excess.get(w) + f);
+			}
+		}
+
+		pushRelabel();
+
+		// the flow to the sink is not tracked through the terminal changes, the cut energy is the maximum flow
+		maxFlow = (float) graph.getCutEnergy( this::isSourceSide );
+		return maxFlow;
+	}
+
+
+
+	private void pushRelabel()
+	{
+		globalRelabel();
+		while( !queue.isEmpty() )
+		{
+			discharge( queue.poll() );
+
+			if( relabelSinceUpdate >= nNodes )
+				globalRelabel();
+		}
+		// label the nodes that can still reach the sink
+		globalRelabel();
+	}
+
+
+
+	@Override
+	public float getMaxFlow(){ return maxFlow;}
+
+
+
+	@Override
+	public boolean isSourceSide(long node)
+	{
+		return label.get(node) >= maxLabel;
+	}
+
+
+
+	private void discharge(long v)
+	{
+		int s = (int)(v / nNodes_perSurf);
+		long p = v - s*nNodes_perSurf;
+		long z = p / Slice;
+		long y = (p - z*Slice) / Width;
+		long x = p - z*Slice - y*Width;
+		int[] out = outFamilies[s];
+		int[] in = inFamilies[s];
+
+		while( excess.get(v)>0 )
+		{
+			int minLabel = maxLabel;
+			int dv = label.get(v);
+
+			for(int fi : out)
+			{
+				long q = topology.headPosition(fi, x, y, z);
+				if( q<0 )
+					continue;
+				float f = flow[fi].get(p);
+				float res = fCapacity[fi] - f;
+				if( res<=0 )
+					continue;
+				long w = fTo[fi]*nNodes_perSurf + q;
+				int dw = label.get(w);
+				if( dw+1 == dv )
+				{
+					float d = Math.min(excess.get(v), res);
+					flow[fi].set(p, d==res ? fCapacity[fi] : f+d);
+					if( push(v, w, d) )
+						return;
+				}
+				else if( dw<minLabel )
+					minLabel = dw;
+			}
+
+			for(int fi : in)
+			{
+				long pu = topology.tailPosition(fi, x, y, z);
+				if( pu<0 )
+					continue;
+				float f = flow[fi].get(pu);
+				float res = fReverseCapacity[fi] + f;
+				if( res<=0 )
+					continue;
+				long u = fFrom[fi]*nNodes_perSurf + pu;
+				int du = label.get(u);
+				if( du+1 == dv )
+				{
+					float d = Math.min(excess.get(v), res);
+					flow[fi].set(pu, d==res ? -fReverseCapacity[fi] : f-d);
+					if( push(v, u, d) )
+						return;
+				}
+				else if( du<minLabel )
+					minLabel = du;
+			}
+
+			// no admissible edge left, relabel
+			relabelSinceUpdate++;
+			label.set(v, minLabel<maxLabel ? minLabel+1 : maxLabel);
+			if( label.get(v)>=maxLabel )
+				return;
+		}
+	}
+
+
+
+	/**
+	 * move d units of excess from v to w
+	 * @return true if v has no excess left
+	 */
+	private boolean push(long v, long w, float d)
+	{
+		float ev = excess.get(v) - d;
+		excess.set(v, ev);
+		float old = excess.get(w);
+		if( old<0 )
+			flowToSink += Math.min(d, -old);
+		float ew = old + d;
+		excess.set(w, ew);
+		if( old<=0 & ew>0 && label.get(w)<maxLabel )
+			queue.add(w);
+		return ev<=0;
+	}
+
+
+
+	/**
+	 * set the label of every node to its distance to the sink in the residual graph
+	 * and rebuild the queue of active nodes
+	 */
+	private void globalRelabel()
+	{
+		relabelSinceUpdate = 0;
+		queue.clear();
+		for(long v=0; v<nNodes; v++)
+		{
+			if( excess.get(v)<0 )
+			{	label.set(v, 0);
+				queue.add(v);
+			}
+			else
+				label.set(v, maxLabel);
+		}
+
+		// breadth first search from the nodes linked to the sink, following residual edges backward
+		while( !queue.isEmpty() )
+		{
+			long v = queue.poll();
+			int s = (int)(v / nNodes_perSurf);
+			long p = v - s*nNodes_perSurf;
+			long z = p / Slice;
+			long y = (p - z*Slice) / Width;
+			long x = p - z*Slice - y*Width;
+			int next = label.get(v)+1;
+
+			// edges v->w, the residual edge w->v has capacity reverseCapacity + flow
+			for(int fi : outFamilies[s])
+			{
+				long q = topology.headPosition(fi, x, y, z);
+				if( q<0 )
+					continue;
+				if( fReverseCapacity[fi] + flow[fi].get(p) <= 0 )
+					continue;
+				long w = fTo[fi]*nNodes_perSurf + q;
+				if( label.get(w)==maxLabel )
+				{	label.set(w, next);
+					queue.add(w);
+				}
+			}
+			// edges u->v, the residual edge u->v has capacity capacity - flow
+			for(int fi : inFamilies[s])
+			{
+				long pu = topology.tailPosition(fi, x, y, z);
+				if( pu<0 )
+					continue;
+				if( fCapacity[fi] - flow[fi].get(pu) <= 0 )
+					continue;
+				long u = fFrom[fi]*nNodes_perSurf + pu;
+				if( label.get(u)==maxLabel )
+				{	label.set(u, next);
+					queue.add(u);
+				}
+			}
+		}
+
+		// rebuild the queue of active nodes
+		for(long v=0; v<nNodes; v++)
+			if( excess.get(v)>0 && label.get(v)<maxLabel )
+				queue.add(v);
+	}
+
+}
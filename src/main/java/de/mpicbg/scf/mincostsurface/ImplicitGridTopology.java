@@ -0,0 +1,136 @@
+package de.mpicbg.scf.mincostsurface;
+
+
+/**
+ *
+ * The edge families of a ZSurfaceGraph unrolled in primitive arrays, with for each surface the list of families
+ * whose edges leave or enter its nodes. Used by the solvers that compute the edges from the node indexes.
+ *
+ * Nodes are addressed by their position in their surface p = x + y*Width + z*Slice, where z is the slice of the node
+ * in the graph (its altitude minus the column offset for band graphs, see ZSurfaceGraph).
+ *
+ */
+public class ImplicitGridTopology {
+
+
+	public final int[] fDx, fDy, fDz, fFrom, fTo;
+	public final long[] fZMin, fZMax;
+	public final float[] fCapacity, fReverseCapacity;
+	public final int[][] outFamilies; // for each surface, the families whose edges leave the surface nodes
+	public final int[][] inFamilies;  // for each surface, the families whose edges enter the surface nodes
+
+	public final long nNodes;
+	public final long nNodes_perSurf;
+	public final long Width;
+	public final long Height;
+	public final long Slice;
+	public final long Depth;
+	private final int[] zOffset; // altitude of the first slice of each column, null if the graph is not a band
+
+
+
+	public ImplicitGridTopology(ZSurfaceGraph graph)
+	{
+		long[] dims = graph.getDimensions();
+		Width = dims[0];
+		Height = dims[1];
+		Slice = dims[0]*dims[1];
+		Depth = dims[2];
+		zOffset = graph.getZOffsets();
+		nNodes_perSurf = graph.getNNodesPerSurface();
+		nNodes = graph.getNNodes();
+
+		int nSurf = graph.getNSurfaces();
+		int nFam = graph.getNFamilies();
+		fDx = new int[nFam]; fDy = new int[nFam]; fDz = new int[nFam]; fFrom = new int[nFam]; fTo = new int[nFam];
+		fZMin = new long[nFam]; fZMax = new long[nFam];
+		fCapacity = new float[nFam]; fReverseCapacity = new float[nFam];
+		for(int i=0; i<nFam; i++)
+		{
+			ZSurfaceGraph.EdgeFamily f = graph.getFamily(i);
+			fDx[i] = f.dx;
+			fDy[i] = f.dy;
+			fDz[i] = f.dz;
+			fFrom[i] = f.fromSurface;
+			fTo[i] = f.toSurface;
+			fZMin[i] = f.zMin;
+			fZMax[i] = f.zMax;
+			fCapacity[i] = f.capacity;
+			fReverseCapacity[i] = f.reverseCapacity;
+		}
+
+		outFamilies = new int[nSurf][];
+		inFamilies = new int[nSurf][];
+		for(int s=0; s<nSurf; s++)
+		{
+			int nOut=0, nIn=0;
+			for(int i=0; i<nFam; i++)
+			{	if(fFrom[i]==s) nOut++;
+				if(fTo[i]==s) nIn++;
+			}
+			outFamilies[s] = new int[nOut];
+			inFamilies[s] = new int[nIn];
+			nOut=0; nIn=0;
+			for(int i=0; i<nFam; i++)
+			{	if(fFrom[i]==s) outFamilies[s][nOut++] = i;
+				if(fTo[i]==s) inFamilies[s][nIn++] = i;
+			}
+		}
+	}
+
+
+
+	public int getNFamilies(){ return fDx.length;}
+
+
+
+	/**
+	 * @return the position of the head of the edge of family fi leaving the node at (x, y, z), or -1 if there is no such edge
+	 */
+	public long headPosition(int fi, long x, long y, long z)
+	{
+		long xh = x + fDx[fi];
+		long yh = y + fDy[fi];
+		if( xh<0 | xh>=Width | yh<0 | yh>=Height )
+			return -1;
+		long c = x + y*Width;
+		long ch = xh + yh*Width;
+		long altitude = z + zOffset(c);
+		if( altitude<fZMin[fi] | altitude>fZMax[fi] )
+			return -1;
+		long zh = altitude + fDz[fi] - zOffset(ch);
+		if( zh<0 | zh>=Depth )
+			return -1;
+		return ch + zh*Slice;
+	}
+
+
+
+	/**
+	 * @return the position of the tail of the edge of family fi entering the node at (x, y, z), or -1 if there is no such edge
+	 */
+	public long tailPosition(int fi, long x, long y, long z)
+	{
+		long xt = x - fDx[fi];
+		long yt = y - fDy[fi];
+		if( xt<0 | xt>=Width | yt<0 | yt>=Height )
+			return -1;
+		long c = x + y*Width;
+		long ct = xt + yt*Width;
+		long altitude = z + zOffset(c) - fDz[fi];
+		if( altitude<fZMin[fi] | altitude>fZMax[fi] )
+			return -1;
+		long zt = altitude - zOffset(ct);
+		if( zt<0 | zt>=Depth )
+			return -1;
+		return ct + zt*Slice;
+	}
+
+
+
+	private long zOffset(long column)
+	{
+		return zOffset==null ? 0 : zOffset[(int)column];
+	}
+
+}
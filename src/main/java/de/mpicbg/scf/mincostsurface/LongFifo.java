@@ -0,0 +1,91 @@
+package de.mpicbg.scf.mincostsurface;
+
+import java.util.ArrayDeque;
+
+
+/**
+ *
+ * First in first out queue of long values stored in fixed size chunks. Memory grows with the
+ * number of queued values only and emptied chunks are recycled.
+ *
+ */
+public class LongFifo {
+
+
+	private static final int CHUNK_SIZE = 1<<16;
+
+	private final ArrayDeque<long[]> chunks;
+	private final ArrayDeque<long[]> freeChunks;
+	private long[] head, tail;
+	private int headPos, tailPos;
+	private long size;
+
+
+
+	public LongFifo()
+	{
+		chunks = new ArrayDeque<long[]>();
+		freeChunks = new ArrayDeque<long[]>();
+		clear();
+	}
+
+
+
+	public long size(){ return size;}
+
+	public boolean isEmpty(){ return size==0;}
+
+
+
+	public void clear()
+	{
+		while( !chunks.isEmpty() )
+			freeChunks.push( chunks.poll() );
+		head = newChunk();
+		tail = head;
+		chunks.add(head);
+		headPos = 0;
+		tailPos = 0;
+		size = 0;
+	}
+
+
+
+	public void add(long value)
+	{
+		if( tailPos==CHUNK_SIZE )
+		{
+			tail = newChunk();
+			chunks.add(tail);
+			tailPos = 0;
+		}
+		tail[tailPos++] = value;
+		size++;
+	}
+
+
+
+	/**
+	 * @return the oldest value of the queue, the queue should not be empty
+	 */
+	public long poll()
+	{
+		if( headPos==CHUNK_SIZE )
+		{
+			freeChunks.push( chunks.poll() );
+			head = chunks.peek();
+			headPos = 0;
+		}
+		size--;
+		return head[headPos++];
+	}
+
+
+
+	private long[] newChunk()
+	{
+		long[] chunk = freeChunks.poll();
+		return chunk!=null ? chunk : new long[CHUNK_SIZE];
+	}
+
+}
@@ -0,0 +1,128 @@
+package de.mpicbg.scf.mincostsurface;
+
+import graphcut.Terminal;
+
+
+/**
+ *
+ * Common interface of the max-flow solvers that can be used by MinCostZSurface.Process()
+ *
+ * A solver receives the z-surface graph (terminal weights, edge families and possibly explicit edge arrays),
+ * computes the maximum flow between source and sink and then exposes the labelling of the nodes for the
+ * corresponding minimum cut. Whatever the solver, the cut energy (see ZSurfaceGraph.getCutEnergy) is equal
+ * to the returned max-flow value, MaxFlowConformanceTest checks this property for every solver type.
+ *
+ */
+public interface MaxFlowSolver {
+
+
+	/**
+	 * The solvers available in the plugin
+	 */
+	public static enum Type
+	{
+		GRAPH_CUT,     // Boykov-Kolmogorov solver of the Fiji Graph_Cut plugin, uses the explicit edge arrays
+		IMPLICIT_GRID, // push-relabel solver computing the edges from the node indexes
+		DUAL_DECOMPOSITION, // y-stripes solved in parallel with IMPLICIT_GRID and reconciled by dual decomposition
+		PARALLEL_PUSH_RELABEL; // multi-threaded lock-free push-relabel on the implicit graph
+
+		/**
+		 * @return true if the solver reads explicit edge arrays (the graph edges are otherwise never stored)
+		 */
+		public boolean usesEdgeArrays()
+		{
+			return this==GRAPH_CUT;
+		}
+
+		/**
+		 * @return true if the solver allocates its buffers in the storage given to setStorage(), i.e. it can keep them off the Java heap
+		 */
+		public boolean supportsOffHeapStorage()
+		{
+			return this==IMPLICIT_GRID | this==DUAL_DECOMPOSITION;
+		}
+
+		/**
+		 * @return true if the solver indexes nodes and edges with long, i.e. it can solve graphs with more than 2^31 nodes or edges
+		 */
+		public boolean supportsLargeGraphs()
+		{
+			return this!=GRAPH_CUT;
+		}
+
+		public MaxFlowSolver create()
+		{
+			switch(this)
+			{
+				case IMPLICIT_GRID:
+					return new ImplicitGridMaxFlow();
+				case DUAL_DECOMPOSITION:
+					return new DualDecompositionMaxFlow();
+				case PARALLEL_PUSH_RELABEL:
+					return new ParallelPushRelabelMaxFlow();
+				default: // GRAPH_CUT
+					return new GraphCutSolver();
+			}
+		}
+	}
+
+
+
+	/**
+	 * compute the maximum flow from the source to the sink of the graph
+	 *
+	 * @param graph the graph to solve
+	 * @return the value of the maximum flow
+	 */
+	public float computeMaximumFlow(ZSurfaceGraph graph);
+
+
+	/**
+	 * compute the maximum flow of a graph modified since the last computation (terminal weights or edge families,
+	 * see ZSurfaceGraph.setSurface()), starting from the flow of the last computation if the solver supports it.
+	 * The nodes of the graph should be the same as in the last computation.
+	 *
+	 * @param graph the modified graph
+	 * @return the value of the maximum flow
+	 */
+	public default float recomputeMaximumFlow(ZSurfaceGraph graph)
+	{
+		return computeMaximumFlow(graph);
+	}
+
+
+	/**
+	 * select where the solver allocates its per node and per edge buffers (see BigArrayStorage). Solvers whose
+	 * buffers are not BigFloatArray or BigIntArray (GRAPH_CUT, PARALLEL_PUSH_RELABEL) only accept the heap storage.
+	 *
+	 * @param storage the storage of the next computations
+	 * @throws IllegalArgumentException if the storage is off-heap and the solver keeps its buffers on the heap
+	 */
+	public default void setStorage(BigArrayStorage storage)
+	{
+		if( storage.isOffHeap() )
+			throw new IllegalArgumentException(getClass().getSimpleName() + " keeps its buffers on the Java heap, use IMPLICIT_GRID or DUAL_DECOMPOSITION with an off-heap storage");
+	}
+
+
+	/**
+	 * @return the result of the last maxflow computation
+	 */
+	public float getMaxFlow();
+
+
+	/**
+	 * @return true if node is on the source side of the minimum cut
+	 */
+	public boolean isSourceSide(long node);
+
+
+	/**
+	 * @return the terminal of node after the minimum cut, following graphcut.GraphCut conventions
+	 */
+	public default Terminal getTerminal(long node)
+	{
+		return isSourceSide(node) ? Terminal.FOREGROUND : Terminal.BACKGROUND;
+	}
+
+}
@@ -7,8 +7,8 @@ import net.imagej.ImageJ;
 import net.imagej.ops.Op;
 import net.imagej.ops.AbstractOp;
 
-import net.imglib2.Cursor;
 import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
@@ -48,6 +48,18 @@ public class MinCost2ZSurface_Ops < T extends RealType<T> & NativeType< T > > ex
     @Parameter ( label = "relative weight", required=false, persist=false ) // multiplicative factor that balance the intensity in both surfaces allowing better detection 
     private float relativeIntensity = 1f ;
     
+    @Parameter ( label = "max-flow solver", choices = {"GRAPH_CUT", "IMPLICIT_GRID", "DUAL_DECOMPOSITION", "PARALLEL_PUSH_RELABEL"}, required = false, persist = false ) // see MaxFlowSolver.Type
+    private String solver = "GRAPH_CUT";
+    
+    @Parameter ( label = "downsampling", choices = {"Gaussian", "Area"}, required = false, persist = false ) // see img_utils.Downsampling, Area is cheaper for strong rescaling
+    private String downsampling = "Gaussian";
+    
+    @Parameter ( label = "coarse to fine (pyramid)", required = false, persist = false ) // solve at the rescaled size, then up to full resolution in a band around the upsampled surfaces, see PyramidZSurface
+    private boolean pyramid = false;
+    
+    @Parameter ( label = "pyramid band half-width (in pixel)", required = false, persist = false ) // slices searched above and below the upsampled surfaces
+    private int bandHalfWidth = 4;
+    
     // parameter for the use case with 2 surfaces detection
    	
     @Parameter( label = "Max_distance between surfaces (in pixel)" )
@@ -99,16 +111,44 @@ public class MinCost2ZSurface_Ops < T extends RealType<T> & NativeType< T > > ex
 		long[] dims_orig = new long[nDim];
 		input.dimensions( dims_orig );
 		
-		Img<T> image_cost_orig = input.copy();
+		if( pyramid )
+		{
+			// max_dz and the distances are given at the rescaled size, keep the same slope and distances at each level
+			final float slope = max_dz * downsample_factor_xy / downsample_factor_z;
+			PyramidZSurface<T> pyramidSolver = new PyramidZSurface<T>( (detector, cost, factor_xy, factor_z) -> {
+					int level_dz = PyramidZSurface.scaledDistance(slope * factor_z / factor_xy);
+					float zScale = factor_z / downsample_factor_z;
+					return detector.Create_Surface_Graph(cost, level_dz)
+							&& detector.Create_Surface_Graph(cost, level_dz, relativeIntensity)
+							&& detector.Add_NoCrossing_Constraint_Between_Surfaces(1, 2, (int)Math.floor(min_dist * zScale + 0.001f), PyramidZSurface.scaledDistance(max_dist * zScale));
+				}, 2);
+			pyramidSolver.setSolverType( MaxFlowSolver.Type.valueOf(solver) );
+			pyramidSolver.setBandHalfWidth( bandHalfWidth );
+			pyramidSolver.setDownsampling( img_utils.Downsampling.valueOf(downsampling) );
+			
+			upsampled_depthMap1 = new ArrayImgFactory< FloatType >().create( new long[] { dims_orig[0], dims_orig[1]}, new FloatType() );
+			upsampled_depthMap2 = new ArrayImgFactory< FloatType >().create( new long[] { dims_orig[0], dims_orig[1]}, new FloatType() );
+			start = System.currentTimeMillis();
+			if( !pyramidSolver.process( input, downsample_factor_xy, downsample_factor_z, upsampled_depthMap1, upsampled_depthMap2 ) )
+			{
+				System.err.println("The problem of a pyramid level could not be built or solved");
+				return;
+			}
+			end = System.currentTimeMillis();
+			System.out.println("...done solving " + pyramidSolver.getNLevels() + " pyramid levels, " + pyramidSolver.getNRefinements() + " band widenings. (" + (end - start) + "ms)");
+			System.out.println("processing done");
+			return;
+		}
 		
 		///////////////////////////////////////////////////////////////////////////////////////////////////
 		// downsampling the input image ///////////////////////////////////////////////////////////////////
-		Img<T> image_cost_ds = img_utils.downsample(image_cost_orig, new float[] {downsample_factor_xy, downsample_factor_xy, downsample_factor_z});
+		Img<T> image_cost_ds = img_utils.downsample(input, new float[] {downsample_factor_xy, downsample_factor_xy, downsample_factor_z}, img_utils.Downsampling.valueOf(downsampling));
 		
 		
 		///////////////////////////////////////////////////////////////////////////////////////////////////
 		// creating a surface detector solver instance  ///////////////////////////////////////////////////
 		MinCostZSurface<T> ZSurface_detector = new MinCostZSurface<T>();
+		ZSurface_detector.setSolverType( MaxFlowSolver.Type.valueOf(solver) );
 		
 		
 		///////////////////////////////////////////////////////////////////////////////////////////////////
@@ -133,6 +173,8 @@ public class MinCost2ZSurface_Ops < T extends RealType<T> & NativeType< T > > ex
 		
 		end = System.currentTimeMillis();
 		System.out.println("...done. Max flow is " + maxFlow + ". (" + (end - start) + "ms)");
+		if( ZSurface_detector.getProcessedSolverType() != MaxFlowSolver.Type.valueOf(solver) )
+			System.out.println("the graph has more than 2^31 nodes or edges, it was solved with " + ZSurface_detector.getProcessedSolverType() + " instead of " + solver);
 		
 		
 		/////////////////////////////////////////////////////////////////////////////////////////////
@@ -141,21 +183,13 @@ public class MinCost2ZSurface_Ops < T extends RealType<T> & NativeType< T > > ex
 		Img<FloatType> depth_map1 =  ZSurface_detector.get_Altitude_Map(1);
 		Img<FloatType> depth_map2 =  ZSurface_detector.get_Altitude_Map(2);
 		
-		upsampled_depthMap1 = img_utils.upsample(depth_map1, new long[] { dims_orig[0], dims_orig[1]}, img_utils.Interpolator.Linear );
-		upsampled_depthMap2 = img_utils.upsample(depth_map2, new long[] { dims_orig[0], dims_orig[1]}, img_utils.Interpolator.Linear );
+		upsampled_depthMap1 = img_utils.upsample(depth_map1, new long[] { dims_orig[0], dims_orig[1]}, img_utils.Interpolator.Linear, 1/ downsample_factor_z, 0 );
+		upsampled_depthMap2 = img_utils.upsample(depth_map2, new long[] { dims_orig[0], dims_orig[1]}, img_utils.Interpolator.Linear, 1/ downsample_factor_z, 0 );
 		
 		//ImageJFunctions.show( depth_map1, "altitude map1" );
 		//ImageJFunctions.show( depth_map2, "altitude map2" );
 		
 		
-		Cursor<FloatType> up_map_cursor1 = upsampled_depthMap1.cursor();
-		Cursor<FloatType> up_map_cursor2 = upsampled_depthMap2.cursor();
-		while(up_map_cursor1.hasNext())
-		{
-			up_map_cursor1.next().mul(1/ downsample_factor_z);
-			up_map_cursor2.next().mul(1/ downsample_factor_z);
-		}
-		
 		
 		//IJ.log("creating z surface reslice" );
 		//outputExcerpt1 = img_utils.ZSurface_reslice(image_orig, upsampled_depthMap1, output_height/2, output_height/2);
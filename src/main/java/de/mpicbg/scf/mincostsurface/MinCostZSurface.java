@@ -1,24 +1,30 @@
 package de.mpicbg.scf.mincostsurface;
 
-import java.util.ArrayList;
-import java.util.List;
 
 import net.imglib2.Cursor;
+import net.imglib2.FinalDimensions;
+import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
-import net.imglib2.img.array.ArrayImgFactory;
-import net.imglib2.outofbounds.OutOfBounds;
-import net.imglib2.outofbounds.OutOfBoundsConstantValueFactory;
-import net.imglib2.outofbounds.OutOfBoundsFactory;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.multithreading.SimpleMultiThreading;
+import net.imglib2.position.FunctionRandomAccessible;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.NumericType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
-import graphcut.GraphCut;
-import graphcut.Terminal;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
 
 //import graphcut_algo.GraphCut;
 //import graphcut_algo.Terminal;
@@ -47,6 +53,20 @@ import graphcut.Terminal;
  * 
  * The mincut maxflow problem is solved using the GraphCut solver implemented in FIJI Graph_Cut plugin by Jan Funke:
  * http://fiji.sc/Graph_Cut  
+ * Other solvers can be selected with setSolverType() or Process(MaxFlowSolver.Type), see MaxFlowSolver. 
+ * With setImplicitGraph(true), the edges are not stored and solvers compute the edges of the regular z-surface graph
+ * from the node indexes (see ZSurfaceGraph). 
+ * Graphs with more than 2^31 nodes or edges are switched automatically to a large graph mode: the graph is kept implicit,
+ * nodes are indexed with long and a solver supporting such graphs is used (see isLargeGraph()).
+ * With setBand(), the graphs are only built in a band of slices around a prior altitude of the surfaces, which
+ * reduces the number of nodes from depth x width x height to band depth x width x height.
+ * With setStorage(), the graph is kept implicit and its terminal weights and the buffers of the IMPLICIT_GRID and
+ * DUAL_DECOMPOSITION solvers are kept off the Java heap.
+ * ZSurfaceEstimator predicts the size of the graphs, the memory and the time of Process() before they are built.
+ * After Process(), a surface graph or a constraint can be replaced with the Update_ methods and the problem solved
+ * again with Reprocess(), which restarts from the previous flow when the solver supports it.
+ * For a batch of volumes with the same dimensions, Refill_Surface_Graph() rewrites the terminal weights of the
+ * graph built for the first volume and Process() reuses its solver, so the graph is built only once.
  * 
  * To use the class:
  * 1. Create surface graph for each surface  (each cost image should have the same dimensions)
@@ -67,12 +87,19 @@ public class MinCostZSurface < T extends RealType<T> & NumericType< T > & Native
 
 	private int n_surface;
 	private long[] dimensions;
-	private GraphCut graphCut_Solver;
+	private MaxFlowSolver solver;
+	private MaxFlowSolver.Type processedType; // type of the solver created by the last Process(), null if it was given
+	private MaxFlowSolver.Type solverType;
+	private ZSurfaceGraph graph;
+	private boolean implicitGraph;
+	private boolean largeGraph;
+	private int[] bandLow;   // lowest and highest altitude allowed in each column, null if the whole volume is used
+	private int[] bandHigh;
+	private int[] zOffset;   // altitude of the first slice of the band in each column
+	private long bandDepth;
 	private float infiniteWeight = 1000000.0f;
 	private float zeroWeight = 0.0f;
-	private List<int[][]> graphs_edges;
-	private List<float[][]> graphs_edges_weights;
-	private List<float[][]> graphs_terminal_weights;
+	private BigArrayStorage storage = BigArrayStorage.HEAP;
 	private boolean isProcessed;
 	private float maxFlow;
 	
@@ -81,12 +108,10 @@ public class MinCostZSurface < T extends RealType<T> & NumericType< T > & Native
 	public MinCostZSurface()
 	{
 		n_surface = 0;
-		graphs_edges= new ArrayList<int[][]>();
-		graphs_edges_weights = new ArrayList<float[][]>();
-		graphs_terminal_weights = new ArrayList<float[][]>();
 		isProcessed = false;
 		maxFlow = 0 ;
-		
+		implicitGraph = false;
+		largeGraph = false;
 		
 	}
 	
@@ -105,46 +130,255 @@ public class MinCostZSurface < T extends RealType<T> & NumericType< T > & Native
 	public float getMaxFlow(){ return maxFlow;}
 
 
+	/**
+	 * If true, the surface graphs and constraints are only stored as terminal weights and edge families
+	 * (see ZSurfaceGraph). By default Process() then uses the ImplicitGridMaxFlow solver instead of GraphCut.
+	 * This should be set before the first graph is created.
+	 *
+	 * @param implicitGraph true to avoid storing the graph edges
+	 */
+	public void setImplicitGraph(boolean implicitGraph){ this.implicitGraph = implicitGraph | isBand() | storage.isOffHeap();}
+
+
+	/**
+	 * @return true if the graph edges are computed on the fly rather than stored
+	 */
+	public boolean isImplicitGraph(){ return implicitGraph;}
+
+
+	/**
+	 * Restrict the surfaces to a band of altitudes: in the column (x, y) the surfaces altitude will be searched in
+	 * [zLow(x,y), zHigh(x,y)] and only the nodes of these altitudes are built. The band depth is the maximum of
+	 * zHigh-zLow over the columns (the band is shifted inside the volume where needed), the graph is implicit and 
+	 * the maximum flow does not include the weights of the nodes outside the band. The nodes of a column are numbered
+	 * with their slice in the band, x + y*Width + (z-zOffset)*Slice, so a band graph has width x height x band depth 
+	 * nodes per surface. The band is shared by all the surfaces and constraints, so this should be set before the 
+	 * first graph is created (afterward the band of the first graph is kept if it contains the new one).
+	 * 
+	 * @param zLow 2D map of the lowest altitude of the surfaces, with the same xy dimensions as the cost images
+	 * @param zHigh 2D map of the highest altitude of the surfaces
+	 * @return false if a graph was already created and its band does not contain the new one
+	 */
+	public < R extends RealType<R> > boolean setBand(RandomAccessibleInterval<R> zLow, RandomAccessibleInterval<R> zHigh)
+	{
+		float[] low = readColumns(zLow);
+		float[] high = readColumns(zHigh);
+		int[] bandLow = new int[low.length];
+		int[] bandHigh = new int[low.length];
+		for(int idx=0; idx<low.length; idx++)
+		{
+			bandLow[idx] = (int)Math.floor( low[idx] );
+			bandHigh[idx] = (int)Math.ceil( high[idx] );
+		}
+		return setBand(bandLow, bandHigh);
+	}
+	
+	
+	private boolean setBand(int[] low, int[] high)
+	{
+		if( graph == null )
+		{
+			bandLow = low;
+			bandHigh = high;
+			zOffset = null;
+			implicitGraph = true;
+			return true;
+		}
+		
+		// the graph is already created, its band is kept if it contains the new one
+		if( low.length != dimensions[0]*dimensions[1] )
+			return false;
+		long Depth = graph.getDimensions()[2];
+		for(int idx=0; idx<low.length; idx++)
+		{
+			long z0 = graph.getZOffset(idx);
+			if( Math.max(low[idx], 0) < z0 | Math.min(high[idx], dimensions[2]) > z0+Depth )
+				return false;
+		}
+		return true;
+	}
+	
+	
+	/**
+	 * @return the values of a 2D map, indexed by x + y*Width
+	 */
+	private static < R extends RealType<R> > float[] readColumns(RandomAccessibleInterval<R> map)
+	{
+		long Width = map.dimension(0);
+		float[] values = new float[(int)(Width*map.dimension(1))];
+		RandomAccess< R > mapRA = map.randomAccess();
+		long[] position = new long[2];
+		for(int idx=0; idx<values.length; idx++)
+		{
+			position[0] = idx%Width;
+			position[1] = idx/Width;
+			mapRA.setPosition( position );
+			values[idx] = mapRA.get().getRealFloat();
+		}
+		return values;
+	}
+
+
+	/**
+	 * @return true if the graphs are restricted to a band of altitudes (see setBand())
+	 */
+	public boolean isBand(){ return bandLow!=null;}
+
+
+	/**
+	 * @return true if the graph has more than 2^31 nodes or edges. The graph is then always implicit and
+	 * Process() uses a solver indexing nodes with long (IMPLICIT_GRID if the selected solver can not)
+	 */
+	public boolean isLargeGraph(){ return largeGraph;}
+
+
+	/**
+	 * Select where the terminal weights of the graphs and the buffers of the IMPLICIT_GRID and DUAL_DECOMPOSITION
+	 * solvers are allocated, e.g. BigArrayStorage.mapped(scratchDirectory) to solve graphs larger than the Java heap.
+	 * An off-heap storage switches the instance to the implicit graph mode, since the edge arrays would stay on the
+	 * heap, and Process() then uses IMPLICIT_GRID unless another off-heap solver is selected. The GRAPH_CUT and
+	 * PARALLEL_PUSH_RELABEL solvers keep their buffers on the heap and are rejected with an off-heap storage.
+	 * This should be set before the first graph is created.
+	 *
+	 * @param storage the storage of the graph and solver arrays, BigArrayStorage.HEAP by default
+	 * @throws IllegalArgumentException if the storage is off-heap and the selected solver does not support it
+	 */
+	public void setStorage(BigArrayStorage storage)
+	{
+		if( storage.isOffHeap() && solverType!=null && !solverType.supportsOffHeapStorage() )
+			throw new IllegalArgumentException("the solver " + solverType + " keeps its buffers on the Java heap, use IMPLICIT_GRID or DUAL_DECOMPOSITION with an off-heap storage");
+		this.storage = storage;
+		implicitGraph |= storage.isOffHeap();
+	}
+
+	public BigArrayStorage getStorage(){ return storage;}
+
+
+	/**
+	 * Select the max-flow solver used by Process(). Solvers which do not read the edge arrays also switch the 
+	 * instance to the implicit graph mode, so this should be set before the first graph is created.
+	 * 
+	 * @param solverType the solver to use
+	 * @throws IllegalArgumentException if the storage is off-heap and the solver does not support it (see setStorage())
+	 */
+	public void setSolverType(MaxFlowSolver.Type solverType)
+	{
+		if( storage.isOffHeap() & !solverType.supportsOffHeapStorage() )
+			throw new IllegalArgumentException("the solver " + solverType + " keeps its buffers on the Java heap, use IMPLICIT_GRID or DUAL_DECOMPOSITION with an off-heap storage");
+		this.solverType = solverType;
+		implicitGraph = largeGraph | isBand() | storage.isOffHeap() | !solverType.usesEdgeArrays();
+	}
+
+
+	/**
+	 * @return the solver used by Process()
+	 */
+	public MaxFlowSolver.Type getSolverType()
+	{
+		if( solverType != null )
+			return solverType;
+		return implicitGraph ? MaxFlowSolver.Type.IMPLICIT_GRID : MaxFlowSolver.Type.GRAPH_CUT;
+	}
+
+
+	/**
+	 * @return the solver used by the last Process(), IMPLICIT_GRID if the selected solver can not solve a large graph
+	 * (see isLargeGraph()). null if the last Process() was given a solver instance or before the first Process()
+	 */
+	public MaxFlowSolver.Type getProcessedSolverType(){ return processedType;}
+
+
+	/**
+	 * @return the energy of the cut found by the last Process(), i.e. the sum of the weights of the cut edges.
+	 * it is equal to getMaxFlow() up to rounding errors and returns 0 before the process() method is used
+	 */
+	public double getCutEnergy()
+	{
+		if( !isProcessed )
+			return 0;
+		return graph.getCutEnergy( solver::isSourceSide );
+	}
+
+
 	/**
 	 * This methods solve the maxFlow problem for the surfaces defined and the inter-surface constraints
+	 * using the solver selected with setSolverType() (GraphCut by default)
 	 *  
 	 * @return
 	 */
 	public boolean Process()
+	{
+		return Process( getSolverType() );
+	}
+	
+	
+	/**
+	 * This methods solve the maxFlow problem for the surfaces defined and the inter-surface constraints
+	 *  
+	 * @param type the max-flow solver to use
+	 * @return
+	 */
+	public boolean Process(MaxFlowSolver.Type type)
 	{
 		if( n_surface<=0)
 			return false;
 		
+		// see getProcessedSolverType()
+		if( largeGraph & !type.supportsLargeGraphs() )
+			type = MaxFlowSolver.Type.IMPLICIT_GRID;
 		
-		// determine the number of nodes (except terminal nodes)
-		int nNodes = (int)(n_surface*dimensions[0]*dimensions[1]*dimensions[2]);
+		// the solver of the last call is kept with its buffers, e.g. to solve refilled graphs (see Refill_Surface_Graph)
+		if( solver==null || type!=processedType )
+			solver = type.create();
+		boolean isOk = Process( solver );
+		processedType = type;
 		
-		// determine the number of edges in the graph (except edges from or to terminals)
-		int nEdges = 0;
-		for(int i=0; i<graphs_edges.size(); i++)
-			nEdges += graphs_edges.get(i)[0].length;
-				
-		// instanciate the solver
-		graphCut_Solver = new GraphCut( nNodes, nEdges );
-		
-		// feed the graphcut solver with the surface graphs and surfaces constraints
-		for(int i=0; i<graphs_edges.size(); i++)
-		{
-			int[][] edges = graphs_edges.get(i);
-			float[][] ws = graphs_edges_weights.get(i);
-			for( int j=0; j<edges[0].length; j++) 
-				graphCut_Solver.setEdgeWeight(edges[0][j], edges[1][j], ws[0][j], ws[1][j]);
-		}
+		return isOk;
+	}
+	
+	
+	/**
+	 * This methods solve the maxFlow problem with a given solver instance. A solver can be shared by detectors
+	 * solved one after another, e.g. the frames of a time-lapse: the implicit solvers then reuse their buffers
+	 * when the graphs have the same size. The solver should support large graphs if isLargeGraph() is true.
+	 *  
+	 * @param solver the max-flow solver to use
+	 * @return
+	 */
+	public boolean Process(MaxFlowSolver solver)
+	{
+		if( n_surface<=0)
+			return false;
 		
-		for(int i=0; i<graphs_terminal_weights.size(); i++)
-		{
-			float[][] tw = graphs_terminal_weights.get(i);
-			for( int j=0; j<tw[0].length; j++)
-				graphCut_Solver.setTerminalWeights(j+i*nNodes/n_surface, tw[0][j], tw[1][j]);	
-		}
+		this.solver = solver;
+		processedType = null;
 		
 		// Solve the mincut maxflow problem
-		maxFlow = graphCut_Solver.computeMaximumFlow(false, null);
+		solver.setStorage( storage );
+		maxFlow = solver.computeMaximumFlow( graph );
+		
+		isProcessed = true;
+		
+		return true;
+	}
+	
+	
+	/**
+	 * This methods solve again the maxFlow problem after the graph was modified with the Update_ methods.
+	 * The solver of the last Process() starts from its previous flow when it supports it (IMPLICIT_GRID,
+	 * see MaxFlowSolver.recomputeMaximumFlow()), so that a small change of the parameters is solved much
+	 * faster than a new graph. Before the first Process() it is the same as Process().
+	 *  
+	 * @return
+	 */
+	public boolean Reprocess()
+	{
+		if( n_surface<=0)
+			return false;
+		if( solver==null )
+			return Process();
+		
+		maxFlow = solver.recomputeMaximumFlow( graph );
 		
 		isProcessed = true;
 		
@@ -160,6 +394,76 @@ public class MinCostZSurface < T extends RealType<T> & NumericType< T > & Native
 	}
 	
 	
+	/**
+	 * This method build the graph of a surface searched in a band of altitudes around a prior altitude map, e.g. the 
+	 * surface found in the previous time point or a quick threshold. The altitude in the column (x,y) is searched in 
+	 * [zPrior(x,y) - halfWidth(x,y), zPrior(x,y) + halfWidth(x,y)] and only the voxels of the band are read and turned
+	 * into nodes (see setBand()). The band is set by the first surface graph, the bands of the next surfaces should be
+	 * contained in it.
+	 * 
+	 * @param image_cost cost function 
+	 * @param max_dz maximum altitude variation between 2 pixels
+	 * @param factor positive multiplicative value to make intensity in both surfaces look similar
+	 * @param zPrior 2D map of the expected altitude of the surface, with the same xy dimensions as image_cost
+	 * @param halfWidth 2D map of the number of slices searched above and below the prior altitude
+	 * @return false if the inputs are invalid or if the band is not contained in the band of the first surface
+	 */
+	public < R extends RealType<R>, S extends RealType<S> > boolean Create_Surface_Graph(Img<T> image_cost, int max_dz, float factor, RandomAccessibleInterval<R> zPrior, RandomAccessibleInterval<S> halfWidth)
+	{
+		float[] prior = readColumns(zPrior);
+		float[] width = readColumns(halfWidth);
+		int[] low = new int[prior.length];
+		int[] high = new int[prior.length];
+		for(int idx=0; idx<prior.length; idx++)
+		{
+			low[idx] = (int)Math.floor( prior[idx] - width[idx] );
+			high[idx] = (int)Math.ceil( prior[idx] + width[idx] );
+		}
+		if( !setBand(low, high) )
+			return false;
+		return Create_Surface_Graph( image_cost, max_dz, factor);
+	}
+	
+	
+	/**
+	 * Same as above with the same band half width in every column
+	 */
+	public < R extends RealType<R> > boolean Create_Surface_Graph(Img<T> image_cost, int max_dz, float factor, RandomAccessibleInterval<R> zPrior, int halfWidth)
+	{
+		float[] prior = readColumns(zPrior);
+		int[] low = new int[prior.length];
+		int[] high = new int[prior.length];
+		for(int idx=0; idx<prior.length; idx++)
+		{
+			low[idx] = (int)Math.floor( prior[idx] - halfWidth );
+			high[idx] = (int)Math.ceil( prior[idx] + halfWidth );
+		}
+		if( !setBand(low, high) )
+			return false;
+		return Create_Surface_Graph( image_cost, max_dz, factor);
+	}
+	
+	
+	/**
+	 * This method build the graph of a surface searched between a lower and an upper altitude map, only the voxels 
+	 * in between are read and turned into nodes (see setBand()). The band is set by the first surface graph, the 
+	 * bands of the next surfaces should be contained in it.
+	 * 
+	 * @param image_cost cost function 
+	 * @param max_dz maximum altitude variation between 2 pixels
+	 * @param factor positive multiplicative value to make intensity in both surfaces look similar
+	 * @param zLow 2D map of the lowest altitude of the surface, with the same xy dimensions as image_cost
+	 * @param zHigh 2D map of the highest altitude of the surface
+	 * @return false if the inputs are invalid or if the band is not contained in the band of the first surface
+	 */
+	public < R extends RealType<R> > boolean Create_Surface_Graph_In_Band(Img<T> image_cost, int max_dz, float factor, RandomAccessibleInterval<R> zLow, RandomAccessibleInterval<R> zHigh)
+	{
+		if( !setBand(zLow, zHigh) )
+			return false;
+		return Create_Surface_Graph( image_cost, max_dz, factor);
+	}
+	
+	
 	/**
 	 * This method build the graph to detect a minimum cost surface in a cost volumes and with a constraints on altitude variation
 	 * 
@@ -189,127 +493,101 @@ public class MinCostZSurface < T extends RealType<T> & NumericType< T > & Native
 		}
 		if( max_dz<0 )
 			isOk= false;
+		if( isBand() & isOk && bandLow.length != dimensions[0]*dimensions[1] )
+			isOk= false;
 		
 		if(!isOk)
 			return false;
 		
+		if( isBand() & zOffset==null )
+			initBand();
+		
 		////////////////////////////////////////////////////////////////////////////////////////////
 		// define surface graph edges using image_cost for the weights /////////////////////////////
 		
 			
 		long Width = dimensions[0];
 		long Slice = dimensions[0]*dimensions[1];
-		long nNodes_perSurf = dimensions[0]*dimensions[1]*dimensions[2];
-		long nEdges = (dimensions[2]-1)*Slice + (dimensions[2]-max_dz-1) * 2 * ((dimensions[1]-1)*dimensions[0]  + dimensions[1]*(dimensions[0]-1) ) ;
-
+		long Depth = isBand() ? bandDepth : dimensions[2];
+		long nNodes_perSurf = Slice*Depth;
+		long nEdges = surfaceEdgeCount(dimensions, max_dz);
+		if( isBand() )
+			nEdges = 5*nNodes_perSurf; // upper bound
+		long nEdges_total = nEdges + (graph==null ? 0 : graph.getNEdges());
+		if( !largeGraph & ( (n_surface+1)*nNodes_perSurf > Integer.MAX_VALUE | nEdges_total > Integer.MAX_VALUE ) )
+			switchToLargeGraph();
+		if( implicitGraph )
+			nEdges = 0;
+		
 		int[][] Edges = new int[2][];
 		for(int i=0; i<2; i++){  Edges[i] = new int[(int)nEdges];  }
 		float[][] Edges_weights = new float[2][];
 		for(int i=0; i<2; i++){  Edges_weights[i] = new float[(int)nEdges];  }
-		float[][] Terminal_weights = new float[2][];
-		for(int i=0; i<2; i++){  Terminal_weights[i] = new float[(int)nNodes_perSurf];  }
-		
-		int EdgeCount = 0;
-		
-		
-		// defining the neighborhood //////////////////////////////////////////////////////////////
-		
-		// neighbor definition for planes z>0
-		int nNeigh = 5;
-		int[][] neigh_pos_to_current = new int[nNeigh][];
-		neigh_pos_to_current[0] = new int[] {-1, 0,-max_dz};
-		neigh_pos_to_current[1] = new int[] { 1, 0,-max_dz};
-		neigh_pos_to_current[2] = new int[] { 0,-1,-max_dz};
-		neigh_pos_to_current[3] = new int[] { 0, 1,-max_dz};
-		neigh_pos_to_current[4] = new int[] { 0, 0,-1};
-		
-		long[] neigh_offset_to_current = new long[nNeigh];
-		for(int i = 0; i<nNeigh; i++)
-			neigh_offset_to_current[i] = neigh_pos_to_current[i][0] + neigh_pos_to_current[i][1] * Width + neigh_pos_to_current[i][2] * Slice ;				                     
-		
-		int[][] neigh_pos_to_previous = new int[nNeigh][];
-		neigh_pos_to_previous[0] = neigh_pos_to_current[0]; 
-		for(int i = 1; i<nNeigh; i++)
-		{	neigh_pos_to_previous[i] = new int[nDim];
-			for (int j = 0; j<nDim; j++)
-				neigh_pos_to_previous[i][j] =  neigh_pos_to_current[i][j] -  neigh_pos_to_current[i-1][j];
-		}	
-		
-		// defining a factory to test out of bound conditions
-		T outOfBoundValue = image_cost.firstElement();
-		outOfBoundValue.setZero();
-		final OutOfBoundsFactory< T, RandomAccessibleInterval< T >> oobImageFactory =  new OutOfBoundsConstantValueFactory< T, RandomAccessibleInterval< T >>( outOfBoundValue );
-		final OutOfBounds< T > imagex = oobImageFactory.create( image_cost );
-		
-		
-		// iterator over the image pixels
-		Cursor<T> image_cursor = image_cost.cursor();
-		int[] position = new int[] {0,0,0};
-		long current_offset;
-		float w=0;
-		
-		
-		image_cursor.reset();
-		while ( image_cursor.hasNext() )
-        {	
-			image_cursor.fwd();
-			w = factor * image_cursor.get().getRealFloat();
-			image_cursor.localize(position);
-			long posIdx = position[0]+ position[1]*Width + position[2]*Slice;
-			current_offset = (n_surface)*nNodes_perSurf + posIdx;
-			imagex.setPosition(position);
-			
-			if (position[2]>max_dz)
-			{	for(int i =0; i<nNeigh; i++)
-				{
-					imagex.move(neigh_pos_to_previous[i]);
-					// go to the next neighbor if the current neighbor is out of bound
-					if (imagex.isOutOfBounds()){ continue;} 
-					// else set a new edge
-					//graphCut_Solver.setEdgeWeight( (int) current_offset, (int)current_offset + (int)neigh_offset_to_current[i], infiniteWeight, zeroWeight );
-					Edges[0][EdgeCount] = (int)current_offset;
-					Edges[1][EdgeCount] = (int)current_offset + (int)neigh_offset_to_current[i];
-					Edges_weights[0][EdgeCount] = infiniteWeight;
-					Edges_weights[1][EdgeCount] = zeroWeight;
-					EdgeCount++;
-				}
-				w -= factor * imagex.get().getRealFloat();
-			}
-			else if (position[2]>0)
-			{	
-				//graphCut_Solver.setEdgeWeight( (int)current_offset, (int)current_offset - (int)Slice, infiniteWeight, zeroWeight );
-				Edges[0][EdgeCount] = (int)current_offset;
-				Edges[1][EdgeCount] = (int)current_offset - (int)Slice;
-				Edges_weights[0][EdgeCount] = infiniteWeight;
-				Edges_weights[1][EdgeCount] = zeroWeight;
-				EdgeCount++;
-				
-				imagex.move(new int[] {0,0,-1}); // no need to test for out of bound here
-				w -= factor * imagex.get().getRealFloat();
-			}
-			else
-				w = -infiniteWeight;
+		BigFloatArray[] Terminal_weights = new BigFloatArray[2];
+		for(int i=0; i<2; i++){  Terminal_weights[i] = storage.floats(nNodes_perSurf);  }
+		
+		if( isBand() )
+		{
+			// only the voxels of the band are read, the edges are never stored
+			Fill_Terminal_Weights(image_cost, factor, Terminal_weights);
+			return Add_Surface_Graph(Terminal_weights, max_dz, Edges, Edges_weights);
+		}
+		
+		// the volume is cut in z-slabs filled in parallel. The edges of a voxel are stored in the order x, y, z of the
+		// voxels, each slice z>0 has a column edge per voxel and the slices z>max_dz also have the nLateral edges to
+		// the 4 neighbours inside the volume, so each slab knows where its edges start in the arrays
+		final long nLateral = 2 * ((dimensions[1]-1)*dimensions[0] + dimensions[1]*(dimensions[0]-1));
+		final long offset = n_surface*nNodes_perSurf;
+		final Object costs = getCostArray(image_cost);
+		parallelRanges( dimensions[2], (z0, z1) -> {
 			
-			// set edges to source and sink
-			if (w<0)
+			if( !implicitGraph )
 			{
-				Terminal_weights[0][(int)posIdx] = -w; 
-				Terminal_weights[1][(int)posIdx] = zeroWeight; 
-				//graphCut_Solver.setTerminalWeights( (int)current_offset, -w, zeroWeight); // as far as I understand set a link from source to current pixel
-			}
-			else if (w>0)
-			{
-				Terminal_weights[0][(int)posIdx] = zeroWeight; 
-				Terminal_weights[1][(int)posIdx] = w; 
-				//graphCut_Solver.setTerminalWeights( (int)current_offset, zeroWeight, w);
+				long EdgeCount = Math.max(0, z0-1)*Slice + Math.max(0, z0-max_dz-1)*nLateral;
+				int lateral = (int)(max_dz*Slice);
+				for(long z=Math.max(1, z0); z<z1; z++)
+					for(long y=0; y<dimensions[1]; y++)
+						for(long x=0; x<Width; x++)
+						{
+							int current_offset = (int)(offset + x + y*Width + z*Slice);
+							// lateral edges (-1,0,-max_dz), (1,0,-max_dz), (0,-1,-max_dz), (0,1,-max_dz) then the column edge (0,0,-1)
+							if( z>max_dz )
+							{
+								if( x>0 )
+									EdgeCount = setEdge(Edges, Edges_weights, EdgeCount, current_offset, current_offset - 1 - lateral);
+								if( x<Width-1 )
+									EdgeCount = setEdge(Edges, Edges_weights, EdgeCount, current_offset, current_offset + 1 - lateral);
+								if( y>0 )
+									EdgeCount = setEdge(Edges, Edges_weights, EdgeCount, current_offset, current_offset - (int)Width - lateral);
+								if( y<dimensions[1]-1 )
+									EdgeCount = setEdge(Edges, Edges_weights, EdgeCount, current_offset, current_offset + (int)Width - lateral);
+							}
+							EdgeCount = setEdge(Edges, Edges_weights, EdgeCount, current_offset, current_offset - (int)Slice);
+						}
 			}
 			
-        }
+			Fill_Terminal_Weights(image_cost, costs, factor, z0, z1, Terminal_weights);
+		});
 		
 		
-		graphs_edges.add(Edges);
-		graphs_edges_weights.add(Edges_weights);
-		graphs_terminal_weights.add(Terminal_weights);
+		return Add_Surface_Graph(Terminal_weights, max_dz, Edges, Edges_weights);
+	}
+	
+	
+	
+	/**
+	 * register the terminal weights and edges of a new surface in the graph
+	 */
+	private boolean Add_Surface_Graph(BigFloatArray[] Terminal_weights, int max_dz, int[][] Edges, float[][] Edges_weights)
+	{
+		if( graph == null & isBand() )
+			graph = new ZSurfaceGraph( new long[] {dimensions[0], dimensions[1], bandDepth}, zOffset, dimensions[2], infiniteWeight, zeroWeight );
+		else if( graph == null )
+			graph = new ZSurfaceGraph( dimensions, infiniteWeight, zeroWeight );
+		graph.setStorage( storage );
+		graph.addSurface( Terminal_weights, max_dz );
+		if( !implicitGraph )
+			graph.addEdgeArrays( Edges, Edges_weights );
 		// increment the number of surface set and return success of the operation
 		n_surface++;
 
@@ -319,6 +597,158 @@ public class MinCostZSurface < T extends RealType<T> & NumericType< T > & Native
 	
 	
 	
+	/**
+	 * Compute the terminal weights of the nodes of a surface: the node at altitude z receives 
+	 * factor*(cost(z) - cost(z-1)), as in Create_Surface_Graph. In a band the nodes are numbered 
+	 * with their slice in the band, node = x + y*Width + (z-zOffset)*Slice, and only the voxels of
+	 * the band are read.
+	 */
+	private void Fill_Terminal_Weights(Img<T> image_cost, float factor, BigFloatArray[] Terminal_weights)
+	{
+		if( !isBand() )
+		{
+			final Object costs = getCostArray(image_cost);
+			parallelRanges( dimensions[2], (z0, z1) -> Fill_Terminal_Weights(image_cost, costs, factor, z0, z1, Terminal_weights) );
+			return;
+		}
+		
+		long Width = dimensions[0];
+		long Slice = dimensions[0]*dimensions[1];
+		long Depth = bandDepth;
+		
+		// the columns are split between the threads
+		parallelRanges( Slice, (c0, c1) -> {
+			RandomAccess< T > image_RA = image_cost.randomAccess();
+			long[] position = new long[3];
+		
+			for(long idx=c0; idx<c1; idx++)
+			{
+				position[0] = idx%Width;
+				position[1] = idx/Width;
+				long z0 = zOffset[(int)idx];
+			
+				// cost of the slice below the band
+				float previous = 0;
+				if( z0>0 )
+				{
+					position[2] = z0-1;
+					image_RA.setPosition( position );
+					previous = factor * image_RA.get().getRealFloat();
+				}
+			
+				for(long k=0; k<Depth; k++)
+				{
+					position[2] = z0+k;
+					image_RA.setPosition( position );
+					float current = factor * image_RA.get().getRealFloat();
+					float w = position[2]>0 ? current - previous : -infiniteWeight;
+					previous = current;
+				
+					setTerminalWeights(Terminal_weights, idx + k*Slice, w);
+				}
+			}
+		});
+	}
+	
+	
+	
+	/**
+	 * Compute the terminal weights of the nodes of the slices [z0, z1) of a surface covering the whole volume.
+	 * 
+	 * @param costs the backing array of image_cost (see getCostArray()), the voxels are then read directly
+	 * in it rather than through a RandomAccess, null to use the RandomAccess
+	 */
+	private void Fill_Terminal_Weights(Img<T> image_cost, Object costs, float factor, long z0, long z1, BigFloatArray[] Terminal_weights)
+	{
+		int Slice = (int)(dimensions[0]*dimensions[1]);
+		long start = z0*Slice;
+		if( z0==0 )
+		{
+			for(int idx=0; idx<Slice; idx++)
+				setTerminalWeights(Terminal_weights, idx, -infiniteWeight);
+			start = Slice;
+		}
+		
+		// w = factor*cost(z) - factor*cost(z-1) over contiguous slices
+		if( costs instanceof byte[] )
+		{
+			byte[] c = (byte[])costs;
+			for(int idx=(int)start; idx<z1*Slice; idx++)
+				setTerminalWeights(Terminal_weights, idx, factor * (c[idx] & 0xff) - factor * (c[idx-Slice] & 0xff));
+		}
+		else if( costs instanceof short[] )
+		{
+			short[] c = (short[])costs;
+			for(int idx=(int)start; idx<z1*Slice; idx++)
+				setTerminalWeights(Terminal_weights, idx, factor * (c[idx] & 0xffff) - factor * (c[idx-Slice] & 0xffff));
+		}
+		else if( costs instanceof float[] )
+		{
+			float[] c = (float[])costs;
+			for(int idx=(int)start; idx<z1*Slice; idx++)
+				setTerminalWeights(Terminal_weights, idx, factor * c[idx] - factor * c[idx-Slice]);
+		}
+		else
+		{
+			long Width = dimensions[0];
+			RandomAccess< T > image_RA = image_cost.randomAccess();
+			long[] position = new long[3];
+			for(long idx=start; idx<z1*Slice; idx++)
+			{
+				position[0] = idx%Width;
+				position[1] = (idx%Slice)/Width;
+				position[2] = idx/Slice;
+				image_RA.setPosition( position );
+				float w = factor * image_RA.get().getRealFloat();
+				image_RA.bck( 2 );
+				w -= factor * image_RA.get().getRealFloat();
+				setTerminalWeights(Terminal_weights, idx, w);
+			}
+		}
+	}
+	
+	
+	
+	/**
+	 * set the source and sink weights of the node at posIdx from w = cost(z) - cost(z-1)
+	 */
+	private void setTerminalWeights(BigFloatArray[] Terminal_weights, long posIdx, float w)
+	{
+		if (w<0)
+		{
+			Terminal_weights[0].set(posIdx, -w); 
+			Terminal_weights[1].set(posIdx, zeroWeight); 
+		}
+		else
+		{
+			Terminal_weights[0].set(posIdx, zeroWeight); 
+			Terminal_weights[1].set(posIdx, w); 
+		}
+	}
+	
+	
+	
+	/**
+	 * @return the backing array of the cost image if it is an ArrayImg of UnsignedByteType (byte[]), UnsignedShortType (short[])
+	 * or FloatType (float[]), which are then read without going through the generic RealType interface, null otherwise
+	 */
+	private static Object getCostArray(Img<?> image_cost)
+	{
+		if( !(image_cost instanceof ArrayImg) )
+			return null;
+		Object type = image_cost.firstElement();
+		Object access = ((ArrayImg<?,?>)image_cost).update( null );
+		if( type instanceof UnsignedByteType && access instanceof ByteArray )
+			return ((ByteArray)access).getCurrentStorageArray();
+		if( type instanceof UnsignedShortType && access instanceof ShortArray )
+			return ((ShortArray)access).getCurrentStorageArray();
+		if( type instanceof FloatType && access instanceof FloatArray )
+			return ((FloatArray)access).getCurrentStorageArray();
+		return null;
+	}
+	
+	
+	
 	
 	
 	
@@ -340,71 +770,60 @@ public class MinCostZSurface < T extends RealType<T> & NumericType< T > & Native
 		if( surf1>n_surface | surf2>n_surface | surf2==surf1 | surf1<=0 | surf2<=0 | min_dist>max_dist | min_dist<0 )
 			return false;
 		
+		graph.addNoCrossingConstraint(surf1, surf2, min_dist, max_dist);
+		if( !largeGraph && graph.isLarge() )
+			switchToLargeGraph();
+		if( implicitGraph )
+			return true;
 		
 		//
 		long Slice = dimensions[0]*dimensions[1];
 		long nNodes_perSurf = dimensions[0]*dimensions[1]*dimensions[2];
-		long nEdges =  ( (dimensions[2]-min_dist) + (dimensions[2]-max_dist) ) * Slice;
+		long nEdges = noCrossingEdgeCount(dimensions, min_dist, max_dist);
 		
 		int[][] Edges = new int[2][];
 		for(int i=0; i<2; i++){  Edges[i] = new int[(int)nEdges];  }
 		float[][] Edges_weights = new float[2][];
 		for(int i=0; i<2; i++){  Edges_weights[i] = new float[(int)nEdges];  }
 		
-		int EdgeCount=0;
-		
-		
-		int idx1, idx2;
+		// the edges are stored in the order of the nodes of surface 1, the z-slabs of the volume are filled in parallel
+		// from the number of edges of the slices before them
+		final long Depth = dimensions[2];
 		if (max_dist==min_dist)
 		{
-			for(int idx = 0; idx<nNodes_perSurf; idx++) 
-			{	
-				int z = (int)(idx/Slice);
-				if (z > max_dist)
+			parallelRanges( Depth, (z0, z1) -> {
+				long EdgeCount = Math.max(0, z0-max_dist-1)*Slice;
+				for(long idx=Math.max(z0, max_dist+1)*Slice; idx<z1*Slice; idx++) 
 				{	
-					idx1 = (int) ((surf1-1)*nNodes_perSurf + idx) ;
-					idx2 = (int) ((surf2-1)*nNodes_perSurf + idx - max_dist * (int)Slice) ;
-					Edges[0][EdgeCount] = idx1;
-					Edges[1][EdgeCount] = idx2;
-					Edges_weights[0][EdgeCount] = infiniteWeight;
-					Edges_weights[1][EdgeCount] = infiniteWeight;
+					int idx1 = (int) ((surf1-1)*nNodes_perSurf + idx) ;
+					int idx2 = (int) ((surf2-1)*nNodes_perSurf + idx - max_dist * Slice) ;
+					Edges[0][(int)EdgeCount] = idx1;
+					Edges[1][(int)EdgeCount] = idx2;
+					Edges_weights[0][(int)EdgeCount] = infiniteWeight;
+					Edges_weights[1][(int)EdgeCount] = infiniteWeight;
 					EdgeCount++;
-					//graphCut_Solver.setEdgeWeight( idx1, idx2, infiniteWeight);
 				}
-			}
+			});
 		}
 		else
 		{
-			for(int idx=0; idx<nNodes_perSurf; idx++) 
-			{	
-				idx1 = (int)( (surf1-1)*nNodes_perSurf + idx);
-				idx2 = (int)( (surf2-1)*nNodes_perSurf + idx);
-				int z = (int)(idx/Slice);
-
-				if ( z > max_dist)
-				{	
-					Edges[0][EdgeCount] = idx1;
-					Edges[1][EdgeCount] = idx2 - max_dist * (int)Slice;
-					Edges_weights[0][EdgeCount] = infiniteWeight;
-					Edges_weights[1][EdgeCount] = zeroWeight;
-					EdgeCount++;
-					//graphCut_Solver.setEdgeWeight( idx1, idx2 - max_dist*(int)Slice, infiniteWeight, zeroWeight );
-				}
-				if ( z < ( dimensions[2]-min_dist ))
+			parallelRanges( Depth, (z0, z1) -> {
+				long EdgeCount = ( Math.max(0, z0-max_dist-1) + Math.min(z0, Depth-min_dist) )*Slice;
+				for(long idx=z0*Slice; idx<z1*Slice; idx++) 
 				{	
-					Edges[0][EdgeCount] = idx2;
-					Edges[1][EdgeCount] = idx1 + min_dist * (int)Slice;
-					Edges_weights[0][EdgeCount] = infiniteWeight;
-					Edges_weights[1][EdgeCount] = zeroWeight;
-					EdgeCount++;
-					//graphCut_Solver.setEdgeWeight( idx2, idx1 + min_dist*(int)Slice, infiniteWeight, zeroWeight );	
+					int idx1 = (int)( (surf1-1)*nNodes_perSurf + idx);
+					int idx2 = (int)( (surf2-1)*nNodes_perSurf + idx);
+					long z = idx/Slice;
+					
+					if ( z > max_dist)
+						EdgeCount = setEdge(Edges, Edges_weights, EdgeCount, idx1, idx2 - max_dist * (int)Slice);
+					if ( z < ( Depth-min_dist ))
+						EdgeCount = setEdge(Edges, Edges_weights, EdgeCount, idx2, idx1 + min_dist * (int)Slice);
 				}
-				
-			}
+			});
 		}
 		
-		graphs_edges.add(Edges);
-		graphs_edges_weights.add(Edges_weights);
+		graph.addEdgeArrays(Edges, Edges_weights);
 		
 		return true;
 	}
@@ -427,52 +846,311 @@ public class MinCostZSurface < T extends RealType<T> & NumericType< T > & Native
 		if( surf1>n_surface | surf2>n_surface | surf2==surf1 | surf1<=0 | surf2<=0 | max_up<0 | max_down<0 )
 			return false;
 		
+		graph.addCrossingConstraint(surf1, surf2, max_up, max_down);
+		if( !largeGraph && graph.isLarge() )
+			switchToLargeGraph();
+		if( implicitGraph )
+			return true;
+		
 		long Slice = dimensions[0]*dimensions[1];
 		long nNodes_perSurf = dimensions[0]*dimensions[1]*dimensions[2];
-		long nEdges =  ( (dimensions[2]-max_up) + (dimensions[2]-max_down) ) * Slice;
+		long nEdges = crossingEdgeCount(dimensions, max_up, max_down);
 		
 		int[][] Edges = new int[2][];
 		for(int i=0; i<2; i++){  Edges[i] = new int[(int)nEdges];  }
 		float[][] Edges_weights = new float[2][];
 		for(int i=0; i<2; i++){  Edges_weights[i] = new float[(int)nEdges];  }
 		
-		int EdgeCount=0;
+		// the edges are stored in the order of the nodes of surface 1, the z-slabs of the volume are filled in parallel
+		parallelRanges( dimensions[2], (z0, z1) -> {
+			long EdgeCount = ( Math.max(0, z0-max_up-1) + Math.max(0, z0-max_down-1) )*Slice;
+			for(long idx=z0*Slice; idx<z1*Slice; idx++) 
+			{	
+				int idx1 = (int)( (surf1-1)*nNodes_perSurf + idx);
+				int idx2 = (int)( (surf2-1)*nNodes_perSurf + idx);
+				long z = idx/Slice;
+				
+				if ( z > max_up)
+					EdgeCount = setEdge(Edges, Edges_weights, EdgeCount, idx1, idx2 - max_up * (int)Slice);
+				if ( z > max_down )
+					EdgeCount = setEdge(Edges, Edges_weights, EdgeCount, idx2, idx1 - max_down * (int)Slice);
+			}
+		});
 		
 		
-		int idx1, idx2;
+		graph.addEdgeArrays(Edges, Edges_weights);
 		
-		for(int idx=0; idx<nNodes_perSurf; idx++) 
-		{	
-			idx1 = (int)( (surf1-1)*nNodes_perSurf + idx);
-			idx2 = (int)( (surf2-1)*nNodes_perSurf + idx);
-			int z = (int)(idx/Slice);
-
-			if ( z > max_up)
-			{	
-				Edges[0][EdgeCount] = idx1;
-				Edges[1][EdgeCount] = idx2 - max_up * (int)Slice;
-				Edges_weights[0][EdgeCount] = infiniteWeight;
-				Edges_weights[1][EdgeCount] = zeroWeight;
-				EdgeCount++;
-				//graphCut_Solver.setEdgeWeight( idx1, idx2, infiniteWeight, zeroWeight );
-			}
-			if ( z < max_down )
-			{	
-				Edges[0][EdgeCount] = idx2;
-				Edges[1][EdgeCount] = idx1 - max_down * (int)Slice;
-				Edges_weights[0][EdgeCount] = infiniteWeight;
-				Edges_weights[1][EdgeCount] = zeroWeight;
-				EdgeCount++;
-				//graphCut_Solver.setEdgeWeight( idx2, idx1+ min_dist * (int)Slice, infiniteWeight, zeroWeight );	
-			}
-		}
+		return true;
+		
+	}
+	
+	
+	
+	
+	/**
+	 * This method rewrites the terminal weights of an existing surface from a new cost image with the same dimensions,
+	 * for instance the next volume of a batch. The edges only depend on the dimensions and max_dz, so the edge arrays,
+	 * the constraints between surfaces and the solver of the last Process() are kept and nothing is reallocated.
+	 * The pinned columns of the surface are lost. Call Process() afterward to solve the new problem.
+	 * 
+	 * @param Surf_Id the id of the surface (id starts at 1)
+	 * @param image_cost cost function, with the same dimensions as the first cost image
+	 * @param factor positive multiplicative value to make intensity in both surfaces look similar
+	 * @return false if the surface id or the cost image dimensions are invalid
+	 */
+	public boolean Refill_Surface_Graph(int Surf_Id, Img<T> image_cost, float factor)
+	{
+		if( Surf_Id>n_surface | Surf_Id<=0 | image_cost.numDimensions()!=3 )
+			return false;
+		for(int i=0; i<3; i++)
+			if( image_cost.dimension(i)!=dimensions[i] )
+				return false;
+		
+		Fill_Terminal_Weights(image_cost, factor, graph.getTerminalWeights(Surf_Id-1));
+		isProcessed = false;
+		
+		return true;
+	}
+	
+	
+	/**
+	 * Same as Refill_Surface_Graph(Surf_Id, image_cost, 1)
+	 */
+	public boolean Refill_Surface_Graph(int Surf_Id, Img<T> image_cost)
+	{
+		return Refill_Surface_Graph(Surf_Id, image_cost, 1);
+	}
+	
+	
+	/**
+	 * This method replaces the graph of an existing surface, e.g. to try another max_dz or relative intensity
+	 * factor, and keeps the rest of the graph. The edges are then only described implicitly (see ZSurfaceGraph) 
+	 * and the pinned columns of the surface are lost. Call Reprocess() afterward to solve the modified problem 
+	 * from the previous flow.
+	 * 
+	 * @param Surf_Id the id of the surface (id starts at 1)
+	 * @param image_cost cost function, with the same dimensions as the first cost image
+	 * @param max_dz maximum altitude variation between 2 pixels
+	 * @param factor positive multiplicative value to make intensity in both surfaces look similar
+	 * @return false if the surface id or the inputs are invalid
+	 */
+	public boolean Update_Surface_Graph(int Surf_Id, Img<T> image_cost, int max_dz, float factor)
+	{
+		if( Surf_Id>n_surface | Surf_Id<=0 | max_dz<0 | image_cost.numDimensions()!=3 )
+			return false;
+		for(int i=0; i<3; i++)
+			if( image_cost.dimension(i)!=dimensions[i] )
+				return false;
+		
+		BigFloatArray[] Terminal_weights = new BigFloatArray[2];
+		for(int i=0; i<2; i++){  Terminal_weights[i] = storage.floats(graph.getNNodesPerSurface());  }
+		Fill_Terminal_Weights(image_cost, factor, Terminal_weights);
+		
+		dropEdgeArrays();
+		graph.setSurface( Surf_Id-1, Terminal_weights, max_dz );
+		isProcessed = false;
+		
+		return true;
+	}
+	
+	
+	/**
+	 * This method replaces the constraints between 2 surfaces by a no crossing constraint (see 
+	 * Add_NoCrossing_Constraint_Between_Surfaces). Call Reprocess() afterward to solve the modified problem.
+	 * 
+	 * @return false if the surfaces ids or the distances are invalid
+	 */
+	public boolean Update_NoCrossing_Constraint_Between_Surfaces(int surf1, int surf2, int min_dist, int max_dist)
+	{
+		if( surf1>n_surface | surf2>n_surface | surf2==surf1 | surf1<=0 | surf2<=0 | min_dist>max_dist | min_dist<0 )
+			return false;
+		
+		dropEdgeArrays();
+		graph.setNoCrossingConstraint(surf1, surf2, min_dist, max_dist);
+		isProcessed = false;
+		
+		return true;
+	}
+	
+	
+	/**
+	 * This method replaces the constraints between 2 surfaces by a crossing constraint (see 
+	 * Add_Crossing_Constraint_Between_Surfaces). Call Reprocess() afterward to solve the modified problem.
+	 * 
+	 * @return false if the surfaces ids or the distances are invalid
+	 */
+	public boolean Update_Crossing_Constraint_Between_Surfaces(int surf1, int surf2, int max_up, int max_down)
+	{
+		if( surf1>n_surface | surf2>n_surface | surf2==surf1 | surf1<=0 | surf2<=0 | max_up<0 | max_down<0 )
+			return false;
 		
+		dropEdgeArrays();
+		graph.setCrossingConstraint(surf1, surf2, max_up, max_down);
+		isProcessed = false;
+		
+		return true;
+	}
+	
+	
+	
+	/**
+	 * the explicit edge arrays can not follow the graph updates: drop them, the solvers will 
+	 * enumerate the edge families instead
+	 */
+	private void dropEdgeArrays()
+	{
+		implicitGraph = true;
+		graph.clearEdgeArrays();
+	}
+	
+	
+	
+	/**
+	 * This method forces the altitude of surface Surf_Id at pixel (x,y): the node just below the altitude is tied to the 
+	 * source and the node at the altitude is tied to the sink with infinite weights. It is used to solve a part of a volume 
+	 * with a boundary fixed by an earlier solution, it should be called after the graph of the surface is created and 
+	 * before Process().
+	 * 
+	 * @param Surf_Id the id of the surface (id starts at 1)
+	 * @param x the column position
+	 * @param y the row position
+	 * @param altitude the altitude of the surface in that column, in [1, depth]
+	 * @return false if the surface id, the position or the altitude is invalid (or outside the band, see setBand())
+	 */
+	public boolean Pin_Surface_Column(int Surf_Id, long x, long y, int altitude)
+	{
+		if( Surf_Id>n_surface | Surf_Id<=0 | x<0 | y<0 | x>=dimensions[0] | y>=dimensions[1] | altitude<1 | altitude>dimensions[2] )
+			return false;
 		
-		graphs_edges.add(Edges);
-		graphs_edges_weights.add(Edges_weights);
+		long Slice = dimensions[0]*dimensions[1];
+		long Depth = graph.getDimensions()[2];
+		long column = x + y*dimensions[0];
+		// slice of the node at the altitude, in the band for band graphs
+		long z = altitude - graph.getZOffset(column);
+		if( z<0 | z>Depth )
+			return false;
+		long node = (Surf_Id-1)*Slice*Depth + column;
+		if( z>0 )
+			graph.setTerminalWeights( node + (z-1)*Slice, infiniteWeight, zeroWeight );
+		if( z<Depth )
+			graph.setTerminalWeights( node + z*Slice, zeroWeight, infiniteWeight );
+		isProcessed = false;
 		
 		return true;
+	}
+	
+	
+	
+	/**
+	 * @param dims the dimensions of the volume
+	 * @return the number of edges of a surface graph: a column edge per voxel above the first slice and the edges
+	 * to the 4 neighbours for the voxels above slice max_dz (see Create_Surface_Graph())
+	 */
+	static long surfaceEdgeCount(long[] dims, int max_dz)
+	{
+		long nLateral = 2 * ((dims[1]-1)*dims[0] + dims[1]*(dims[0]-1));
+		return Math.max(0, dims[2]-1)*dims[0]*dims[1] + Math.max(0, dims[2]-max_dz-1)*nLateral;
+	}
+	
+	/**
+	 * @return the number of edges of a constraint between 2 non-crossing surfaces (see Add_NoCrossing_Constraint_Between_Surfaces())
+	 */
+	static long noCrossingEdgeCount(long[] dims, int min_dist, int max_dist)
+	{
+		long nSlices = Math.max(0, dims[2]-max_dist-1);
+		if( min_dist!=max_dist )
+			nSlices += Math.max(0, dims[2]-min_dist);
+		return nSlices*dims[0]*dims[1];
+	}
+	
+	/**
+	 * @return the number of edges of a constraint between 2 crossing surfaces (see Add_Crossing_Constraint_Between_Surfaces())
+	 */
+	static long crossingEdgeCount(long[] dims, int max_up, int max_down)
+	{
+		return ( Math.max(0, dims[2]-max_up-1) + Math.max(0, dims[2]-max_down-1) )*dims[0]*dims[1];
+	}
+	
+	
+	
+	/**
+	 * the parts of the graph filled by parallelRanges(), a task fills the slices (or columns) [start, end)
+	 */
+	private interface RangeTask
+	{
+		void fill(long start, long end);
+	}
+	
+	
+	/**
+	 * run task on consecutive ranges covering [0, n), each range in its own thread. The tasks should
+	 * write disjoint parts of the graph arrays.
+	 */
+	private static void parallelRanges(long n, final RangeTask task)
+	{
+		final int nThreads = (int)Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), n));
+		final Thread[] threads = SimpleMultiThreading.newThreads( nThreads );
+		for ( int i = 0; i < threads.length; i++ )
+		{
+			final long start = n*i/nThreads;
+			final long end = n*(i+1)/nThreads;
+			threads[ i ] = new Thread( "MinCostZSurface graph " + i)
+			{
+				@Override
+				public void run()
+				{
+					task.fill(start, end);
+				}
+			};
+		}
+		SimpleMultiThreading.startAndJoin( threads );
+	}
+	
+	
+	/**
+	 * store the edge tail -> head with an infinite weight and a zero reverse weight
+	 * @return the index of the next edge
+	 */
+	private long setEdge(int[][] Edges, float[][] Edges_weights, long EdgeCount, int tail, int head)
+	{
+		Edges[0][(int)EdgeCount] = tail;
+		Edges[1][(int)EdgeCount] = head;
+		Edges_weights[0][(int)EdgeCount] = infiniteWeight;
+		Edges_weights[1][(int)EdgeCount] = zeroWeight;
+		return EdgeCount+1;
+	}
+	
+	
+	
+	/**
+	 * compute the band slices from the altitude range of each column: the band of a column starts at its lowest
+	 * altitude and all the bands have the depth of the widest range, shifted inside the volume where needed
+	 */
+	private void initBand()
+	{
+		long Depth = dimensions[2];
+		bandDepth = 1;
+		for(int idx=0; idx<bandLow.length; idx++)
+			bandDepth = Math.max(bandDepth, (long)bandHigh[idx]-bandLow[idx]);
+		bandDepth = Math.min(bandDepth, Depth);
 		
+		zOffset = new int[bandLow.length];
+		for(int idx=0; idx<bandLow.length; idx++)
+			zOffset[idx] = (int)Math.max(0, Math.min(bandLow[idx], Depth-bandDepth));
+	}
+	
+	
+	
+	/**
+	 * the graph does not fit in int indexes anymore: drop the edge arrays built so far
+	 * and let the solvers compute the edges from the node indexes
+	 */
+	private void switchToLargeGraph()
+	{
+		largeGraph = true;
+		implicitGraph = true;
+		if( graph != null )
+			graph.clearEdgeArrays();
 	}
 	
 	
@@ -495,32 +1173,79 @@ public class MinCostZSurface < T extends RealType<T> & NumericType< T > & Native
 	{
 		if( Surf_Id>n_surface | Surf_Id<=0 | !isProcessed )
 			return null;
-
 		
-		long Width = dimensions[0];
-		long Slice = dimensions[0]*dimensions[1];
-		int nNodes = (int)(Slice*dimensions[2]);
+		final ArrayImg< FloatType, FloatArray > depth_map = ArrayImgs.floats( dimensions[0], dimensions[1] );
+		final float[] altitudes = depth_map.update( null ).getCurrentStorageArray();
+		Fill_Altitudes( Surf_Id, (idx, altitude) -> altitudes[idx] = altitude );
 		
-		final ImgFactory< FloatType > imgFactory2 = new ArrayImgFactory< FloatType >();
-		final Img< FloatType > depth_map = imgFactory2.create( new long[] {dimensions[0],dimensions[1]} , new FloatType() );
-		RandomAccess< FloatType> depth_mapRA = depth_map.randomAccess();
+		return depth_map;
+	}
+	
+	
+	
+	/**
+	 * Same as get_Altitude_Map() with 16 bit altitudes, the map takes half the memory.
+	 * 
+	 * @param Surf_Id the id of the surface (id starts at 1 and are numbered after the order the surface were set) 
+	 * @return a depthmap, or null if the surface id is invalid, the maxflow is not calculated or the volume has more than 65535 slices
+	 */
+	public Img<UnsignedShortType> get_Altitude_Map_16bit(int Surf_Id)
+	{
+		if( Surf_Id>n_surface | Surf_Id<=0 | !isProcessed | dimensions[2]>65535 )
+			return null;
+		
+		final ArrayImg< UnsignedShortType, ShortArray > depth_map = ArrayImgs.unsignedShorts( dimensions[0], dimensions[1] );
+		final short[] altitudes = depth_map.update( null ).getCurrentStorageArray();
+		Fill_Altitudes( Surf_Id, (idx, altitude) -> altitudes[idx] = (short)altitude );
 		
-		long[] position = new long[2];
-		for (int idx = 0; idx<nNodes; idx++)
-		{
-			position[0] = idx%Width;
-			position[1] = (idx%Slice)/Width;
-			depth_mapRA.setPosition(new long[] {position[0],position[1]} );
-			
-			if (graphCut_Solver.getTerminal(idx+nNodes*(Surf_Id-1)) == Terminal.FOREGROUND)
-				depth_mapRA.get().add( new FloatType(1.0f) );
-		}
-
 		return depth_map;
 	}
 	
 	
 	
+	/**
+	 * receives the altitude of the surface in the column idx = x + y*Width
+	 */
+	private interface AltitudeWriter
+	{
+		void set(int idx, long altitude);
+	}
+	
+	
+	/**
+	 * compute the altitude of the surface in each column, the rows are split between threads.
+	 * 
+	 * The column edges z -> z-1 have an infinite weight, so the nodes of a column connected to the source (below
+	 * the surface) are the nodes under the altitude and the first node connected to the sink is found by binary
+	 * search in the column, the nodes below the band being connected to the source.
+	 */
+	private void Fill_Altitudes(int Surf_Id, final AltitudeWriter writer)
+	{
+		final long Width = dimensions[0];
+		final long Slice = dimensions[0]*dimensions[1];
+		final long Depth = graph.getDimensions()[2];
+		final long offset = graph.getNNodesPerSurface()*(Surf_Id-1);
+		
+		parallelRanges( dimensions[1], (y0, y1) -> {
+			for(long idx=y0*Width; idx<y1*Width; idx++)
+			{
+				// the first background node of the column is in [low, high]
+				long low = 0, high = Depth;
+				while( low<high )
+				{
+					long mid = (low+high) >>> 1;
+					if( isForeground( offset + idx + mid*Slice ) )
+						low = mid+1;
+					else
+						high = mid;
+				}
+				writer.set( (int)idx, graph.getZOffset(idx) + low );
+			}
+		});
+	}
+	
+	
+	
 	/**
 	 * This methods produce a binary volume where pixel on top (bottom) the surface are 0 (255)
 	 * for the surface with id Surf_Id.
@@ -534,26 +1259,32 @@ public class MinCostZSurface < T extends RealType<T> & NumericType< T > & Native
 		if( Surf_Id>n_surface | Surf_Id<=0 | !isProcessed )
 			return null;
 		
-		long Width = dimensions[0];
-		long Slice = dimensions[0]*dimensions[1];
-		long nNodes = Slice*dimensions[2];
+		final int[] altitudes = get_Altitudes(Surf_Id);
+		final long Slice = dimensions[0]*dimensions[1];
 		
-		final ImgFactory< ByteType > imgFactory = new ArrayImgFactory< ByteType >();
+		// cell image if the volume is too large for an array image
+		final ImgFactory< ByteType > imgFactory = Util.getArrayOrCellImgFactory( new FinalDimensions(dimensions), new ByteType() );
 		final Img< ByteType > segmentation = imgFactory.create( dimensions , new ByteType() );
-		Cursor<ByteType> seg_cursor = segmentation.cursor();
 		
-		long[] position = new long[3];
-		long idx; 
+		Object access = segmentation instanceof ArrayImg ? ((ArrayImg<?,?>)segmentation).update( null ) : null;
+		if( access instanceof ByteArray )
+		{
+			// the z-slabs are filled in parallel, a run of 255 then 0 in each column
+			final byte[] mask = ((ByteArray)access).getCurrentStorageArray();
+			parallelRanges( dimensions[2], (z0, z1) -> {
+				for(long z=z0; z<z1; z++)
+					for(int idx=0; idx<Slice; idx++)
+						mask[(int)(z*Slice) + idx] = z<altitudes[idx] ? (byte)255 : (byte)0;
+			});
+			return segmentation;
+		}
+		
+		Cursor<ByteType> seg_cursor = segmentation.cursor();
 		while (seg_cursor.hasNext())
 		{
 			seg_cursor.fwd();
-			seg_cursor.localize(position);
-			idx = position[0]+ position[1]*Width + position[2]*Slice;
-			
-			if (graphCut_Solver.getTerminal( (int)(idx+nNodes*(Surf_Id-1)) ) == Terminal.FOREGROUND)
-				seg_cursor.get().set((byte)255);
-			else 
-				seg_cursor.get().set( (byte)0 );
+			int idx = (int)(seg_cursor.getLongPosition(0) + seg_cursor.getLongPosition(1)*dimensions[0]);
+			seg_cursor.get().set( seg_cursor.getLongPosition(2)<altitudes[idx] ? (byte)255 : (byte)0 );
 		}
 		
 		return segmentation;
@@ -561,5 +1292,103 @@ public class MinCostZSurface < T extends RealType<T> & NumericType< T > & Native
 	
 	
 	
+	/**
+	 * This methods returns the same binary volume as get_Surface_Mask() without allocating it: the value of a voxel
+	 * is computed when it is accessed from the altitude map of the surface (255 below the surface, 0 above).
+	 * It is meant for masks that are only sampled, use get_Surface_Mask() to get an image.
+	 * It will return null if the surface id is invalid or if the maxflow is not calculated
+	 * 
+	 * @param Surf_Id the id of the surface mask to output (id starts at 1 and are numbered after the order the surface were set) 
+	 * @return a 3D view with same size as the cost images
+	 */
+	public RandomAccessibleInterval<ByteType> get_Surface_Mask_View(int Surf_Id)
+	{
+		if( Surf_Id>n_surface | Surf_Id<=0 | !isProcessed )
+			return null;
+		
+		final int[] altitudes = get_Altitudes(Surf_Id);
+		final long Width = dimensions[0];
+		FunctionRandomAccessible< ByteType > mask = new FunctionRandomAccessible< ByteType >( 3, (position, value) -> {
+			int idx = (int)(position.getLongPosition(0) + position.getLongPosition(1)*Width);
+			value.set( position.getLongPosition(2)<altitudes[idx] ? (byte)255 : (byte)0 );
+		}, ByteType::new );
+		
+		return Views.interval( mask, new FinalInterval(dimensions) );
+	}
+	
+	
+	
+	/**
+	 * This methods produces a bit-packed volume holding, for each voxel, one bit per surface set if the voxel is 
+	 * below the surface (see SurfaceLabelVolume). It replaces one get_Surface_Mask() per surface, e.g. to get the 
+	 * layers between several surfaces, with a fraction of the memory.
+	 * It will return null if the maxflow is not calculated, if there are more than 64 surfaces or if the packed
+	 * volume needs more than 2^31 longs
+	 * 
+	 * @return the labels of the voxels for all the surfaces
+	 */
+	public SurfaceLabelVolume get_Surface_Labels()
+	{
+		if( n_surface<=0 | n_surface>64 | !isProcessed )
+			return null;
+		
+		final int bitsPerVoxel = SurfaceLabelVolume.getBitsPerVoxel(n_surface);
+		final int voxelsPerLong = 64 / bitsPerVoxel;
+		final long Slice = dimensions[0]*dimensions[1];
+		final long nVoxels = Slice*dimensions[2];
+		final long nLongs = (nVoxels + voxelsPerLong - 1) / voxelsPerLong;
+		if( nLongs > Integer.MAX_VALUE )
+			return null;
+		
+		final int[][] altitudes = new int[n_surface][];
+		for(int s=0; s<n_surface; s++)
+			altitudes[s] = get_Altitudes(s+1);
+		
+		// each thread builds whole longs, so that no long is written by 2 threads
+		final LongArray data = new LongArray( (int)nLongs );
+		final long[] words = data.getCurrentStorageArray();
+		parallelRanges( nLongs, (l0, l1) -> {
+			for(long l=l0; l<l1; l++)
+			{
+				long word = 0;
+				for(long i=l*voxelsPerLong, k=0; k<voxelsPerLong & i<nVoxels; i++, k++)
+				{
+					int idx = (int)(i % Slice);
+					long z = i / Slice;
+					for(int s=0; s<n_surface; s++)
+						if( z<altitudes[s][idx] )
+							word |= 1L << (k*bitsPerVoxel + s);
+				}
+				words[(int)l] = word;
+			}
+		});
+		
+		return new SurfaceLabelVolume( dimensions, n_surface, data );
+	}
+	
+	
+	
+	/**
+	 * @return the altitude of the surface in each column x + y*Width
+	 */
+	private int[] get_Altitudes(int Surf_Id)
+	{
+		final int[] altitudes = new int[(int)(dimensions[0]*dimensions[1])];
+		Fill_Altitudes( Surf_Id, (idx, altitude) -> altitudes[idx] = (int)altitude );
+		return altitudes;
+	}
+	
+	
+	
+	/**
+	 * @return true if node is connected to the source after the mincut (i.e. it is below the surface)
+	 */
+	private boolean isForeground(long node)
+	{
+		return solver.isSourceSide( node );
+	}
+	
+	
+	
 
 }
@@ -4,26 +4,16 @@ import net.imagej.Dataset;
 import net.imagej.ImageJ;
 import net.imagej.ops.AbstractOp;
 import net.imagej.ops.Op;
-import net.imglib2.Cursor;
-import net.imglib2.FinalInterval;
-import net.imglib2.Interval;
-import net.imglib2.RandomAccess;
 import net.imglib2.img.Img;
 import net.imglib2.img.display.imagej.ImageJFunctions;
-import net.imglib2.multithreading.SimpleMultiThreading;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.type.numeric.real.FloatType;
-import net.imglib2.view.IntervalView;
-import net.imglib2.view.Views;
 import org.scijava.ItemIO;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
 import java.io.File;
 
-import static de.mpicbg.scf.mincostsurface.img_utils.createOffset;
-
 /**
  * Author: HongKee Moon (moon@mpi-cbg.de), Scientific Computing Facility
  * Organization: MPI-CBG Dresden
@@ -66,6 +56,18 @@ public class MinCostZSurfaceMT_Ops< T extends RealType<T> & NativeType< T >> ext
     @Parameter ( label = "Number of Threads")
     private int numThreads;
 
+    @Parameter ( label = "max-flow solver", choices = {"GRAPH_CUT", "IMPLICIT_GRID", "DUAL_DECOMPOSITION", "PARALLEL_PUSH_RELABEL"}, required = false, persist = false ) // see MaxFlowSolver.Type
+    private String solver = "GRAPH_CUT";
+
+    @Parameter ( label = "downsampling", choices = {"Gaussian", "Area"}, required = false, persist = false ) // see img_utils.Downsampling, Area is cheaper for strong rescaling
+    private String downsampling = "Gaussian";
+
+    @Parameter ( label = "tile halo (in pixel, -1 for 4 x max_dz)", required = false, persist = false ) // rows added on both sides of each tile, see TiledZSurface
+    private int halo = -1;
+
+    @Parameter ( label = "seam band (in pixel, -1 for 2 x max_dz)", required = false, persist = false ) // half height of the band solved again around each seam
+    private int seamBand = -1;
+
 
 
     // output
@@ -98,37 +100,23 @@ public class MinCostZSurfaceMT_Ops< T extends RealType<T> & NativeType< T >> ext
 
         long[] dims_orig = new long[nDim];
         input.dimensions( dims_orig );
-        Img<T> image_cost_orig = input.copy();//ImagePlusAdapter.wrap(imp_cost_dup);
 
 
         ///////////////////////////////////////////////////////////////////////////////////////////////////
         // downsampling the input image ///////////////////////////////////////////////////////////////////
-        Img<T> image_cost_ds = img_utils.downsample(image_cost_orig, new float[] {downsample_factor_xy, downsample_factor_xy, downsample_factor_z});
+        Img<T> image_cost_ds = img_utils.downsample(input, new float[] {downsample_factor_xy, downsample_factor_xy, downsample_factor_z}, img_utils.Downsampling.valueOf(downsampling));
         //ImageJFunctions.show( image_cost_ds );
 
-        final long[] dims = new long[ image_cost_ds.numDimensions() ];
-
-        image_cost_ds.dimensions(dims);
-
-        if(dims[1] < numThreads || numThreads < 0) {
-            numThreads = (int) dims[1];
+        if(image_cost_ds.dimension(1) < numThreads || numThreads < 0) {
+            numThreads = (int) image_cost_ds.dimension(1);
         }
 
-//        dims[0] = image_cost_ds.dimension(0);
-        dims[1] = image_cost_ds.dimension(1) / numThreads;
-
-        FinalInterval interval = new FinalInterval(dims);
-
-        Img< T > depth_map = processMT(image_cost_ds, interval, numThreads);
+        Img< T > depth_map = processMT(image_cost_ds, numThreads);
 
         ////////////////////////////////////////////////////////////////////////////////////////////////
         // up-sample the depth_map result //////////////////////////////////////////////////////////////
-        upsampled_depthMap = img_utils.upsample(depth_map, new long[] { dims_orig[0], dims_orig[1]}, img_utils.Interpolator.Linear );
-
-        // multiply the altitude value to compensate earlier z sampling
-        Cursor<T> up_map_cursor = upsampled_depthMap.cursor();
-        while(up_map_cursor.hasNext())
-            up_map_cursor.next().mul(1/ downsample_factor_z);
+        // the altitude values are multiplied to compensate earlier z sampling
+        upsampled_depthMap = img_utils.upsample(depth_map, new long[] { dims_orig[0], dims_orig[1]}, img_utils.Interpolator.Linear, 1/ downsample_factor_z, 0 );
 
 //        ImageJFunctions.show( upsampled_depthMap, "altitude map" );
 
@@ -143,78 +131,22 @@ public class MinCostZSurfaceMT_Ops< T extends RealType<T> & NativeType< T >> ext
 
     }
 
-    < T extends RealType< T >> Img< T > processMT(final Img< T > inputSource, final Interval interval, final int numThreads )
+    < T extends RealType< T > & NativeType< T >> Img< T > processMT(final Img< T > inputSource, final int numThreads )
     {
-        final long[][] offset = createOffset(inputSource, numThreads);
-
         final Img< T > globalDepthMap = inputSource.factory().create(inputSource.dimension(0), inputSource.dimension(1));
 
-        final Thread[] threads = SimpleMultiThreading.newThreads( numThreads );
-        for ( int i = 0; i < threads.length; i++ )
-        {
-            int finalI = i;
-            threads[ i ] = new Thread( "MinCostZSurface thread " + finalI)
-            {
-                @Override
-                public void run()
-                {
-                    IntervalView< T > intervalView = Views.offset( inputSource, offset[finalI] );
-                    final Img< T > part = inputSource.factory().create( interval );
-                    Cursor< T > cursor = part.cursor();
-                    RandomAccess< T > randomAccess = intervalView.randomAccess();
-
-                    while ( cursor.hasNext() )
-                    {
-                        cursor.fwd();
-                        randomAccess.setPosition( cursor );
-                        cursor.get().set( randomAccess.get() );
-                    }
-
-
-                    ///////////////////////////////////////////////////////////////////////////////////////////////////
-                    // creating a surface detector solver instance  ///////////////////////////////////////////////////
-                    MinCostZSurface ZSurface_detector = new MinCostZSurface();
-
-                    long end,start;
-                    ///////////////////////////////////////////////////////////////////////////////////////////////////
-                    // filling the surface graph for a single surface
-                    start = System.currentTimeMillis();
-                    ZSurface_detector.Create_Surface_Graph(part, max_dz);
-                    end = System.currentTimeMillis();
-                    System.out.println("...done inserting edges. (" + (end - start) + "ms)");
-
-
-                    ///////////////////////////////////////////////////////////////////////////////////////////////////
-                    // computing the maximum flow //////////////////////////////////////////////////////////////////////
-                    System.out.println("Calculating max flow");
-                    start = System.currentTimeMillis();
-
-                    ZSurface_detector.Process();
-                    float maxFlow = ZSurface_detector.getMaxFlow();
-
-                    end = System.currentTimeMillis();
-                    System.out.println("...done. Max flow is " + maxFlow + ". (" + (end - start) + "ms)");
-
-
-                    /////////////////////////////////////////////////////////////////////////////////////////////
-                    // building the depth map ///////////////////////////////////////////////////////////////////
-                    //IJ.log("n surfaces: " + ZSurface_detector.getNSurfaces() );
-                    Img<FloatType> depth_map =  ZSurface_detector.get_Altitude_Map(1);
-
-                    intervalView = Views.offset( globalDepthMap, new long[] { offset[finalI][0], offset[finalI][1] } );
-                    final Cursor< FloatType > cursorDepthMap = depth_map.cursor();
-                    randomAccess = intervalView.randomAccess();
-                    while(cursorDepthMap.hasNext())
-                    {
-                        cursorDepthMap.fwd();
-                        randomAccess.setPosition( cursorDepthMap );
-                        randomAccess.get().setReal( cursorDepthMap.get().getRealFloat() );
-                    }
-                }
-            };
-        }
+        // each tile is solved with its halo, then the band around each seam is solved again
+        TiledZSurface< T > tiles = new TiledZSurface< T >( (detector, part) -> detector.Create_Surface_Graph(part, max_dz), 1, max_dz );
+        tiles.setSolverType( MaxFlowSolver.Type.valueOf(solver) );
+        if( halo>=0 )
+            tiles.setHalo( halo );
+        if( seamBand>=0 )
+            tiles.setSeamBand( seamBand );
+        long start = System.currentTimeMillis();
+        tiles.process( inputSource, numThreads, globalDepthMap );
+        System.out.println("...done solving " + numThreads + " tiles with a halo of " + tiles.getHalo() + " and a seam band of " + tiles.getSeamBand() + " rows, "
+                + tiles.getNRejectedSeams() + " seams rejected. (" + (System.currentTimeMillis() - start) + "ms)");
 
-        SimpleMultiThreading.startAndJoin( threads );
         return globalDepthMap;
     }
 
@@ -0,0 +1,83 @@
+package de.mpicbg.scf.mincostsurface;
+
+import net.imagej.ops.AbstractOp;
+import net.imagej.ops.Op;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.scijava.ItemIO;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+
+@Plugin(type = Op.class, menuPath = "Plugins>MinCostZSurface>Time-lapse", name="MinCostZSurfaceTimeLapse", headless = true, label="MinCostZSurfaceTimeLapse")
+public class MinCostZSurfaceTimeLapse_Ops< T extends RealType<T> & NativeType< T > > extends AbstractOp {
+
+
+    @Parameter ( label = "cost image (x, y, z, t)" , persist = false )
+    private Img input;
+
+    @Parameter ( label = "rescale xy" )  // downsampling factor of the frames for the direction x and y
+    private float downsample_factor_xy;
+
+    @Parameter ( label = "rescale z" ) // downsampling factor of the frames for the direction z
+    private float downsample_factor_z;
+
+    @Parameter ( label = "Max_delta_z between adjacent voxel" ) // constraint on the surface altitude change from one pixel to another
+    private int max_dz;
+
+    @Parameter ( label = "max-flow solver", choices = {"GRAPH_CUT", "IMPLICIT_GRID", "DUAL_DECOMPOSITION", "PARALLEL_PUSH_RELABEL"}, required = false, persist = false ) // see MaxFlowSolver.Type
+    private String solver = "IMPLICIT_GRID";
+
+    @Parameter ( label = "downsampling", choices = {"Gaussian", "Area"}, required = false, persist = false ) // see img_utils.Downsampling, Area is cheaper for strong rescaling
+    private String downsampling = "Gaussian";
+
+    @Parameter ( label = "band half-width around the previous frame (in pixel, 0 for full solves)", required = false, persist = false ) // slices searched above and below the surface of the previous frame, see TimeLapseZSurface
+    private int bandHalfWidth = 8;
+
+
+
+    // output
+
+    @Parameter  (type = ItemIO.OUTPUT)
+    private Img<FloatType> upsampled_depthMap; // x, y, t
+
+
+
+    @Override
+    public void run() {
+
+        process( (Img<T>) input );
+
+    }
+
+
+    public void process( Img<T> input ){
+
+        int nDim = input.numDimensions();
+        if ( nDim != 4 ) {
+            System.err.println("The data should be of dimensions 4 (found " + nDim + " dimensions)");
+            return;
+        }
+
+        long end,start;
+
+        TimeLapseZSurface<T> timeLapseSolver = new TimeLapseZSurface<T>( (detector, cost) -> detector.Create_Surface_Graph(cost, max_dz), 1);
+        timeLapseSolver.setSolverType( MaxFlowSolver.Type.valueOf(solver) );
+        timeLapseSolver.setBandHalfWidth( bandHalfWidth );
+        timeLapseSolver.setDownsampling( img_utils.Downsampling.valueOf(downsampling) );
+
+        upsampled_depthMap = new ArrayImgFactory< FloatType >().create( new long[] { input.dimension(0), input.dimension(1), input.dimension(3)}, new FloatType() );
+        start = System.currentTimeMillis();
+        timeLapseSolver.process( input, downsample_factor_xy, downsample_factor_z, upsampled_depthMap );
+        end = System.currentTimeMillis();
+        System.out.println("...done solving " + input.dimension(3) + " frames, " + timeLapseSolver.getNFallbacks() + " full solves after the first frame. (" + (end - start) + "ms)");
+        System.out.println("processing done");
+
+    }
+
+}
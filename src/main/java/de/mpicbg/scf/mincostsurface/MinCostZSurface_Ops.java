@@ -7,8 +7,8 @@ import net.imagej.ImageJ;
 import net.imagej.ops.AbstractOp;
 import net.imagej.ops.Op;
 
-import net.imglib2.Cursor;
 import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
@@ -49,6 +49,18 @@ public class MinCostZSurface_Ops< T extends RealType<T> & NativeType< T > > exte
     @Parameter ( label = "Max_delta_z between adjacent voxel" ) // constraint on the surface altitude change from one pixel to another
     private int max_dz;
     
+    @Parameter ( label = "max-flow solver", choices = {"GRAPH_CUT", "IMPLICIT_GRID", "DUAL_DECOMPOSITION", "PARALLEL_PUSH_RELABEL"}, required = false, persist = false ) // see MaxFlowSolver.Type
+    private String solver = "GRAPH_CUT";
+    
+    @Parameter ( label = "downsampling", choices = {"Gaussian", "Area"}, required = false, persist = false ) // see img_utils.Downsampling, Area is cheaper for strong rescaling
+    private String downsampling = "Gaussian";
+    
+    @Parameter ( label = "coarse to fine (pyramid)", required = false, persist = false ) // solve at the rescaled size, then up to full resolution in a band around the upsampled surfaces, see PyramidZSurface
+    private boolean pyramid = false;
+    
+    @Parameter ( label = "pyramid band half-width (in pixel)", required = false, persist = false ) // slices searched above and below the upsampled surfaces
+    private int bandHalfWidth = 4;
+    
     //@Parameter( label = "output number of slice" ) // range of pixel grabbed around the surface to build the output
     //private int output_height; 
 
@@ -86,18 +98,40 @@ public class MinCostZSurface_Ops< T extends RealType<T> & NativeType< T > > exte
 		
 		long[] dims_orig = new long[nDim];
 		input.dimensions( dims_orig );
-		Img<T> image_cost_orig = input.copy();//ImagePlusAdapter.wrap(imp_cost_dup);
 		
+		if( pyramid )
+		{
+			// max_dz is given at the rescaled size, keep the same slope at each level
+			final float slope = max_dz * downsample_factor_xy / downsample_factor_z;
+			PyramidZSurface<T> pyramidSolver = new PyramidZSurface<T>( (detector, cost, factor_xy, factor_z) ->
+					detector.Create_Surface_Graph(cost, PyramidZSurface.scaledDistance(slope * factor_z / factor_xy) ), 1);
+			pyramidSolver.setSolverType( MaxFlowSolver.Type.valueOf(solver) );
+			pyramidSolver.setBandHalfWidth( bandHalfWidth );
+			pyramidSolver.setDownsampling( img_utils.Downsampling.valueOf(downsampling) );
+			
+			upsampled_depthMap = new ArrayImgFactory< FloatType >().create( new long[] { dims_orig[0], dims_orig[1]}, new FloatType() );
+			start = System.currentTimeMillis();
+			if( !pyramidSolver.process( input, downsample_factor_xy, downsample_factor_z, upsampled_depthMap ) )
+			{
+				System.err.println("The problem of a pyramid level could not be built or solved");
+				return;
+			}
+			end = System.currentTimeMillis();
+			System.out.println("...done solving " + pyramidSolver.getNLevels() + " pyramid levels, " + pyramidSolver.getNRefinements() + " band widenings. (" + (end - start) + "ms)");
+			System.out.println("processing done");
+			return;
+		}
 		
 		///////////////////////////////////////////////////////////////////////////////////////////////////
 		// downsampling the input image ///////////////////////////////////////////////////////////////////
-		Img<T> image_cost_ds = img_utils.downsample(image_cost_orig, new float[] {downsample_factor_xy, downsample_factor_xy, downsample_factor_z});
+		Img<T> image_cost_ds = img_utils.downsample(input, new float[] {downsample_factor_xy, downsample_factor_xy, downsample_factor_z}, img_utils.Downsampling.valueOf(downsampling));
 		//ImageJFunctions.show( image_cost_ds );
 		
 		
 		///////////////////////////////////////////////////////////////////////////////////////////////////
 		// creating a surface detector solver instance  ///////////////////////////////////////////////////
 		MinCostZSurface<T> ZSurface_detector = new MinCostZSurface<T>();
+		ZSurface_detector.setSolverType( MaxFlowSolver.Type.valueOf(solver) );
 		
 		
 		///////////////////////////////////////////////////////////////////////////////////////////////////
@@ -118,6 +152,8 @@ public class MinCostZSurface_Ops< T extends RealType<T> & NativeType< T > > exte
 		
 		end = System.currentTimeMillis();
 		System.out.println("...done. Max flow is " + maxFlow + ". (" + (end - start) + "ms)");
+		if( ZSurface_detector.getProcessedSolverType() != MaxFlowSolver.Type.valueOf(solver) )
+			System.out.println("the graph has more than 2^31 nodes or edges, it was solved with " + ZSurface_detector.getProcessedSolverType() + " instead of " + solver);
 		
 		
 		/////////////////////////////////////////////////////////////////////////////////////////////
@@ -128,12 +164,8 @@ public class MinCostZSurface_Ops< T extends RealType<T> & NativeType< T > > exte
 		
 		////////////////////////////////////////////////////////////////////////////////////////////////
 		// up-sample the depth_map result ////////////////////////////////////////////////////////////// 
-		upsampled_depthMap = img_utils.upsample(depth_map, new long[] { dims_orig[0], dims_orig[1]}, img_utils.Interpolator.Linear );
-	
-		// multiply the altitude value to compensate earlier z sampling 
-		Cursor<FloatType> up_map_cursor = upsampled_depthMap.cursor();
-		while(up_map_cursor.hasNext())
-			up_map_cursor.next().mul(1/ downsample_factor_z);
+		// the altitude values are multiplied to compensate earlier z sampling 
+		upsampled_depthMap = img_utils.upsample(depth_map, new long[] { dims_orig[0], dims_orig[1]}, img_utils.Interpolator.Linear, 1/ downsample_factor_z, 0 );
 		 
 		//ImageJFunctions.show( upsampled_depthMap, "altitude map" );
 		
@@ -14,7 +14,6 @@ import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.NumericType;
 import net.imglib2.type.numeric.real.FloatType;
-import net.imglib2.Cursor;
 
 
 
@@ -185,12 +184,8 @@ public class MinCostZSurface_Plugin implements PlugIn{
 		
 		////////////////////////////////////////////////////////////////////////////////////////////////
 		// up-sample the depth_map result ////////////////////////////////////////////////////////////// 
-		Img<FloatType> upsampled_depthMap = img_utils.upsample(depth_map, new long[] { dims_orig[0], dims_orig[1]}, img_utils.Interpolator.Linear );
-	
-		// multiply the altitude value to compensate earlier z sampling 
-		Cursor<FloatType> up_map_cursor = upsampled_depthMap.cursor();
-		while(up_map_cursor.hasNext())
-			up_map_cursor.next().mul(1/ downsample_factor_z);
+		// the altitude values are multiplied to compensate earlier z sampling 
+		Img<FloatType> upsampled_depthMap = img_utils.upsample(depth_map, new long[] { dims_orig[0], dims_orig[1]}, img_utils.Interpolator.Linear, 1/ downsample_factor_z, 0 );
 		 
 		ImageJFunctions.show( upsampled_depthMap, "altitude map" );
 		
@@ -261,16 +256,8 @@ public class MinCostZSurface_Plugin implements PlugIn{
 		Img<FloatType> depth_map1 =  ZSurface_detector.get_Altitude_Map(1);
 		Img<FloatType> depth_map2 =  ZSurface_detector.get_Altitude_Map(2);
 		
-		Img<FloatType> upsampled_depthMap1 = img_utils.upsample(depth_map1, new long[] { dims_orig[0], dims_orig[1]}, img_utils.Interpolator.Linear );
-		Img<FloatType> upsampled_depthMap2 = img_utils.upsample(depth_map2, new long[] { dims_orig[0], dims_orig[1]}, img_utils.Interpolator.Linear );
-	
-		Cursor<FloatType> up_map_cursor1 = upsampled_depthMap1.cursor();
-		Cursor<FloatType> up_map_cursor2 = upsampled_depthMap2.cursor();
-		while(up_map_cursor1.hasNext())
-		{
-			up_map_cursor1.next().mul(1/ downsample_factor_z);
-			up_map_cursor2.next().mul(1/ downsample_factor_z);
-		}
+		Img<FloatType> upsampled_depthMap1 = img_utils.upsample(depth_map1, new long[] { dims_orig[0], dims_orig[1]}, img_utils.Interpolator.Linear, 1/ downsample_factor_z, 0 );
+		Img<FloatType> upsampled_depthMap2 = img_utils.upsample(depth_map2, new long[] { dims_orig[0], dims_orig[1]}, img_utils.Interpolator.Linear, 1/ downsample_factor_z, 0 );
 		ImageJFunctions.show( upsampled_depthMap1, "altitude map1" );
 		ImageJFunctions.show( upsampled_depthMap2, "altitude map2" );
 		
@@ -0,0 +1,77 @@
+package de.mpicbg.scf.mincostsurface;
+
+import net.imagej.ops.AbstractOp;
+import net.imagej.ops.Op;
+
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.scijava.ItemIO;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+
+
+@Plugin(type = Op.class, menuPath = "Plugins>MinCostZSurface>Open raw volume (out-of-core)", name="OpenRawCells", headless = true, label="OpenRawCells")
+public class OpenRawCells_Ops extends AbstractOp {
+
+
+    @Parameter ( label = "raw file" )
+    private File file;
+
+    @Parameter ( label = "width" )
+    private long width;
+
+    @Parameter ( label = "height" )
+    private long height;
+
+    @Parameter ( label = "depth" )
+    private long depth;
+
+    @Parameter ( label = "voxel type", choices = {"8-bit", "16-bit", "32-bit float"} )
+    private String voxelType = "16-bit";
+
+    @Parameter ( label = "header (in bytes)", required = false, persist = false )
+    private long headerBytes = 0;
+
+    @Parameter ( label = "little-endian byte order", required = false, persist = false )
+    private boolean littleEndian = false;
+
+    @Parameter ( label = "cells kept in memory", required = false, persist = false ) // see RawImgReader
+    private long maxCachedCells = 256;
+
+
+
+    // output
+
+    @Parameter  (type = ItemIO.OUTPUT)
+    private Img output;
+
+
+
+    @Override
+    public void run() {
+
+        long[] dimensions = new long[] {width, height, depth};
+        int[] cellDimensions = new int[] {(int)width, 64, 8};
+        ByteOrder order = littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        try {
+            if( voxelType.equals("8-bit") )
+                output = RawImgReader.open(file, dimensions, new UnsignedByteType(), headerBytes, order, cellDimensions, maxCachedCells);
+            else if( voxelType.equals("16-bit") )
+                output = RawImgReader.open(file, dimensions, new UnsignedShortType(), headerBytes, order, cellDimensions, maxCachedCells);
+            else
+                output = RawImgReader.open(file, dimensions, new FloatType(), headerBytes, order, cellDimensions, maxCachedCells);
+        } catch (IOException e) {
+            // fail the op rather than returning no output
+            throw new IllegalArgumentException("could not open the raw volume " + file + ": " + e.getMessage(), e);
+        }
+
+    }
+
+}
@@ -0,0 +1,477 @@
+package de.mpicbg.scf.mincostsurface;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ *
+ * Multi-threaded max-flow solver working on the implicit z-surface graph (see ZSurfaceGraph and ImplicitGridMaxFlow).
+ *
+ * It implements the lock-free push-relabel algorithm of Hong and He (A lock-free multi-threaded algorithm for the
+ * max-flow problem, 2008): a node pushes its excess to its lowest residual neighbour if it is higher than that
+ * neighbour, otherwise it is relabelled just above it. Excess and flow values are updated with compare-and-set
+ * operations so that several threads can push to the same node. A node is discharged by a single thread at a time,
+ * the thread holding its active flag.
+ *
+ * The active nodes are processed in rounds: the threads discharge the nodes of the current round and collect the
+ * nodes they activate for the next round. Between rounds, when enough relabels occurred, the labels are recomputed
+ * with a parallel breadth first search from the sink (global relabelling).
+ *
+ */
+public class ParallelPushRelabelMaxFlow implements MaxFlowSolver {
+
+
+	private static final int BATCH = 1024;
+
+	private final int nThreads;
+
+	private ZSurfaceGraph graph;
+	private ImplicitGridTopology topology;
+	// edge families unrolled in primitive arrays (see ImplicitGridTopology)
+	private int[] fFrom, fTo;
+	private float[] fCapacity, fReverseCapacity;
+	private int[][] outFamilies;
+	private int[][] inFamilies;
+
+	private long nNodes;
+	private long nNodes_perSurf;
+	private long Width;
+	private long Slice;
+	private int maxLabel;
+
+	private ChunkedAtomicFloatArray excess;    // excess of a node if positive, minus the residual capacity to the sink otherwise
+	private ChunkedAtomicFloatArray[] flow;    // flow on the edge of each family leaving a node
+	private ChunkedAtomicIntArray label;       // distance label
+	private ChunkedAtomicIntArray active;      // 1 if the node is queued or being discharged
+	private final LongAdder relabels = new LongAdder();
+	private ExecutorService pool;
+	private float maxFlow;
+
+
+
+	public ParallelPushRelabelMaxFlow()
+	{
+		this( Runtime.getRuntime().availableProcessors() );
+	}
+
+
+
+	/**
+	 * @param nThreads the number of threads used to compute the flow
+	 */
+	public ParallelPushRelabelMaxFlow(int nThreads)
+	{
+		this.nThreads = Math.max(1, nThreads);
+	}
+
+
+
+	/**
+	 * the nodes to discharge in a round, distributed to the threads by batches
+	 */
+	private static class WorkList
+	{
+		private final LongFifo[] lists;
+		private int current = 0;
+
+		WorkList(LongFifo[] lists){ this.lists = lists;}
+
+		synchronized int poll(long[] buffer)
+		{
+			int n = 0;
+			while( n<buffer.length && current<lists.length )
+			{
+				if( lists[current].isEmpty() )
+					current++;
+				else
+					buffer[n++] = lists[current].poll();
+			}
+			return n;
+		}
+
+		boolean isEmpty()
+		{
+			for(LongFifo list : lists)
+				if( !list.isEmpty() )
+					return false;
+			return true;
+		}
+	}
+
+
+
+	private interface ThreadTask
+	{
+		void run(int thread);
+	}
+
+
+
+	private void init(ZSurfaceGraph graph)
+	{
+		this.graph = graph;
+
+		ImplicitGridTopology t = new ImplicitGridTopology(graph);
+		topology = t;
+		fFrom = t.fFrom; fTo = t.fTo;
+		fCapacity = t.fCapacity; fReverseCapacity = t.fReverseCapacity;
+		outFamilies = t.outFamilies;
+		inFamilies = t.inFamilies;
+		Width = t.Width;
+		Slice = t.Slice;
+		nNodes_perSurf = t.nNodes_perSurf;
+		nNodes = t.nNodes;
+		maxLabel = (int)Math.min(nNodes, Integer.MAX_VALUE);
+		int nFam = t.getNFamilies();
+
+		// the buffers of the last computation are reused if the graph has the same size
+		if( excess==null || excess.size()!=nNodes )
+		{
+			excess = new ChunkedAtomicFloatArray(nNodes);
+			label = new ChunkedAtomicIntArray(nNodes);
+			active = new ChunkedAtomicIntArray(nNodes);
+		}
+		else
+			active.fill(0);
+		ChunkedAtomicFloatArray[] oldFlow = flow;
+		flow = new ChunkedAtomicFloatArray[nFam];
+		for(int i=0; i<nFam; i++)
+		{
+			if( oldFlow!=null && i<oldFlow.length && oldFlow[i].size()==nNodes_perSurf )
+			{	flow[i] = oldFlow[i];
+				flow[i].fill(0);
+			}
+			else
+				flow[i] = new ChunkedAtomicFloatArray(nNodes_perSurf);
+		}
+	}
+
+
+
+	@Override
+	public float computeMaximumFlow(ZSurfaceGraph graph)
+	{
+		init(graph);
+		pool = Executors.newFixedThreadPool(nThreads);
+		try
+		{
+			parallel( (i) -> {
+				for(long v=rangeStart(i); v<rangeStart(i+1); v++)
+					excess.set(v, graph.getSourceWeight(v) - graph.getSinkWeight(v));
+			});
+
+			WorkList work = globalRelabel();
+			while( !work.isEmpty() )
+			{
+				final WorkList current = work;
+				final LongFifo[] next = new LongFifo[nThreads];
+				parallel( (i) -> {
+					next[i] = new LongFifo();
+					long[] buffer = new long[BATCH];
+					int n;
+					while( (n=current.poll(buffer)) > 0 )
+						for(int k=0; k<n; k++)
+							discharge(buffer[k], next[i]);
+				});
+				work = new WorkList(next);
+
+				if( relabels.sum() >= nNodes )
+					work = globalRelabel();
+			}
+			// label the nodes that can still reach the sink
+			globalRelabel();
+
+			// flow going straight from the source to the sink plus the capacity used on the edges to the sink
+			final double[] partialFlow = new double[nThreads];
+			parallel( (i) -> {
+				double sum = 0;
+				for(long v=rangeStart(i); v<rangeStart(i+1); v++)
+				{
+					float src = graph.getSourceWeight(v);
+					float snk = graph.getSinkWeight(v);
+					sum += Math.min(src, snk) + Math.max(snk-src, 0) - Math.max(-excess.get(v), 0);
+				}
+				partialFlow[i] = sum;
+			});
+			double flowToSink = 0;
+			for(double f : partialFlow)
+				flowToSink += f;
+			maxFlow = (float) flowToSink;
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+		return maxFlow;
+	}
+
+
+
+	@Override
+	public float getMaxFlow(){ return maxFlow;}
+
+
+
+	@Override
+	public boolean isSourceSide(long node)
+	{
+		return label.get(node) >= maxLabel;
+	}
+
+
+
+	private long rangeStart(int thread)
+	{
+		return nNodes*thread/nThreads;
+	}
+
+
+
+	/**
+	 * run task(i) for i in [0, nThreads) on the thread pool and wait for all of them
+	 */
+	private void parallel(final ThreadTask task)
+	{
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for(int i=0; i<nThreads; i++)
+		{
+			final int thread = i;
+			tasks.add( () -> { task.run(thread); return null; } );
+		}
+		try
+		{
+			for(Future<Void> future : pool.invokeAll(tasks))
+				future.get();
+		}
+		catch (InterruptedException | ExecutionException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+
+
+	/**
+	 * push the excess of v until it is exhausted or v is cut from the sink, the nodes that become active are added to next
+	 */
+	private void discharge(long v, LongFifo next)
+	{
+		int s = (int)(v / nNodes_perSurf);
+		long p = v - s*nNodes_perSurf;
+		long z = p / Slice;
+		long y = (p - z*Slice) / Width;
+		long x = p - z*Slice - y*Width;
+		int[] out = outFamilies[s];
+		int[] in = inFamilies[s];
+
+		while( true )
+		{
+			while( true )
+			{
+				float e = excess.get(v);
+				int dv = label.get(v);
+				if( e<=0 | dv>=maxLabel )
+					break;
+
+				// lowest neighbour in the residual graph
+				int minLabel = maxLabel;
+				int minFamily = -1;
+				boolean minOut = false;
+				long minNode = -1;
+				long minTail = -1;
+				for(int fi : out)
+				{
+					long q = topology.headPosition(fi, x, y, z);
+					if( q<0 )
+						continue;
+					if( fCapacity[fi] - flow[fi].get(p) <= 0 )
+						continue;
+					long w = fTo[fi]*nNodes_perSurf + q;
+					int dw = label.get(w);
+					if( dw<minLabel )
+					{	minLabel = dw; minFamily = fi; minOut = true; minNode = w;
+					}
+				}
+				for(int fi : in)
+				{
+					long pu = topology.tailPosition(fi, x, y, z);
+					if( pu<0 )
+						continue;
+					if( fReverseCapacity[fi] + flow[fi].get(pu) <= 0 )
+						continue;
+					long u = fFrom[fi]*nNodes_perSurf + pu;
+					int du = label.get(u);
+					if( du<minLabel )
+					{	minLabel = du; minFamily = fi; minOut = false; minNode = u; minTail = pu;
+					}
+				}
+
+				if( minFamily>=0 && dv>minLabel )
+				{
+					float d = minOut ? pushOut(minFamily, p, e) : pushIn(minFamily, minTail, e);
+					if( d>0 )
+					{
+						excess.getAndAdd(v, -d);
+						float old = excess.getAndAdd(minNode, d);
+						if( old<=0 && old+d>0 && label.get(minNode)<maxLabel && active.compareAndSet(minNode, 0, 1) )
+							next.add(minNode);
+					}
+				}
+				else
+				{
+					label.set(v, minLabel<maxLabel ? minLabel+1 : maxLabel);
+					relabels.increment();
+				}
+			}
+
+			// release the node, unless some excess arrived in between
+			active.set(v, 0);
+			if( excess.get(v)>0 && label.get(v)<maxLabel && active.compareAndSet(v, 0, 1) )
+				continue;
+			return;
+		}
+	}
+
+
+
+	/**
+	 * push at most e units on the edge of family fi leaving position p
+	 * @return the amount pushed
+	 */
+	private float pushOut(int fi, long p, float e)
+	{
+		while( true )
+		{
+			float f = flow[fi].get(p);
+			float res = fCapacity[fi] - f;
+			if( res<=0 )
+				return 0;
+			float d = Math.min(e, res);
+			if( flow[fi].compareAndSet(p, f, d==res ? fCapacity[fi] : f+d) )
+				return d;
+		}
+	}
+
+	/**
+	 * push at most e units backward on the edge of family fi leaving position pu
+	 * @return the amount pushed
+	 */
+	private float pushIn(int fi, long pu, float e)
+	{
+		while( true )
+		{
+			float f = flow[fi].get(pu);
+			float res = fReverseCapacity[fi] + f;
+			if( res<=0 )
+				return 0;
+			float d = Math.min(e, res);
+			if( flow[fi].compareAndSet(pu, f, d==res ? -fReverseCapacity[fi] : f-d) )
+				return d;
+		}
+	}
+
+
+
+	/**
+	 * set the label of every node to its distance to the sink in the residual graph with a parallel
+	 * breadth first search, and collect the active nodes
+	 */
+	private WorkList globalRelabel()
+	{
+		relabels.reset();
+
+		final LongFifo[] frontier = new LongFifo[nThreads];
+		parallel( (i) -> {
+			frontier[i] = new LongFifo();
+			for(long v=rangeStart(i); v<rangeStart(i+1); v++)
+			{
+				if( excess.get(v)<0 )
+				{	label.set(v, 0);
+					frontier[i].add(v);
+				}
+				else
+					label.set(v, maxLabel);
+			}
+		});
+
+		WorkList work = new WorkList(frontier);
+		int level = 0;
+		while( !work.isEmpty() )
+		{
+			final WorkList current = work;
+			final int nextLabel = ++level;
+			final LongFifo[] next = new LongFifo[nThreads];
+			parallel( (i) -> {
+				next[i] = new LongFifo();
+				long[] buffer = new long[BATCH];
+				int n;
+				while( (n=current.poll(buffer)) > 0 )
+					for(int k=0; k<n; k++)
+						visitResidualPredecessors(buffer[k], nextLabel, next[i]);
+			});
+			work = new WorkList(next);
+		}
+
+		final LongFifo[] activeNodes = new LongFifo[nThreads];
+		parallel( (i) -> {
+			activeNodes[i] = new LongFifo();
+			for(long v=rangeStart(i); v<rangeStart(i+1); v++)
+			{
+				if( excess.get(v)>0 && label.get(v)<maxLabel )
+				{	active.set(v, 1);
+					activeNodes[i].add(v);
+				}
+				else
+					active.set(v, 0);
+			}
+		});
+		return new WorkList(activeNodes);
+	}
+
+
+
+	/**
+	 * label the unlabelled nodes having a residual edge to v
+	 */
+	private void visitResidualPredecessors(long v, int nextLabel, LongFifo next)
+	{
+		int s = (int)(v / nNodes_perSurf);
+		long p = v - s*nNodes_perSurf;
+		long z = p / Slice;
+		long y = (p - z*Slice) / Width;
+		long x = p - z*Slice - y*Width;
+
+		// edges v->w, the residual edge w->v has capacity reverseCapacity + flow
+		for(int fi : outFamilies[s])
+		{
+			long q = topology.headPosition(fi, x, y, z);
+			if( q<0 )
+				continue;
+			if( fReverseCapacity[fi] + flow[fi].get(p) <= 0 )
+				continue;
+			long w = fTo[fi]*nNodes_perSurf + q;
+			if( label.get(w)==maxLabel && label.compareAndSet(w, maxLabel, nextLabel) )
+				next.add(w);
+		}
+		// edges u->v, the residual edge u->v has capacity capacity - flow
+		for(int fi : inFamilies[s])
+		{
+			long pu = topology.tailPosition(fi, x, y, z);
+			if( pu<0 )
+				continue;
+			if( fCapacity[fi] - flow[fi].get(pu) <= 0 )
+				continue;
+			long u = fFrom[fi]*nNodes_perSurf + pu;
+			if( label.get(u)==maxLabel && label.compareAndSet(u, maxLabel, nextLabel) )
+				next.add(u);
+		}
+	}
+
+}
@@ -0,0 +1,270 @@
+package de.mpicbg.scf.mincostsurface;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+
+
+/**
+ *
+ * Solve a minimum cost z-surface problem from coarse to fine resolution.
+ *
+ * The cost image is first downsampled with the given factors and solved on the whole volume. Then the factors are
+ * doubled at each level until the full resolution is reached: the altitude maps of the previous level are upsampled
+ * and the graph of the level is only built in a band of slices around them (see MinCostZSurface.setBand()). At full
+ * resolution the problem then costs band depth x width x height nodes instead of depth x width x height.
+ *
+ * The band of a level is [min altitude - bandHalfWidth, max altitude + bandHalfWidth] over the surfaces. If the
+ * solution of a level touches the band limits somewhere, the band is too narrow to contain the optimal surface and the
+ * level is solved again with a band twice as wide (at most maxRefinements times).
+ *
+ */
+public class PyramidZSurface< T extends RealType<T> & NativeType< T > > {
+
+
+	/**
+	 * build the surface graphs and the constraints of the problem for the cost image of a level
+	 */
+	public interface LevelBuilder< T extends RealType<T> & NativeType< T > >
+	{
+		/**
+		 * @param cost the cost image downsampled by factor_xy in x and y and factor_z in z
+		 */
+		boolean build(MinCostZSurface<T> detector, Img<T> cost, float factor_xy, float factor_z);
+	}
+
+
+
+	private final LevelBuilder<T> builder;
+	private final int nSurfaces;
+	private MaxFlowSolver.Type solverType = MaxFlowSolver.Type.GRAPH_CUT;
+	private int bandHalfWidth = 4;
+	private img_utils.Downsampling downsampling = img_utils.Downsampling.Gaussian;
+	private int maxRefinements = 2;
+	private int nLevels;
+	private int nRefinements;
+
+
+
+	/**
+	 * @param builder builds the graph of a level
+	 * @param nSurfaces the number of surfaces created by the builder
+	 */
+	public PyramidZSurface(LevelBuilder<T> builder, int nSurfaces)
+	{
+		this.builder = builder;
+		this.nSurfaces = nSurfaces;
+	}
+
+
+
+	public void setSolverType(MaxFlowSolver.Type solverType){ this.solverType = solverType;}
+
+	/**
+	 * @param bandHalfWidth number of slices searched above and below the upsampled surfaces of the previous level
+	 */
+	public void setBandHalfWidth(int bandHalfWidth){ this.bandHalfWidth = Math.max(1, bandHalfWidth);}
+
+	/**
+	 * @param maxRefinements maximum number of times a level is solved again with a wider band
+	 */
+	public void setMaxRefinements(int maxRefinements){ this.maxRefinements = Math.max(0, maxRefinements);}
+
+	/**
+	 * @param downsampling how the cost image is averaged when it is downsampled
+	 */
+	public void setDownsampling(img_utils.Downsampling downsampling){ this.downsampling = downsampling;}
+
+	/**
+	 * @return the number of levels solved by the last process()
+	 */
+	public int getNLevels(){ return nLevels;}
+
+	/**
+	 * @return the number of times a level of the last process() was solved again with a wider band
+	 */
+	public int getNRefinements(){ return nRefinements;}
+
+
+
+	/**
+	 * Compute the altitude maps of the surfaces
+	 *
+	 * @param cost the cost image, it is not modified
+	 * @param downsample_factor_xy downsampling factor of the coarsest level in x and y
+	 * @param downsample_factor_z downsampling factor of the coarsest level in z
+	 * @param depthMaps the altitude map of each surface, 2D images with the same xy dimensions as cost
+	 * @return false if the problem of a level could not be built or solved, the depth maps are then not modified
+	 */
+	@SafeVarargs
+	public final < R extends RealType<R> > boolean process(Img<T> cost, float downsample_factor_xy, float downsample_factor_z, RandomAccessibleInterval<R>... depthMaps)
+	{
+		float factor_xy = Math.min(1, downsample_factor_xy);
+		float factor_z = Math.min(1, downsample_factor_z);
+		long Depth = cost.dimension(2);
+
+		Img<FloatType>[] maps = null;
+		float previous_factor_z = factor_z;
+		nLevels = 0;
+		nRefinements = 0;
+		while( true )
+		{
+			Img<T> levelCost = cost;
+			if( factor_xy<1 | factor_z<1 )
+				levelCost = img_utils.downsample(cost, new float[] {factor_xy, factor_xy, factor_z}, downsampling);
+
+			if( maps==null )
+			{
+				maps = solve(levelCost, factor_xy, factor_z, null, null);
+				if( maps==null )
+					return false;
+			}
+			else
+			{
+				// priors: the surfaces of the previous level at the resolution of this level
+				long[] dims = new long[] {levelCost.dimension(0), levelCost.dimension(1)};
+				float zRatio = factor_z / previous_factor_z;
+				Img<FloatType>[] priors = new Img[nSurfaces];
+				for(int surf=0; surf<nSurfaces; surf++)
+					priors[surf] = img_utils.upsample(maps[surf], dims, img_utils.Interpolator.Linear, zRatio, 0);
+
+				int halfWidth = bandHalfWidth;
+				for(int refinement=0; ; refinement++)
+				{
+					Img<FloatType> zLow = bandLimit(priors, -halfWidth);
+					Img<FloatType> zHigh = bandLimit(priors, halfWidth);
+					Img<FloatType>[] levelMaps = solve(levelCost, factor_xy, factor_z, zLow, zHigh);
+					if( levelMaps==null )
+						return false;
+					long nTouching = countTouchingColumns(levelMaps, zLow, zHigh, levelCost.dimension(2));
+					if( nTouching==0 | refinement>=maxRefinements )
+					{
+						maps = levelMaps;
+						break;
+					}
+					halfWidth *= 2;
+					nRefinements++;
+				}
+			}
+			nLevels++;
+
+			if( factor_xy>=1 & factor_z>=1 )
+				break;
+			previous_factor_z = factor_z;
+			factor_xy = Math.min(1, 2*factor_xy);
+			factor_z = Math.min(1, 2*factor_z);
+		}
+
+		for(int surf=0; surf<nSurfaces; surf++)
+		{
+			RandomAccess< R > out = depthMaps[surf].randomAccess();
+			Cursor< FloatType > mapCursor = maps[surf].localizingCursor();
+			while( mapCursor.hasNext() )
+			{
+				mapCursor.fwd();
+				out.setPosition( mapCursor );
+				out.get().setReal( Math.min(Depth, mapCursor.get().getRealFloat()) );
+			}
+		}
+		return true;
+	}
+
+
+
+	/**
+	 * @return the altitude maps of the level solved in the band [zLow, zHigh] (on the whole volume if zLow is null),
+	 * or null if the graph could not be built or solved
+	 */
+	private Img<FloatType>[] solve(Img<T> cost, float factor_xy, float factor_z, Img<FloatType> zLow, Img<FloatType> zHigh)
+	{
+		MinCostZSurface<T> ZSurface_detector = new MinCostZSurface<T>();
+		if( zLow!=null && !ZSurface_detector.setBand(zLow, zHigh) )
+			return null;
+		ZSurface_detector.setSolverType( solverType );
+		if( !builder.build(ZSurface_detector, cost, factor_xy, factor_z) )
+			return null;
+		if( !ZSurface_detector.Process() )
+			return null;
+
+		Img<FloatType>[] maps = new Img[nSurfaces];
+		for(int surf=0; surf<nSurfaces; surf++)
+			maps[surf] = ZSurface_detector.get_Altitude_Map(surf+1);
+		return maps;
+	}
+
+
+
+	/**
+	 * @return a distance rescaled for a pyramid level, rounded up so that the constraint is never tighter than at the rescaled size
+	 */
+	static int scaledDistance(float distance)
+	{
+		return Math.max(0, (int)Math.ceil(distance - 0.001f));
+	}
+
+
+
+	/**
+	 * @return the lowest (offset<0) or highest (offset>0) prior altitude of the surfaces in each column, shifted by offset
+	 */
+	static Img<FloatType> bandLimit(Img<FloatType>[] priors, float offset)
+	{
+		int nSurfaces = priors.length;
+		Img<FloatType> limit = new ArrayImgFactory< FloatType >().create( new long[] {priors[0].dimension(0), priors[0].dimension(1)}, new FloatType() );
+		Cursor<FloatType> limitCursor = limit.cursor();
+		RandomAccess<FloatType>[] priorRA = new RandomAccess[nSurfaces];
+		for(int surf=0; surf<nSurfaces; surf++)
+			priorRA[surf] = priors[surf].randomAccess();
+		while( limitCursor.hasNext() )
+		{
+			limitCursor.fwd();
+			float z = offset<0 ? Float.MAX_VALUE : -Float.MAX_VALUE;
+			for(int surf=0; surf<nSurfaces; surf++)
+			{
+				priorRA[surf].setPosition( limitCursor );
+				float zs = priorRA[surf].get().get();
+				z = offset<0 ? Math.min(z, zs) : Math.max(z, zs);
+			}
+			limitCursor.get().set( Math.round(z) + offset );
+		}
+		return limit;
+	}
+
+
+
+	/**
+	 * @return the number of columns where a surface reaches a band limit that is inside the volume
+	 */
+	static long countTouchingColumns(Img<FloatType>[] maps, Img<FloatType> zLow, Img<FloatType> zHigh, long Depth)
+	{
+		int nSurfaces = maps.length;
+		long nTouching = 0;
+		Cursor<FloatType> lowCursor = zLow.localizingCursor();
+		RandomAccess<FloatType> highRA = zHigh.randomAccess();
+		RandomAccess<FloatType>[] mapRA = new RandomAccess[nSurfaces];
+		for(int surf=0; surf<nSurfaces; surf++)
+			mapRA[surf] = maps[surf].randomAccess();
+		while( lowCursor.hasNext() )
+		{
+			float low = lowCursor.next().get();
+			highRA.setPosition( lowCursor );
+			float high = highRA.get().get();
+			for(int surf=0; surf<nSurfaces; surf++)
+			{
+				mapRA[surf].setPosition( lowCursor );
+				float z = mapRA[surf].get().get();
+				if( (z<=low & low>1) | (z>=high & high<Depth) )
+				{	nTouching++;
+					break;
+				}
+			}
+		}
+		return nTouching;
+	}
+
+}
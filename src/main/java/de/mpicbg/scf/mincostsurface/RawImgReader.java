@@ -0,0 +1,124 @@
+package de.mpicbg.scf.mincostsurface;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import net.imglib2.Cursor;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.DiskCachedCellImgOptions.CacheType;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+
+/**
+ *
+ * Open a raw 3D volume (x varying fastest, then y, then z, after an optional header) as a cell image that is read
+ * from the disk cell by cell, when the cells are accessed, and kept in a bounded cache (the least recently used cells
+ * are evicted). Volumes larger than the memory can then be given to the ops: the downsampling reads the input by
+ * rows, slice after slice, so that each of its threads only needs the cells of a few slices at a time, and the
+ * band graphs of the pyramid solver read the cost columns through a RandomAccess.
+ *
+ * The default cells hold full rows, so that a cell is read with one file access per row. The file is opened for
+ * each cell load and closed once the cell is read, so no file handle is held by the image.
+ *
+ */
+public class RawImgReader {
+
+
+
+	/**
+	 * open the raw volume with cells of (width, 64, 8) voxels and at most 256 cells in memory
+	 */
+	public static < T extends RealType<T> & NativeType<T> > Img<T> open(File file, long[] dimensions, T type, long headerBytes, ByteOrder order) throws IOException
+	{
+		return open(file, dimensions, type, headerBytes, order, new int[] {(int)dimensions[0], 64, 8}, 256);
+	}
+
+
+
+	/**
+	 * @param file the raw volume
+	 * @param dimensions width, height and depth of the volume
+	 * @param type the type of the voxels, UnsignedByteType, UnsignedShortType or FloatType
+	 * @param headerBytes number of bytes before the first voxel
+	 * @param order byte order of the voxels
+	 * @param cellDimensions the size of the cells read at once
+	 * @param maxCachedCells the maximum number of cells kept in memory
+	 * @return a read-only cell image of the volume. The file is read again when an evicted cell is accessed, so it
+	 * should not be moved or modified while the image is used.
+	 */
+	public static < T extends RealType<T> & NativeType<T> > Img<T> open(File file, long[] dimensions, T type, long headerBytes, ByteOrder order,
+			int[] cellDimensions, long maxCachedCells) throws IOException
+	{
+		final int bytesPerVoxel = getBytesPerVoxel(type);
+		long expectedBytes = headerBytes + dimensions[0]*dimensions[1]*dimensions[2]*bytesPerVoxel;
+		if( file.length() < expectedBytes )
+			throw new IOException("the file " + file + " has " + file.length() + " bytes, " + expectedBytes + " are expected");
+
+		final long width = dimensions[0], height = dimensions[1];
+		CellLoader< T > loader = cell -> {
+			int cellWidth = (int)cell.dimension(0);
+			ByteBuffer row = ByteBuffer.allocate( cellWidth*bytesPerVoxel ).order( order );
+			Cursor< T > cursor = cell.cursor();
+			try( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ ) )
+			{
+				// the cursor of a cell visits x first, then y and z, as the file
+				for(long z=cell.min(2); z<=cell.max(2); z++)
+					for(long y=cell.min(1); y<=cell.max(1); y++)
+					{
+						row.clear();
+						long position = headerBytes + ( (z*height + y)*width + cell.min(0) ) * bytesPerVoxel;
+						while( row.hasRemaining() )
+							if( channel.read(row, position + row.position()) < 0 )
+								throw new IOException("unexpected end of the file " + file);
+						row.flip();
+						for(int x=0; x<cellWidth; x++)
+							cursor.next().setReal( read(row, bytesPerVoxel) );
+					}
+			}
+		};
+
+		ReadOnlyCachedCellImgOptions options = ReadOnlyCachedCellImgOptions.options()
+				.cellDimensions( cellDimensions )
+				.cacheType( CacheType.BOUNDED )
+				.maxCacheSize( maxCachedCells );
+		return new ReadOnlyCachedCellImgFactory( options ).create( dimensions.clone(), type.createVariable(), loader );
+	}
+
+
+
+	private static int getBytesPerVoxel(Object type)
+	{
+		if( type instanceof UnsignedByteType )
+			return 1;
+		if( type instanceof UnsignedShortType )
+			return 2;
+		if( type instanceof FloatType )
+			return 4;
+		throw new IllegalArgumentException("raw volumes of " + type.getClass().getSimpleName() + " are not supported");
+	}
+
+	private static float read(ByteBuffer buffer, int bytesPerVoxel)
+	{
+		switch( bytesPerVoxel )
+		{
+			case 1:
+				return buffer.get() & 0xff;
+			case 2:
+				return buffer.getShort() & 0xffff;
+			default:
+				return buffer.getFloat();
+		}
+	}
+
+}
@@ -38,6 +38,9 @@ public class ResliceAlongZMapMT_Ops < T extends RealType<T> & NativeType< T >, U
     @Parameter ( label = "Number of Threads")
     private int numThreads;
 
+    @Parameter ( label = "lazy (compute the excerpt on access)", required = false, persist = false ) // cached cells, see img_utils.ZSurface_resliceCached
+    private boolean lazy = false;
+
 
     // output
     @Parameter  (type = ItemIO.OUTPUT)
@@ -53,7 +56,10 @@ public class ResliceAlongZMapMT_Ops < T extends RealType<T> & NativeType< T >, U
         Img<T> input_img = (Img<T>) input;
         Img<U> zMap_img = (Img<U>) zMap;
 
-        outputExcerpt = img_utils.ZSurface_reslice3(input_img, zMap_img, sliceAbove, sliceBelow, numThreads);
+        if( lazy )
+            outputExcerpt = img_utils.ZSurface_resliceCached(input_img, zMap_img, sliceAbove, sliceBelow);
+        else
+            outputExcerpt = img_utils.ZSurface_resliceTiles(input_img, zMap_img, sliceAbove, sliceBelow, numThreads);
     }
 
 
@@ -45,6 +45,9 @@ public class ResliceAlongZMap_Ops < T extends NumericType<T> & NativeType< T >,
 
     @Parameter ( label = "slice Below the z map" )
     private int sliceBelow;
+    
+    @Parameter ( label = "lazy (compute the excerpt on access)", required = false, persist = false ) // cached cells, see img_utils.ZSurface_resliceCached
+    private boolean lazy = false;
    
     
     // output
@@ -61,7 +64,10 @@ public class ResliceAlongZMap_Ops < T extends NumericType<T> & NativeType< T >,
     	Img<T> input_img = (Img<T>) input;
     	Img<U> zMap_img = (Img<U>) zMap;
     	
-    	outputExcerpt = img_utils.ZSurface_reslice2(input_img, zMap_img, sliceAbove, sliceBelow);
+    	if( lazy )
+    		outputExcerpt = img_utils.ZSurface_resliceCached(input_img, zMap_img, sliceAbove, sliceBelow);
+    	else
+    		outputExcerpt = img_utils.ZSurface_resliceTiles(input_img, zMap_img, sliceAbove, sliceBelow, 1);
     	
     }
 
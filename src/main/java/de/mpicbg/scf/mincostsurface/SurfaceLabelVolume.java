@@ -0,0 +1,131 @@
+package de.mpicbg.scf.mincostsurface;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.position.FunctionRandomAccessible;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.view.Views;
+
+
+/**
+ *
+ * Bit-packed labelling of a volume by several surfaces, built by MinCostZSurface.get_Surface_Labels().
+ *
+ * Each voxel holds one bit per surface, set if the voxel is below the surface (z < altitude, the voxels at 255 in
+ * MinCostZSurface.get_Surface_Mask()). The bits of a voxel are stored in a field of getBitsPerVoxel() bits, the
+ * number of surfaces rounded up to a power of 2, so that a voxel never straddles 2 longs: the voxel i is stored in
+ * the bits (i % voxelsPerLong)*bitsPerVoxel of the long i / voxelsPerLong, with voxelsPerLong = 64 / bitsPerVoxel.
+ * 3 surfaces then take half a byte per voxel instead of 3 bytes for 3 masks.
+ *
+ */
+public class SurfaceLabelVolume {
+
+
+	private final long[] dimensions;
+	private final int nSurfaces;
+	private final int bitsPerVoxel;
+	private final int voxelsPerLong;
+	private final LongArray data;
+
+
+
+	/**
+	 * @param dimensions width, height and depth of the volume
+	 * @param nSurfaces the number of surfaces, at most 64
+	 * @param data the packed bits, ceil(nVoxels / voxelsPerLong) longs
+	 */
+	SurfaceLabelVolume(long[] dimensions, int nSurfaces, LongArray data)
+	{
+		this.dimensions = dimensions.clone();
+		this.nSurfaces = nSurfaces;
+		this.bitsPerVoxel = getBitsPerVoxel(nSurfaces);
+		this.voxelsPerLong = 64 / bitsPerVoxel;
+		this.data = data;
+	}
+
+
+
+	/**
+	 * @return the number of bits used by a voxel for nSurfaces surfaces
+	 */
+	static int getBitsPerVoxel(int nSurfaces)
+	{
+		int bits = 1;
+		while( bits<nSurfaces )
+			bits *= 2;
+		return bits;
+	}
+
+
+
+	public long[] getDimensions(){ return dimensions.clone(); }
+
+	public int getNSurfaces(){ return nSurfaces; }
+
+	public int getBitsPerVoxel(){ return bitsPerVoxel; }
+
+	/**
+	 * @return the packed bits (see the class description)
+	 */
+	public LongArray getData(){ return data; }
+
+
+
+	/**
+	 * @return the bits of the voxel (x, y, z), bit s-1 being set if the voxel is below the surface s
+	 */
+	public long getBits(long x, long y, long z)
+	{
+		long i = x + y*dimensions[0] + z*dimensions[0]*dimensions[1];
+		long word = data.getValue( (int)(i / voxelsPerLong) );
+		int shift = (int)(i % voxelsPerLong) * bitsPerVoxel;
+		long mask = bitsPerVoxel==64 ? -1L : (1L<<bitsPerVoxel)-1;
+		return (word >>> shift) & mask;
+	}
+
+	/**
+	 * @param Surf_Id the id of the surface (id starts at 1)
+	 * @return true if the voxel (x, y, z) is below the surface
+	 */
+	public boolean isBelow(long x, long y, long z, int Surf_Id)
+	{
+		return ( getBits(x, y, z) >>> (Surf_Id-1) & 1 ) != 0;
+	}
+
+	/**
+	 * @return the number of surfaces the voxel (x, y, z) is above (z >= altitude). For surfaces that do not cross it is
+	 * the index of the layer of the voxel, 0 below the lowest surface and nSurfaces above the highest one.
+	 */
+	public int getLayer(long x, long y, long z)
+	{
+		return nSurfaces - Long.bitCount( getBits(x, y, z) );
+	}
+
+
+
+	/**
+	 * @return a view of the layer index of each voxel (see getLayer())
+	 */
+	public RandomAccessibleInterval<UnsignedByteType> getLayerView()
+	{
+		FunctionRandomAccessible< UnsignedByteType > layers = new FunctionRandomAccessible< UnsignedByteType >( 3, (position, value) ->
+				value.set( getLayer(position.getLongPosition(0), position.getLongPosition(1), position.getLongPosition(2)) ),
+				UnsignedByteType::new );
+		return Views.interval( layers, new FinalInterval(dimensions) );
+	}
+
+	/**
+	 * @param Surf_Id the id of the surface (id starts at 1)
+	 * @return a view of the mask of the surface, with the values of MinCostZSurface.get_Surface_Mask() (255 below the surface, 0 above)
+	 */
+	public RandomAccessibleInterval<ByteType> getMaskView(final int Surf_Id)
+	{
+		FunctionRandomAccessible< ByteType > mask = new FunctionRandomAccessible< ByteType >( 3, (position, value) ->
+				value.set( isBelow(position.getLongPosition(0), position.getLongPosition(1), position.getLongPosition(2), Surf_Id) ? (byte)255 : (byte)0 ),
+				ByteType::new );
+		return Views.interval( mask, new FinalInterval(dimensions) );
+	}
+
+}
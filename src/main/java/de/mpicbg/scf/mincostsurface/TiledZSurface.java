@@ -0,0 +1,291 @@
+package de.mpicbg.scf.mincostsurface;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.multithreading.SimpleMultiThreading;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.IntervalView;
+import net.imglib2.view.Views;
+
+
+/**
+ *
+ * Solve a minimum cost z-surface problem by cutting the volume in y-stripes (tiles) that are solved in parallel.
+ *
+ * Each tile is solved with a halo of extra rows on both sides and only its core rows are kept, which reduces the
+ * influence of the tile borders on the solution. Then a band of rows around each seam between 2 tiles is solved
+ * again with the rows bordering the band pinned to the tiles solution (see MinCostZSurface.Pin_Surface_Column),
+ * so that the max_dz constraint also holds across the seams. By default the halo is DEFAULT_HALO x max_dz rows
+ * and the seam band DEFAULT_SEAM_BAND x max_dz rows (max_dz counted at least 1). With a halo and a seam band of 0
+ * the tiles are solved independently as in the first multi-threaded ops.
+ *
+ */
+public class TiledZSurface< T extends RealType<T> & NativeType< T > > {
+
+
+	public static final int DEFAULT_HALO = 4;      // in multiples of max_dz
+	public static final int DEFAULT_SEAM_BAND = 2; // in multiples of max_dz
+
+	/**
+	 * build the surface graphs and the constraints of the problem for the cost image of a tile
+	 */
+	public interface GraphBuilder< T extends RealType<T> & NativeType< T > >
+	{
+		boolean build(MinCostZSurface<T> detector, Img<T> cost);
+	}
+
+
+
+	private final GraphBuilder<T> builder;
+	private final int nSurfaces;
+	private final int max_dz;
+	private MaxFlowSolver.Type solverType = MaxFlowSolver.Type.GRAPH_CUT;
+	private int halo;
+	private int seamBand;
+	private int nRejectedSeams;
+
+
+
+	/**
+	 * @param builder builds the graph of a tile
+	 * @param nSurfaces the number of surfaces created by the builder
+	 * @param max_dz maximum altitude variation between 2 pixels used by the builder
+	 */
+	public TiledZSurface(GraphBuilder<T> builder, int nSurfaces, int max_dz)
+	{
+		this.builder = builder;
+		this.nSurfaces = nSurfaces;
+		this.max_dz = max_dz;
+		this.halo = DEFAULT_HALO * Math.max(1, max_dz);
+		this.seamBand = DEFAULT_SEAM_BAND * Math.max(1, max_dz);
+	}
+
+
+
+	public void setSolverType(MaxFlowSolver.Type solverType){ this.solverType = solverType;}
+
+	/**
+	 * @param halo number of rows added on both sides of each tile
+	 */
+	public void setHalo(int halo){ this.halo = Math.max(0, halo);}
+
+	/**
+	 * @param seamBand half height of the band of rows solved again around each seam (0 to skip the seam reconciliation),
+	 * at most (tile height - 1)/2 so that the bands of 2 seams never touch
+	 */
+	public void setSeamBand(int seamBand){ this.seamBand = Math.max(0, seamBand);}
+
+	public int getHalo(){ return halo;}
+
+	public int getSeamBand(){ return seamBand;}
+
+	/**
+	 * @return the number of seams of the last process() whose band could not be solved consistently with the pinned rows,
+	 * the tiles solution is kept for these seams
+	 */
+	public int getNRejectedSeams(){ return nRejectedSeams;}
+
+
+
+	/**
+	 * Compute the altitude maps of the surfaces
+	 *
+	 * @param cost the cost image
+	 * @param nTiles the number of tiles, each tile and each seam band is solved in its own thread
+	 * @param depthMaps the altitude map of each surface, 2D images with the same xy dimensions as cost
+	 */
+	@SafeVarargs
+	public final < R extends RealType<R> > void process(final Img<T> cost, int nTiles, final RandomAccessibleInterval<R>... depthMaps)
+	{
+		final long Height = cost.dimension(1);
+		nTiles = (int)Math.max(1, Math.min(nTiles, Height));
+		final long tileHeight = Height / nTiles;
+
+		// tiles, the last one receives the remaining rows
+		final long[] tileStart = new long[nTiles+1];
+		for(int i=0; i<nTiles; i++)
+			tileStart[i] = tileHeight*i;
+		tileStart[nTiles] = Height;
+
+		final Thread[] threads = SimpleMultiThreading.newThreads( nTiles );
+		for ( int i = 0; i < threads.length; i++ )
+		{
+			final int finalI = i;
+			threads[ i ] = new Thread( "MinCostZSurface tile " + finalI)
+			{
+				@Override
+				public void run()
+				{
+					long y0 = Math.max(0, tileStart[finalI]-halo);
+					long y1 = Math.min(Height, tileStart[finalI+1]+halo);
+					solve(cost, y0, y1, null, tileStart[finalI], tileStart[finalI+1], depthMaps);
+				}
+			};
+		}
+		SimpleMultiThreading.startAndJoin( threads );
+
+		nRejectedSeams = 0;
+		// an untouched row separates 2 seam bands, so that the rows pinned by a seam are not modified by its neighbours
+		final long band = Math.min(seamBand, (tileHeight-1)/2);
+		if( band<=0 | nTiles<2 )
+			return;
+
+		final int nSeams = nTiles-1;
+		final boolean[] accepted = new boolean[nSeams];
+		final long[][] range = new long[nSeams][];
+		final float[][][][] pins = new float[nSeams][][][];
+		// the pinned rows are read before any band is updated
+		for(int k=0; k<nSeams; k++)
+		{
+			long s = tileStart[k+1];
+			long b0 = Math.max(0, s-band), b1 = Math.min(Height, s+band);
+			long y0 = Math.max(0, b0-1), y1 = Math.min(Height, b1+1);
+			range[k] = new long[] {y0, y1, b0, b1};
+			pins[k] = new float[nSurfaces][2][];
+			for(int surf=0; surf<nSurfaces; surf++)
+			{
+				pins[k][surf][0] = y0<b0 ? readRow(depthMaps[surf], y0) : null;
+				pins[k][surf][1] = y1>b1 ? readRow(depthMaps[surf], y1-1) : null;
+			}
+		}
+
+		final Thread[] seamThreads = SimpleMultiThreading.newThreads( nSeams );
+		for ( int k = 0; k < seamThreads.length; k++ )
+		{
+			final int finalK = k;
+			seamThreads[ k ] = new Thread( "MinCostZSurface seam " + finalK)
+			{
+				@Override
+				public void run()
+				{
+					long[] r = range[finalK];
+					accepted[finalK] = solve(cost, r[0], r[1], pins[finalK], r[2], r[3], depthMaps);
+				}
+			};
+		}
+		SimpleMultiThreading.startAndJoin( seamThreads );
+		for(boolean ok : accepted)
+			if( !ok )
+				nRejectedSeams++;
+	}
+
+
+
+	/**
+	 * solve the rows [y0, y1) of the cost image and copy the rows [keep0, keep1) of the solution in the depth maps
+	 *
+	 * @param pins if not null, pins[surf][0] and pins[surf][1] are the altitudes imposed to the first and last rows
+	 * @return false if the solution does not respect the pins or the max_dz constraint, the depth maps are then not modified
+	 */
+	private < R extends RealType<R> > boolean solve(Img<T> cost, long y0, long y1, float[][][] pins, long keep0, long keep1, RandomAccessibleInterval<R>[] depthMaps)
+	{
+		long[] dims = new long[] {cost.dimension(0), y1-y0, cost.dimension(2)};
+		final Img< T > part = cost.factory().create( new FinalInterval(dims) );
+		IntervalView< T > intervalView = Views.offset( cost, new long[] {0, y0, 0} );
+		Cursor< T > cursor = part.cursor();
+		RandomAccess< T > randomAccess = intervalView.randomAccess();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			randomAccess.setPosition( cursor );
+			cursor.get().set( randomAccess.get() );
+		}
+
+		MinCostZSurface<T> ZSurface_detector = new MinCostZSurface<T>();
+		ZSurface_detector.setSolverType( solverType );
+		if( !builder.build(ZSurface_detector, part) )
+			return false;
+		if( pins!=null )
+			for(int surf=0; surf<nSurfaces; surf++)
+				for(int side=0; side<2; side++)
+					if( pins[surf][side]!=null )
+						for(int x=0; x<dims[0]; x++)
+							ZSurface_detector.Pin_Surface_Column(surf+1, x, side==0 ? 0 : dims[1]-1, Math.round(pins[surf][side][x]) );
+		ZSurface_detector.Process();
+
+		Img<FloatType>[] maps = new Img[nSurfaces];
+		for(int surf=0; surf<nSurfaces; surf++)
+		{
+			maps[surf] = ZSurface_detector.get_Altitude_Map(surf+1);
+			if( pins!=null && !isValid(maps[surf], pins[surf]) )
+				return false;
+		}
+
+		for(int surf=0; surf<nSurfaces; surf++)
+		{
+			RandomAccess< R > out = depthMaps[surf].randomAccess();
+			Cursor< FloatType > mapCursor = maps[surf].localizingCursor();
+			while( mapCursor.hasNext() )
+			{
+				mapCursor.fwd();
+				long y = mapCursor.getLongPosition(1) + y0;
+				if( y<keep0 | y>=keep1 )
+					continue;
+				out.setPosition( mapCursor.getLongPosition(0), 0 );
+				out.setPosition( y, 1 );
+				out.get().setReal( mapCursor.get().getRealFloat() );
+			}
+		}
+		return true;
+	}
+
+
+
+	/**
+	 * @return true if the altitude map respects the pinned rows and the max_dz constraint
+	 */
+	private boolean isValid(Img<FloatType> map, float[][] pins)
+	{
+		long Width = map.dimension(0);
+		long Height = map.dimension(1);
+		RandomAccess< FloatType > ra = map.randomAccess();
+		for(int side=0; side<2; side++)
+		{
+			if( pins[side]==null )
+				continue;
+			ra.setPosition( side==0 ? 0 : Height-1, 1 );
+			for(int x=0; x<Width; x++)
+			{
+				ra.setPosition( x, 0 );
+				if( Math.round(ra.get().get()) != Math.round(pins[side][x]) )
+					return false;
+			}
+		}
+
+		float[] previous = null;
+		for(long y=0; y<Height; y++)
+		{
+			float[] row = readRow(map, y);
+			for(int x=0; x<Width; x++)
+			{
+				if( x>0 && Math.abs(row[x]-row[x-1]) > max_dz )
+					return false;
+				if( previous!=null && Math.abs(row[x]-previous[x]) > max_dz )
+					return false;
+			}
+			previous = row;
+		}
+		return true;
+	}
+
+
+
+	private static < R extends RealType<R> > float[] readRow(RandomAccessibleInterval<R> map, long y)
+	{
+		float[] row = new float[(int)map.dimension(0)];
+		RandomAccess< R > ra = map.randomAccess();
+		ra.setPosition( y, 1 );
+		for(int x=0; x<row.length; x++)
+		{
+			ra.setPosition( x, 0 );
+			row[x] = ra.get().getRealFloat();
+		}
+		return row;
+	}
+
+}
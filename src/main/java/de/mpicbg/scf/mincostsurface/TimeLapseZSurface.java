@@ -0,0 +1,154 @@
+package de.mpicbg.scf.mincostsurface;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+
+/**
+ *
+ * Solve a minimum cost z-surface problem for each frame of a time-lapse (x, y, z, t cost image).
+ *
+ * The frames are downsampled directly from the time-lapse and streamed through a single max-flow solver instance,
+ * so the implicit solvers reuse their buffers from one frame to the next. The first frame is solved on the whole volume, then the
+ * graph of each frame is only built in a band of slices around the surfaces of the previous frame (see
+ * MinCostZSurface.setBand()). If the solution of a frame touches the band limits somewhere, the surfaces moved
+ * more than the band allows and the frame is solved again on the whole volume.
+ *
+ */
+public class TimeLapseZSurface< T extends RealType<T> & NativeType< T > > {
+
+
+
+	private final TiledZSurface.GraphBuilder<T> builder;
+	private final int nSurfaces;
+	private MaxFlowSolver.Type solverType = MaxFlowSolver.Type.GRAPH_CUT;
+	private int bandHalfWidth = 8;
+	private img_utils.Downsampling downsampling = img_utils.Downsampling.Gaussian;
+	private int nFallbacks;
+
+
+
+	/**
+	 * @param builder builds the graph of a frame
+	 * @param nSurfaces the number of surfaces created by the builder
+	 */
+	public TimeLapseZSurface(TiledZSurface.GraphBuilder<T> builder, int nSurfaces)
+	{
+		this.builder = builder;
+		this.nSurfaces = nSurfaces;
+	}
+
+
+
+	public void setSolverType(MaxFlowSolver.Type solverType){ this.solverType = solverType;}
+
+	/**
+	 * @param bandHalfWidth number of slices searched above and below the surfaces of the previous frame (0 to solve every frame on the whole volume)
+	 */
+	public void setBandHalfWidth(int bandHalfWidth){ this.bandHalfWidth = Math.max(0, bandHalfWidth);}
+
+	/**
+	 * @param downsampling how the frames are averaged when it is downsampled
+	 */
+	public void setDownsampling(img_utils.Downsampling downsampling){ this.downsampling = downsampling;}
+
+	/**
+	 * @return the number of frames of the last process() that were solved again on the whole volume
+	 */
+	public int getNFallbacks(){ return nFallbacks;}
+
+
+
+	/**
+	 * Compute the altitude maps of the surfaces in each frame
+	 *
+	 * @param cost the cost image (x, y, z, t), it is not modified
+	 * @param downsample_factor_xy downsampling factor of the frames in x and y
+	 * @param downsample_factor_z downsampling factor of the frames in z
+	 * @param depthMaps the altitude map of each surface, 3D images (x, y, t) with the same x, y and t dimensions as cost
+	 */
+	@SafeVarargs
+	public final < R extends RealType<R> > void process(Img<T> cost, float downsample_factor_xy, float downsample_factor_z, RandomAccessibleInterval<R>... depthMaps)
+	{
+		long[] frameDims = new long[] {cost.dimension(0), cost.dimension(1), cost.dimension(2)};
+		long nFrames = cost.dimension(3);
+		float[] ratio = new float[] {downsample_factor_xy, downsample_factor_xy, downsample_factor_z};
+
+		MaxFlowSolver solver = solverType.create();
+		Img<FloatType>[] maps = null;
+		nFallbacks = 0;
+
+		for(long t=0; t<nFrames; t++)
+		{
+			Img<T> frameCost = img_utils.downsample(Views.hyperSlice(cost, 3, t), ratio, downsampling);
+			long Depth = frameCost.dimension(2);
+
+			Img<FloatType>[] frameMaps = null;
+			if( maps!=null & bandHalfWidth>0 )
+			{
+				Img<FloatType> zLow = PyramidZSurface.bandLimit(maps, -bandHalfWidth);
+				Img<FloatType> zHigh = PyramidZSurface.bandLimit(maps, bandHalfWidth);
+				frameMaps = solve(frameCost, solver, zLow, zHigh);
+				if( frameMaps!=null )
+				{
+					// the surfaces moved more than the band allows, the whole volume is solved
+					if( PyramidZSurface.countTouchingColumns(frameMaps, zLow, zHigh, Depth) > 0 )
+						frameMaps = null;
+				}
+				if( frameMaps==null )
+					nFallbacks++;
+			}
+			if( frameMaps==null )
+				frameMaps = solve(frameCost, solver, null, null);
+			if( frameMaps==null )
+				return;
+			maps = frameMaps;
+
+			// upsample the altitude maps of the frame and compensate the z sampling
+			for(int surf=0; surf<nSurfaces; surf++)
+			{
+				Img<FloatType> upsampled = img_utils.upsample(maps[surf], new long[] {frameDims[0], frameDims[1]}, img_utils.Interpolator.Linear, 1/ downsample_factor_z, 0 );
+				RandomAccess< R > out = Views.hyperSlice( depthMaps[surf], 2, t ).randomAccess();
+				Cursor< FloatType > mapCursor = upsampled.localizingCursor();
+				while( mapCursor.hasNext() )
+				{
+					mapCursor.fwd();
+					out.setPosition( mapCursor );
+					out.get().setReal( mapCursor.get().getRealFloat() );
+				}
+			}
+		}
+	}
+
+
+
+	/**
+	 * @return the altitude maps of the frame solved in the band [zLow, zHigh] (on the whole volume if zLow is null),
+	 * or null if the graph could not be built
+	 */
+	private Img<FloatType>[] solve(Img<T> cost, MaxFlowSolver solver, Img<FloatType> zLow, Img<FloatType> zHigh)
+	{
+		MinCostZSurface<T> ZSurface_detector = new MinCostZSurface<T>();
+		if( zLow!=null )
+			ZSurface_detector.setBand(zLow, zHigh);
+		ZSurface_detector.setSolverType( solverType );
+		if( !builder.build(ZSurface_detector, cost) )
+			return null;
+		if( ZSurface_detector.isLargeGraph() & !solverType.supportsLargeGraphs() )
+			ZSurface_detector.Process();
+		else
+			ZSurface_detector.Process( solver );
+
+		Img<FloatType>[] maps = new Img[nSurfaces];
+		for(int surf=0; surf<nSurfaces; surf++)
+			maps[surf] = ZSurface_detector.get_Altitude_Map(surf+1);
+		return maps;
+	}
+
+}
@@ -0,0 +1,321 @@
+package de.mpicbg.scf.mincostsurface;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ *
+ * Predict the size of the graph built by MinCostZSurface, the memory it needs and the time of the max-flow computation
+ * before the cost image is downsampled, so that the downsampling factors can be checked (or chosen, see chooseFactors())
+ * before a long computation fails with an OutOfMemoryError.
+ *
+ * The problem is described as in MinCostZSurface: a surface per addSurface() and a constraint per
+ * addNoCrossingConstraint() or addCrossingConstraint(). The altitude variations and distances are given at full
+ * resolution and scaled for the estimated factors as in the pyramid of the ops (max_dz keeps the same slope, the
+ * distances are rounded so that a constraint is never tighter than at full resolution).
+ *
+ * The node and edge counts use the same formulas as Create_Surface_Graph() and the constraint methods. The memory is
+ * the peak of the graph (terminal weights and edge arrays), of the downsampled cost image and of the solver buffers:
+ * - GRAPH_CUT copies the edge arrays in graphcut.GraphCut, about GRAPH_CUT_BYTES_PER_NODE and GRAPH_CUT_BYTES_PER_EDGE
+ * - IMPLICIT_GRID keeps an excess and a label per node and a flow per node and edge family, and a FIFO of the nodes
+ * - DUAL_DECOMPOSITION copies the terminal weights in its subgraphs and solves them with IMPLICIT_GRID
+ * - PARALLEL_PUSH_RELABEL keeps an active flag per node in addition to the IMPLICIT_GRID buffers, always on the heap
+ * The arrays of an off-heap storage (see BigArrayStorage) are counted in offHeapBytes instead of heapBytes. As in
+ * MinCostZSurface.setStorage(), an off-heap storage keeps the graph implicit and is only accepted by the IMPLICIT_GRID
+ * and DUAL_DECOMPOSITION solvers.
+ *
+ * The time is linear in the number of edges. The default rates were measured on random cost volumes, which are
+ * harder than real cost images, so they overestimate the time; calibrate() adjusts a rate from a measured computation.
+ *
+ */
+public class ZSurfaceEstimator {
+
+
+	public static final long GRAPH_CUT_BYTES_PER_NODE = 48;
+	public static final long GRAPH_CUT_BYTES_PER_EDGE = 32; // an edge and its reverse edge
+
+
+
+	/**
+	 * The predicted resources of a problem for a pair of downsampling factors
+	 */
+	public static class Estimate
+	{
+		public final float factor_xy;
+		public final float factor_z;
+		public final long[] dimensions;       // dimensions of the downsampled cost image
+		public final long nNodes;
+		public final long nEdges;             // non terminal edges
+		public final boolean largeGraph;      // see MinCostZSurface.isLargeGraph()
+		public final MaxFlowSolver.Type solverType; // the solver used by Process(), IMPLICIT_GRID if GRAPH_CUT can not solve a large graph
+		public final long heapBytes;
+		public final long offHeapBytes;
+		public final double seconds;
+
+		Estimate(float factor_xy, float factor_z, long[] dimensions, long nNodes, long nEdges, boolean largeGraph,
+				MaxFlowSolver.Type solverType, long heapBytes, long offHeapBytes, double seconds)
+		{
+			this.factor_xy = factor_xy;
+			this.factor_z = factor_z;
+			this.dimensions = dimensions;
+			this.nNodes = nNodes;
+			this.nEdges = nEdges;
+			this.largeGraph = largeGraph;
+			this.solverType = solverType;
+			this.heapBytes = heapBytes;
+			this.offHeapBytes = offHeapBytes;
+			this.seconds = seconds;
+		}
+
+		/**
+		 * @return true if the heap and the time fit the budgets, a budget <= 0 is not checked
+		 */
+		public boolean fits(long maxHeapBytes, double maxSeconds)
+		{
+			return ( maxHeapBytes<=0 || heapBytes<=maxHeapBytes ) && ( maxSeconds<=0 || seconds<=maxSeconds );
+		}
+
+		@Override
+		public String toString()
+		{
+			return "rescale xy " + factor_xy + ", z " + factor_z + ": " + dimensions[0] + "x" + dimensions[1] + "x" + dimensions[2]
+					+ ", " + nNodes + " nodes, " + nEdges + " edges" + (largeGraph ? " (large graph)" : "") + ", " + solverType
+					+ ", heap " + (heapBytes>>20) + " MB" + (offHeapBytes>0 ? ", off-heap " + (offHeapBytes>>20) + " MB" : "")
+					+ ", about " + Math.round(seconds) + " s";
+		}
+	}
+
+
+
+	private static class Constraint
+	{
+		final boolean crossing;
+		final int surf1, surf2;
+		final float a, b; // min_dist and max_dist, or max_up and max_down
+
+		Constraint(boolean crossing, int surf1, int surf2, float a, float b)
+		{
+			this.crossing = crossing;
+			this.surf1 = surf1;
+			this.surf2 = surf2;
+			this.a = a;
+			this.b = b;
+		}
+	}
+
+
+
+	private final long[] dimensions;
+	private final List<Float> surfaces;        // max_dz of each surface at full resolution
+	private final List<Constraint> constraints;
+	private MaxFlowSolver.Type solverType = MaxFlowSolver.Type.GRAPH_CUT;
+	private BigArrayStorage storage = BigArrayStorage.HEAP;
+	private int bytesPerVoxel = 4;
+	private final Map<MaxFlowSolver.Type, Double> secondsPerEdge;
+
+
+
+	/**
+	 * @param dimensions width, height and depth of the full resolution cost image
+	 */
+	public ZSurfaceEstimator(long[] dimensions)
+	{
+		this.dimensions = dimensions.clone();
+		this.surfaces = new ArrayList<Float>();
+		this.constraints = new ArrayList<Constraint>();
+		this.secondsPerEdge = new EnumMap<MaxFlowSolver.Type, Double>(MaxFlowSolver.Type.class);
+		int nThreads = Runtime.getRuntime().availableProcessors();
+		secondsPerEdge.put(MaxFlowSolver.Type.GRAPH_CUT, 5e-6);
+		secondsPerEdge.put(MaxFlowSolver.Type.IMPLICIT_GRID, 5e-6);
+		secondsPerEdge.put(MaxFlowSolver.Type.DUAL_DECOMPOSITION, 5e-6 * 2 / nThreads);
+		secondsPerEdge.put(MaxFlowSolver.Type.PARALLEL_PUSH_RELABEL, 5e-6 * 2 / nThreads);
+	}
+
+
+
+	/**
+	 * add a surface, see MinCostZSurface.Create_Surface_Graph()
+	 *
+	 * @param max_dz maximum altitude variation between 2 pixels, at full resolution
+	 */
+	public void addSurface(float max_dz){ surfaces.add(max_dz);}
+
+	/**
+	 * see MinCostZSurface.Add_NoCrossing_Constraint_Between_Surfaces(), the distances are given at full resolution
+	 */
+	public void addNoCrossingConstraint(int surf1, int surf2, float min_dist, float max_dist)
+	{
+		constraints.add( new Constraint(false, surf1, surf2, min_dist, max_dist) );
+	}
+
+	/**
+	 * see MinCostZSurface.Add_Crossing_Constraint_Between_Surfaces(), the distances are given at full resolution
+	 */
+	public void addCrossingConstraint(int surf1, int surf2, float max_up, float max_down)
+	{
+		constraints.add( new Constraint(true, surf1, surf2, max_up, max_down) );
+	}
+
+	public void setSolverType(MaxFlowSolver.Type solverType){ this.solverType = solverType;}
+
+	/**
+	 * @param storage the storage given to MinCostZSurface.setStorage(), an off-heap storage needs IMPLICIT_GRID or DUAL_DECOMPOSITION
+	 */
+	public void setStorage(BigArrayStorage storage){ this.storage = storage;}
+
+	/**
+	 * @param bytesPerVoxel the size of a voxel of the cost image (4 for a FloatType image)
+	 */
+	public void setBytesPerVoxel(int bytesPerVoxel){ this.bytesPerVoxel = bytesPerVoxel;}
+
+	public void setSecondsPerEdge(MaxFlowSolver.Type type, double seconds){ secondsPerEdge.put(type, seconds);}
+
+	public double getSecondsPerEdge(MaxFlowSolver.Type type){ return secondsPerEdge.get(type);}
+
+	/**
+	 * adjust the time rate of a solver from a computation of the estimated problem
+	 *
+	 * @param estimate the estimate of the computed problem
+	 * @param seconds the measured time of the max-flow computation
+	 */
+	public void calibrate(Estimate estimate, double seconds)
+	{
+		if( estimate.nEdges>0 )
+			secondsPerEdge.put(estimate.solverType, seconds / estimate.nEdges);
+	}
+
+
+
+	/**
+	 * @param factor_xy downsampling factor in x and y (at most 1)
+	 * @param factor_z downsampling factor in z (at most 1)
+	 * @return the predicted resources of the problem at these factors
+	 * @throws IllegalArgumentException if the storage is off-heap and the solver does not support it
+	 */
+	public Estimate estimate(float factor_xy, float factor_z)
+	{
+		factor_xy = Math.min(1, factor_xy);
+		factor_z = Math.min(1, factor_z);
+		// as img_utils.downsample()
+		long Width = (int)(dimensions[0]*factor_xy);
+		long Height = (int)(dimensions[1]*factor_xy);
+		long Depth = (int)(dimensions[2]*factor_z);
+		long Slice = Width*Height;
+		long nNodes_perSurf = Slice*Depth;
+		long nSurf = surfaces.size();
+		long nNodes = nSurf*nNodes_perSurf;
+
+		// edges of the surfaces and constraints, as counted by MinCostZSurface
+		long[] dims = new long[] {Width, Height, Depth};
+		long nEdges = 0;
+		long nFamilies = 0;
+		for(float max_dz : surfaces)
+		{
+			nEdges += MinCostZSurface.surfaceEdgeCount(dims, PyramidZSurface.scaledDistance( max_dz * factor_z / factor_xy ));
+			nFamilies += 5;
+		}
+		for(Constraint c : constraints)
+		{
+			if( c.crossing )
+			{
+				nEdges += MinCostZSurface.crossingEdgeCount(dims, PyramidZSurface.scaledDistance( c.a * factor_z ), PyramidZSurface.scaledDistance( c.b * factor_z ));
+				nFamilies += 2;
+			}
+			else
+			{
+				int min_dist = (int)Math.floor( c.a * factor_z + 0.001f ), max_dist = Math.max( min_dist, PyramidZSurface.scaledDistance( c.b * factor_z ) );
+				nEdges += MinCostZSurface.noCrossingEdgeCount(dims, min_dist, max_dist);
+				nFamilies += min_dist==max_dist ? 1 : 2;
+			}
+		}
+
+		boolean largeGraph = nNodes > Integer.MAX_VALUE | nEdges > Integer.MAX_VALUE;
+		MaxFlowSolver.Type type = solverType;
+		if( largeGraph & !type.supportsLargeGraphs() )
+			type = MaxFlowSolver.Type.IMPLICIT_GRID;
+		if( storage.isOffHeap() & !type.supportsOffHeapStorage() )
+			throw new IllegalArgumentException("the solver " + type + " keeps its buffers on the Java heap, use IMPLICIT_GRID or DUAL_DECOMPOSITION with an off-heap storage");
+		boolean implicitGraph = largeGraph | storage.isOffHeap() | !type.usesEdgeArrays();
+
+		// bytes in the storage of the graph and of the solvers, and on the heap
+		long stored = 8*nNodes; // terminal weights
+		long heap = nNodes_perSurf*bytesPerVoxel; // downsampled cost image
+		if( !implicitGraph )
+			heap += 16*nEdges;
+		switch( type )
+		{
+			case GRAPH_CUT:
+				heap += GRAPH_CUT_BYTES_PER_NODE*nNodes + GRAPH_CUT_BYTES_PER_EDGE*nEdges;
+				break;
+			case DUAL_DECOMPOSITION:
+				// terminal weights of the subgraphs, then as IMPLICIT_GRID which solves the subgraphs
+				stored += 8*nNodes + 8*nNodes + 4*nFamilies*nNodes_perSurf;
+				heap += 8*nNodes;
+				break;
+			case IMPLICIT_GRID:
+				stored += 8*nNodes + 4*nFamilies*nNodes_perSurf;
+				heap += 8*nNodes; // the FIFO of the active nodes, at most
+				break;
+			case PARALLEL_PUSH_RELABEL:
+				heap += 12*nNodes + 4*nFamilies*nNodes_perSurf + 8*nNodes;
+				break;
+		}
+		long heapBytes = heap + ( storage.isOffHeap() ? 0 : stored );
+		long offHeapBytes = storage.isOffHeap() ? stored : 0;
+
+		double seconds = secondsPerEdge.get(type) * nEdges;
+		return new Estimate(factor_xy, factor_z, new long[] {Width, Height, Depth}, nNodes, nEdges, largeGraph, type, heapBytes, offHeapBytes, seconds);
+	}
+
+
+
+	/**
+	 * Choose the largest downsampling factors fitting the budgets. The factors are the given ones multiplied by the
+	 * largest scale in (0, 1] such that the estimate fits, the ratio of factor_z to factor_xy is kept.
+	 *
+	 * @param factor_xy the largest downsampling factor in x and y, e.g. 1
+	 * @param factor_z the largest downsampling factor in z
+	 * @param maxHeapBytes the heap budget, not checked if <= 0
+	 * @param maxSeconds the time budget, not checked if <= 0
+	 * @return the estimate of the chosen factors, null if the image would have to be downsampled below 2 voxels in a dimension
+	 */
+	public Estimate chooseFactors(float factor_xy, float factor_z, long maxHeapBytes, double maxSeconds)
+	{
+		factor_xy = Math.min(1, factor_xy);
+		factor_z = Math.min(1, factor_z);
+		Estimate estimate = estimate(factor_xy, factor_z);
+		if( estimate.fits(maxHeapBytes, maxSeconds) )
+			return estimate;
+
+		// smallest scale keeping at least 2 voxels in each dimension
+		double low = 0;
+		for(int d=0; d<3; d++)
+			low = Math.max(low, 2.0 / ( dimensions[d] * (d<2 ? factor_xy : factor_z) ));
+		if( low>=1 )
+			return null;
+		Estimate lowest = estimate( (float)(factor_xy*low), (float)(factor_z*low) );
+		if( !lowest.fits(maxHeapBytes, maxSeconds) )
+			return null;
+
+		// the resources grow with the scale, bisect between a fitting and a non fitting scale
+		double high = 1;
+		estimate = lowest;
+		for(int i=0; i<30 && high-low>1e-4; i++)
+		{
+			double scale = (low+high)/2;
+			Estimate e = estimate( (float)(factor_xy*scale), (float)(factor_z*scale) );
+			if( e.fits(maxHeapBytes, maxSeconds) )
+			{
+				low = scale;
+				estimate = e;
+			}
+			else
+				high = scale;
+		}
+		return estimate;
+	}
+
+}
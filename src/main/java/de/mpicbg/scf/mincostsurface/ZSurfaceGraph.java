@@ -0,0 +1,629 @@
+package de.mpicbg.scf.mincostsurface;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongPredicate;
+import java.util.function.Predicate;
+
+
+/**
+ *
+ * Implicit description of the graph built by MinCostZSurface.
+ *
+ * All the non terminal edges of the Li-Wu z-surface graph are regular: their end points are obtained from
+ * the (x, y, z) position of the tail node by a constant offset and their weights are the same for the whole
+ * graph. This class stores only the terminal weights of each surface and a small list of edge families,
+ * each family describing all the edges sharing the same offset. Solvers can then compute the neighbours of
+ * a node by index arithmetic instead of reading edge arrays.
+ *
+ * Nodes are numbered as in MinCostZSurface: node = (surface-1)*nNodes_perSurf + x + y*Width + z*Slice
+ *
+ * A graph can also be restricted to a band of slices: each column (x, y) then only has the nodes of the altitudes
+ * [zOffset, zOffset+Depth) where zOffset is given per column and Depth = dimensions[2] is the band depth, the node
+ * of altitude z being numbered with z-zOffset in place of z. The nodes below the band are considered on the source
+ * side and the nodes above the band on the sink side, the edges between the band and these nodes are not enumerated
+ * but added to the terminal weights of their end point in the band (see getSourceWeight() and getSinkWeight()).
+ * Since the offsets differ from column to column, the edges of a band graph are not regular anymore, the head
+ * of an edge is computed with getHead().
+ *
+ * The graph can also hold the explicit edge arrays built by MinCostZSurface, solvers that need them
+ * (e.g. GraphCutSolver) use them when available and enumerate the edge families otherwise.
+ *
+ */
+public class ZSurfaceGraph {
+
+
+	/**
+	 * receives the edges enumerated by visitEdges()
+	 */
+	public interface EdgeVisitor
+	{
+		void visit(long tail, long head);
+	}
+
+
+
+	/**
+	 * A family of edges tail -> tail + (dx, dy, dz) going from a surface to another one (possibly the same).
+	 * An edge exists for every tail node such that zMin <= z <= zMax and the head is inside the volume.
+	 */
+	public static class EdgeFamily
+	{
+		public final int fromSurface; // 0-based surface index of the tail nodes
+		public final int toSurface;   // 0-based surface index of the head nodes
+		public final int dx, dy, dz;
+		public final long zMin, zMax;
+		public final float capacity;        // weight of the edge tail -> head
+		public final float reverseCapacity; // weight of the edge head -> tail
+
+		EdgeFamily(int fromSurface, int toSurface, int dx, int dy, int dz, long zMin, long zMax, float capacity, float reverseCapacity)
+		{
+			this.fromSurface = fromSurface;
+			this.toSurface = toSurface;
+			this.dx = dx;
+			this.dy = dy;
+			this.dz = dz;
+			this.zMin = zMin;
+			this.zMax = zMax;
+			this.capacity = capacity;
+			this.reverseCapacity = reverseCapacity;
+		}
+	}
+
+
+
+	private final long[] dimensions;
+	private final long Width;
+	private final long Slice;
+	private final long nNodes_perSurf;
+	private final int[] zOffset;      // altitude of the first node of each column, null if the graph covers the whole volume
+	private final long volumeDepth;
+	private final float infiniteWeight;
+	private final float zeroWeight;
+	private final List<BigFloatArray[]> terminal_weights;
+	private final List<EdgeFamily> families;
+	private final List<int[][]> edges;
+	private final List<float[][]> edges_weights;
+	private BigArrayStorage storage = BigArrayStorage.HEAP; // storage of the terminal weights of the subgraphs
+
+
+
+	public ZSurfaceGraph(long[] dimensions, float infiniteWeight, float zeroWeight)
+	{
+		this(dimensions, null, dimensions[2], infiniteWeight, zeroWeight);
+	}
+
+
+
+	/**
+	 * Create the graph of a band of slices of the volume
+	 *
+	 * @param dimensions width, height and depth of the band
+	 * @param zOffset altitude of the first slice of the band for each column x + y*Width, null if the band is the whole volume
+	 * @param volumeDepth the depth of the volume, zOffset + dimensions[2] should not exceed it
+	 */
+	public ZSurfaceGraph(long[] dimensions, int[] zOffset, long volumeDepth, float infiniteWeight, float zeroWeight)
+	{
+		this.dimensions = dimensions.clone();
+		this.zOffset = zOffset;
+		this.volumeDepth = volumeDepth;
+		this.Width = dimensions[0];
+		this.Slice = dimensions[0]*dimensions[1];
+		this.nNodes_perSurf = dimensions[0]*dimensions[1]*dimensions[2];
+		this.infiniteWeight = infiniteWeight;
+		this.zeroWeight = zeroWeight;
+		this.terminal_weights = new ArrayList<BigFloatArray[]>();
+		this.families = new ArrayList<EdgeFamily>();
+		this.edges = new ArrayList<int[][]>();
+		this.edges_weights = new ArrayList<float[][]>();
+	}
+
+
+
+	public long[] getDimensions(){ return dimensions.clone(); }
+
+	public int getNSurfaces(){ return terminal_weights.size(); }
+
+	public long getNNodesPerSurface(){ return nNodes_perSurf; }
+
+	public long getNNodes(){ return nNodes_perSurf * terminal_weights.size(); }
+
+	public int getNFamilies(){ return families.size(); }
+
+	public EdgeFamily getFamily(int i){ return families.get(i); }
+
+	public float getInfiniteWeight(){ return infiniteWeight; }
+
+	/**
+	 * @return true if the graph only covers a band of slices of the volume
+	 */
+	public boolean isBand(){ return zOffset!=null; }
+
+	/**
+	 * @return the depth of the volume, equal to getDimensions()[2] unless the graph is a band
+	 */
+	public long getVolumeDepth(){ return volumeDepth; }
+
+	/**
+	 * @return the altitude of the nodes of the first slice of the graph in the column x + y*Width
+	 */
+	public long getZOffset(long column){ return zOffset==null ? 0 : zOffset[(int)column]; }
+
+	/**
+	 * @return the altitude of the first slice of each column, null if the graph is not a band
+	 */
+	public int[] getZOffsets(){ return zOffset; }
+
+	/**
+	 * @return the explicit edge arrays ({tail, head} and {weight, reverse weight}) added so far
+	 */
+	public List<int[][]> getEdges(){ return edges; }
+
+	public List<float[][]> getEdgesWeights(){ return edges_weights; }
+
+	/**
+	 * @return true if every edge family was also stored in explicit edge arrays
+	 */
+	public boolean hasEdgeArrays(){ return !edges.isEmpty(); }
+
+	/**
+	 * drop the explicit edge arrays, solvers will enumerate the edge families instead
+	 */
+	public void clearEdgeArrays()
+	{
+		edges.clear();
+		edges_weights.clear();
+	}
+
+	/**
+	 * @return the number of non terminal edges of the graph
+	 */
+	public long getNEdges()
+	{
+		long nEdges = 0;
+		for(EdgeFamily f : families)
+			nEdges += getNEdges(f);
+		return nEdges;
+	}
+
+	/**
+	 * @return true if the node or edge indexes of the graph do not fit in an int, i.e. if the graph
+	 * can only be solved by solvers indexing nodes with long (see MaxFlowSolver.Type.supportsLargeGraphs())
+	 */
+	public boolean isLarge()
+	{
+		return getNNodes() > Integer.MAX_VALUE | getNEdges() > Integer.MAX_VALUE;
+	}
+
+
+
+	/**
+	 * @return the weight of the edge from the source to node
+	 */
+	public float getSourceWeight(long node)
+	{
+		float w = terminal_weights.get( (int)(node/nNodes_perSurf) )[0].get( node%nNodes_perSurf );
+		if( zOffset!=null )
+			w += getBandBorderWeight(node, true);
+		return w;
+	}
+
+	/**
+	 * @return the weight of the edge from node to the sink
+	 */
+	public float getSinkWeight(long node)
+	{
+		float w = terminal_weights.get( (int)(node/nNodes_perSurf) )[1].get( node%nNodes_perSurf );
+		if( zOffset!=null )
+			w += getBandBorderWeight(node, false);
+		return w;
+	}
+
+
+
+	/**
+	 * The nodes below the band are on the source side and the nodes above it on the sink side, so an edge between
+	 * node and one of them is equivalent to a terminal edge of node: e.g. an edge from node to a node above the band
+	 * is cut whenever node is on the source side, like an edge from node to the sink.
+	 *
+	 * @return the sum of the weights of the edges between node and the nodes outside the band that are equivalent to
+	 * an edge from the source to node (source is true) or from node to the sink (source is false)
+	 */
+	private float getBandBorderWeight(long node, boolean source)
+	{
+		int s = (int)(node/nNodes_perSurf);
+		long p = node - s*nNodes_perSurf;
+		long k = p / Slice;
+		long c = p - k*Slice;
+		long y = c / Width;
+		long x = c - y*Width;
+		long z = k + zOffset[(int)c];
+		long Depth = dimensions[2];
+
+		float w = 0;
+		for(EdgeFamily f : families)
+		{
+			// edges node -> head
+			if( f.fromSurface==s && z>=f.zMin && z<=f.zMax && isInside(x+f.dx, y+f.dy) )
+			{
+				long kHead = z + f.dz - zOffset[(int)(c + f.dx + f.dy*Width)];
+				if( kHead<0 & source )
+					w += f.reverseCapacity;
+				else if( kHead>=Depth & !source )
+					w += f.capacity;
+			}
+			// edges tail -> node
+			if( f.toSurface==s && z-f.dz>=f.zMin && z-f.dz<=f.zMax && isInside(x-f.dx, y-f.dy) )
+			{
+				long kTail = z - f.dz - zOffset[(int)(c - f.dx - f.dy*Width)];
+				if( kTail<0 & source )
+					w += f.capacity;
+				else if( kTail>=Depth & !source )
+					w += f.reverseCapacity;
+			}
+		}
+		return w;
+	}
+
+
+
+	private boolean isInside(long x, long y)
+	{
+		return x>=0 & x<dimensions[0] & y>=0 & y<dimensions[1];
+	}
+
+	/**
+	 * @return the source (index 0) and sink (index 1) weights of the nodes of surface s, they can be modified in place
+	 */
+	public BigFloatArray[] getTerminalWeights(int s){ return terminal_weights.get(s); }
+
+	/**
+	 * @param storage the storage of the terminal weights of the subgraphs built by getRows()
+	 */
+	public void setStorage(BigArrayStorage storage){ this.storage = storage; }
+
+	public BigArrayStorage getStorage(){ return storage; }
+
+	/**
+	 * replace the weights of the edges from the source to node and from node to the sink
+	 */
+	public void setTerminalWeights(long node, float sourceWeight, float sinkWeight)
+	{
+		BigFloatArray[] tw = terminal_weights.get( (int)(node/nNodes_perSurf) );
+		tw[0].set( node%nNodes_perSurf, sourceWeight );
+		tw[1].set( node%nNodes_perSurf, sinkWeight );
+	}
+
+
+
+	/**
+	 * Store explicit edge arrays describing some of the edge families
+	 *
+	 * @param Edges tails (index 0) and heads (index 1) of the edges
+	 * @param Edges_weights weights (index 0) and reverse weights (index 1) of the edges
+	 */
+	public void addEdgeArrays(int[][] Edges, float[][] Edges_weights)
+	{
+		edges.add(Edges);
+		edges_weights.add(Edges_weights);
+	}
+
+
+
+	/**
+	 * Extract the graph of the rows [y0, y1) of the volume: the terminal weights of these rows are copied and the
+	 * edge families (and the band offsets) are shared, edges leaving the rows are dropped. Explicit edge arrays are not copied.
+	 *
+	 * @param y0 first row
+	 * @param y1 row after the last one
+	 * @return the graph of the rows, with y shifted by -y0
+	 */
+	public ZSurfaceGraph getRows(long y0, long y1)
+	{
+		long rowSize = (y1-y0)*Width;
+		int[] subOffset = null;
+		if( zOffset!=null )
+		{
+			subOffset = new int[(int)rowSize];
+			System.arraycopy(zOffset, (int)(y0*Width), subOffset, 0, (int)rowSize);
+		}
+		ZSurfaceGraph sub = new ZSurfaceGraph(new long[] {dimensions[0], y1-y0, dimensions[2]}, subOffset, volumeDepth, infiniteWeight, zeroWeight);
+		sub.storage = storage;
+		for(BigFloatArray[] tw : terminal_weights)
+		{
+			BigFloatArray[] subTw = new BigFloatArray[] {storage.floats(sub.nNodes_perSurf), storage.floats(sub.nNodes_perSurf)};
+			for(long z=0; z<dimensions[2]; z++)
+				for(long i=0; i<rowSize; i++)
+				{
+					long p = z*Slice + y0*Width + i;
+					long q = z*rowSize + i;
+					subTw[0].set(q, tw[0].get(p));
+					subTw[1].set(q, tw[1].get(p));
+				}
+			sub.terminal_weights.add(subTw);
+		}
+		sub.families.addAll(families);
+		return sub;
+	}
+
+
+
+	/**
+	 * Register the graph of a new surface: its terminal weights and the edges that are built by
+	 * MinCostZSurface.Create_Surface_Graph (one edge to the node below in the column and 4 edges
+	 * to the lateral neighbours max_dz slices below).
+	 *
+	 * @param terminalWeights source (index 0) and sink (index 1) weights of each node of the surface
+	 * @param max_dz maximum altitude variation between 2 pixels
+	 * @return the 0-based index of the surface
+	 */
+	public int addSurface(BigFloatArray[] terminalWeights, int max_dz)
+	{
+		int s = terminal_weights.size();
+		terminal_weights.add(terminalWeights);
+		families.addAll( surfaceFamilies(s, max_dz) );
+
+		return s;
+	}
+
+
+
+	/**
+	 * Replace the terminal weights and the edges of a surface, e.g. after a change of its cost image or of max_dz.
+	 * The edge families that are not modified are kept, so that a solver can reuse their flow (see
+	 * MaxFlowSolver.recomputeMaximumFlow()).
+	 *
+	 * @param s the 0-based index of the surface
+	 * @param terminalWeights source (index 0) and sink (index 1) weights of each node of the surface
+	 * @param max_dz maximum altitude variation between 2 pixels
+	 */
+	public void setSurface(final int s, BigFloatArray[] terminalWeights, int max_dz)
+	{
+		terminal_weights.set(s, terminalWeights);
+		replaceFamilies( f -> f.fromSurface==s & f.toSurface==s, surfaceFamilies(s, max_dz) );
+	}
+
+
+
+	private List<EdgeFamily> surfaceFamilies(int s, int max_dz)
+	{
+		long zLast = volumeDepth-1;
+		List<EdgeFamily> list = new ArrayList<EdgeFamily>();
+		list.add( new EdgeFamily(s, s, -1, 0, -max_dz, max_dz+1, zLast, infiniteWeight, zeroWeight) );
+		list.add( new EdgeFamily(s, s,  1, 0, -max_dz, max_dz+1, zLast, infiniteWeight, zeroWeight) );
+		list.add( new EdgeFamily(s, s,  0,-1, -max_dz, max_dz+1, zLast, infiniteWeight, zeroWeight) );
+		list.add( new EdgeFamily(s, s,  0, 1, -max_dz, max_dz+1, zLast, infiniteWeight, zeroWeight) );
+		list.add( new EdgeFamily(s, s,  0, 0, -1     , 1       , zLast, infiniteWeight, zeroWeight) );
+		return list;
+	}
+
+
+
+	/**
+	 * Register the edges built by MinCostZSurface.Add_NoCrossing_Constraint_Between_Surfaces
+	 *
+	 * @param surf1 the id of the first surface (id starts at 1)
+	 * @param surf2 the id of the second surface
+	 * @param min_dist the minimum distance between the surface (in pixel)
+	 * @param max_dist the maximum distance between the surface (in pixel)
+	 */
+	public void addNoCrossingConstraint(int surf1, int surf2, int min_dist, int max_dist)
+	{
+		families.addAll( noCrossingFamilies(surf1, surf2, min_dist, max_dist) );
+	}
+
+
+
+	/**
+	 * Replace the constraints between 2 surfaces by a no crossing constraint (see addNoCrossingConstraint()),
+	 * the edge families that are not modified are kept
+	 */
+	public void setNoCrossingConstraint(int surf1, int surf2, int min_dist, int max_dist)
+	{
+		replaceFamilies( constraintFamilies(surf1, surf2), noCrossingFamilies(surf1, surf2, min_dist, max_dist) );
+	}
+
+
+
+	private List<EdgeFamily> noCrossingFamilies(int surf1, int surf2, int min_dist, int max_dist)
+	{
+		long zLast = volumeDepth-1;
+		List<EdgeFamily> list = new ArrayList<EdgeFamily>();
+		if (max_dist==min_dist)
+			list.add( new EdgeFamily(surf1-1, surf2-1, 0, 0, -max_dist, max_dist+1, zLast, infiniteWeight, infiniteWeight) );
+		else
+		{
+			list.add( new EdgeFamily(surf1-1, surf2-1, 0, 0, -max_dist, max_dist+1, zLast             , infiniteWeight, zeroWeight) );
+			list.add( new EdgeFamily(surf2-1, surf1-1, 0, 0,  min_dist, 0         , zLast-min_dist, infiniteWeight, zeroWeight) );
+		}
+		return list;
+	}
+
+
+
+	/**
+	 * Register the edges built by MinCostZSurface.Add_Crossing_Constraint_Between_Surfaces
+	 *
+	 * @param surf1 the id of the first surface (id starts at 1)
+	 * @param surf2 the id of the second surface
+	 * @param max_up the maximum distance of surface 2 on top of surface 1 (in pixel)
+	 * @param max_down the maximum distance of surface 2 below surface 1 (in pixel)
+	 */
+	public void addCrossingConstraint(int surf1, int surf2, int max_up, int max_down)
+	{
+		families.addAll( crossingFamilies(surf1, surf2, max_up, max_down) );
+	}
+
+
+
+	/**
+	 * Replace the constraints between 2 surfaces by a crossing constraint (see addCrossingConstraint()),
+	 * the edge families that are not modified are kept
+	 */
+	public void setCrossingConstraint(int surf1, int surf2, int max_up, int max_down)
+	{
+		replaceFamilies( constraintFamilies(surf1, surf2), crossingFamilies(surf1, surf2, max_up, max_down) );
+	}
+
+
+
+	private List<EdgeFamily> crossingFamilies(int surf1, int surf2, int max_up, int max_down)
+	{
+		long zLast = volumeDepth-1;
+		List<EdgeFamily> list = new ArrayList<EdgeFamily>();
+		list.add( new EdgeFamily(surf1-1, surf2-1, 0, 0, -max_up  , max_up+1  , zLast, infiniteWeight, zeroWeight) );
+		list.add( new EdgeFamily(surf2-1, surf1-1, 0, 0, -max_down, max_down+1, zLast, infiniteWeight, zeroWeight) );
+		return list;
+	}
+
+
+
+	/**
+	 * @return a test selecting the families linking the surfaces surf1 and surf2 (ids start at 1)
+	 */
+	private static Predicate<EdgeFamily> constraintFamilies(int surf1, int surf2)
+	{
+		final int s1 = surf1-1, s2 = surf2-1;
+		return f -> (f.fromSurface==s1 & f.toSurface==s2) | (f.fromSurface==s2 & f.toSurface==s1);
+	}
+
+
+
+	/**
+	 * remove the families selected by the test and add the new ones, a removed family equal to a new one is kept in place of it
+	 */
+	private void replaceFamilies(Predicate<EdgeFamily> removed, List<EdgeFamily> newFamilies)
+	{
+		List<EdgeFamily> old = new ArrayList<EdgeFamily>();
+		for(EdgeFamily f : families)
+			if( removed.test(f) )
+				old.add(f);
+		families.removeAll(old);
+		for(EdgeFamily f : newFamilies)
+		{
+			EdgeFamily kept = f;
+			for(EdgeFamily o : old)
+				if( isSame(o, f) )
+					kept = o;
+			families.add(kept);
+		}
+	}
+
+
+
+	private static boolean isSame(EdgeFamily a, EdgeFamily b)
+	{
+		return a.fromSurface==b.fromSurface & a.toSurface==b.toSurface & a.dx==b.dx & a.dy==b.dy & a.dz==b.dz
+				& a.zMin==b.zMin & a.zMax==b.zMax & a.capacity==b.capacity & a.reverseCapacity==b.reverseCapacity;
+	}
+
+
+
+	/**
+	 * @return the number of edges of the family f
+	 */
+	public long getNEdges(EdgeFamily f)
+	{
+		if( zOffset!=null )
+		{
+			final long[] nEdges = new long[1];
+			visitEdges(f, (tail, head) -> nEdges[0]++ );
+			return nEdges[0];
+		}
+		long nz = Math.min(f.zMax, dimensions[2]-1) - Math.max(f.zMin, 0) + 1;
+		long ny = dimensions[1] - Math.abs(f.dy);
+		long nx = dimensions[0] - Math.abs(f.dx);
+		if( nz<=0 | ny<=0 | nx<=0 )
+			return 0;
+		return nx*ny*nz;
+	}
+
+
+
+	/**
+	 * enumerate the edges of the family f in the order of the tail nodes
+	 */
+	public void visitEdges(EdgeFamily f, EdgeVisitor visitor)
+	{
+		long offset = (f.toSurface-f.fromSurface)*nNodes_perSurf + f.dx + f.dy*Width + f.dz*Slice;
+		long z0 = Math.max(f.zMin, 0), z1 = Math.min(f.zMax, dimensions[2]-1);
+		long y0 = Math.max(0, -f.dy), y1 = Math.min(dimensions[1], dimensions[1]-f.dy);
+		long x0 = Math.max(0, -f.dx), x1 = Math.min(dimensions[0], dimensions[0]-f.dx);
+		if( zOffset!=null )
+		{
+			for(long k=0; k<dimensions[2]; k++)
+				for(long y=y0; y<y1; y++)
+					for(long x=x0; x<x1; x++)
+					{
+						long tail = f.fromSurface*nNodes_perSurf + k*Slice + y*Width + x;
+						long head = getHead(f, tail);
+						if( head>=0 )
+							visitor.visit(tail, head);
+					}
+			return;
+		}
+		for(long z=z0; z<=z1; z++)
+			for(long y=y0; y<y1; y++)
+			{
+				long tail = f.fromSurface*nNodes_perSurf + z*Slice + y*Width + x0;
+				for(long x=x0; x<x1; x++, tail++)
+					visitor.visit(tail, tail+offset);
+			}
+	}
+
+
+
+	/**
+	 * Compute the energy of a cut of the graph, i.e. the sum of the weights of the edges going from the source side
+	 * to the sink side. For a minimum cut it is equal to the maximum flow.
+	 *
+	 * @param isSourceSide indicates if a node is on the source side of the cut
+	 * @return the cut energy
+	 */
+	public double getCutEnergy(final LongPredicate isSourceSide)
+	{
+		final double[] energy = new double[1];
+		long nNodes = getNNodes();
+		for(long node=0; node<nNodes; node++)
+			energy[0] += isSourceSide.test(node) ? getSinkWeight(node) : getSourceWeight(node);
+
+		for(final EdgeFamily f : families)
+			visitEdges(f, (tail, head) -> {
+				boolean t = isSourceSide.test(tail);
+				if( t != isSourceSide.test(head) )
+					energy[0] += t ? f.capacity : f.reverseCapacity;
+			});
+
+		return energy[0];
+	}
+
+
+
+	/**
+	 * @return the head of the edge of family f starting at node tail, or -1 if the family has no edge at that node
+	 * or if the head is outside the band
+	 */
+	public long getHead(EdgeFamily f, long tail)
+	{
+		int s = (int)(tail/nNodes_perSurf);
+		if( s != f.fromSurface )
+			return -1;
+		long p = tail - s*nNodes_perSurf;
+		long k = p / Slice;
+		long c = p - k*Slice;
+		long y = c / Width;
+		long x = c - y*Width;
+		if( !isInside(x+f.dx, y+f.dy) )
+			return -1;
+		long z = k + getZOffset(c);
+		if( z<f.zMin | z>f.zMax )
+			return -1;
+		long cHead = c + f.dx + f.dy*Width;
+		long kHead = z + f.dz - getZOffset(cHead);
+		// the head is outside the band
+		if( kHead<0 | kHead>=dimensions[2] )
+			return -1;
+		return f.toSurface*nNodes_perSurf + cHead + kHead*Slice;
+	}
+
+}
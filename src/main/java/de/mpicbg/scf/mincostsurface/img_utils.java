@@ -1,22 +1,39 @@
 package de.mpicbg.scf.mincostsurface;
 
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
 
 import net.imglib2.multithreading.SimpleMultiThreading;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.NumericType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.Cursor;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccess;
 import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
 import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
 import net.imglib2.algorithm.gauss3.Gauss3;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.DiskCachedCellImgOptions.CacheType;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
 import net.imglib2.exception.IncompatibleTypeException;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
 import net.imglib2.interpolation.randomaccess.LanczosInterpolatorFactory;
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
 import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
@@ -25,47 +42,297 @@ import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory
 
 public class img_utils {
 	
-	// what happens to the original image here
-	public static <T extends RealType<T> & NativeType<T>> Img<T> downsample(Img<T> input, float[] ratio)
+	/**
+	 * the ways of averaging the input voxels mapped to an output voxel when down-sampling
+	 */
+	public static enum Downsampling
+	{
+		Gaussian,	// gaussian blur of sigma 1/(2*ratio), then sampling
+		Area;		// mean of the input voxels covered by the output voxel, weighted by the covered fraction
+	}
+	
+	
+	
+	/**
+	 * this function down-sample the input image and return an image which size is input.dimension(i)*ratio[i])
+	 * Prior to down-sampling the input is blurred to avoid aliasing (see downsample(input, ratio, Downsampling.Gaussian))
+	 * @param input an image to down-sample, it is not modified
+	 * @param ratio the down-sampling factor for each dimension (value should be inferior to 1 for down-sampling)
+	 * @return a down-sampled version of input
+	 */
+	public static <T extends RealType<T> & NativeType<T>> Img<T> downsample(RandomAccessibleInterval<T> input, float[] ratio)
+	{
+		return downsample( input, ratio, Downsampling.Gaussian );
+	}
+	
+	
+	
+	/**
+	 * this function down-sample the input image and return an image which size is input.dimension(i)*ratio[i])
+	 * 
+	 * Gaussian: the input is blurred with a gaussian of sigma 1/(2*ratio[i]) (the kernel of Gauss3 with a mirrored border)
+	 * and sampled at (int)(out_pos/ratio). Area: an output voxel is the mean of the input area it covers, [out_pos/ratio,
+	 * (out_pos+1)/ratio), the voxels partially covered being weighted by their covered fraction. Each input voxel then
+	 * contributes to at most 2 output voxels per dimension, so the cost does not depend on the factor.
+	 * 
+	 * For images of up to 3 dimensions the averaging is only computed at the output positions, separably and tile by
+	 * tile in several threads, so that only the output is allocated. The input is not modified.
+	 * @param input an image to down-sample, it is not modified
+	 * @param ratio the down-sampling factor for each dimension (value should be inferior to 1 for down-sampling)
+	 * @param mode how the input voxels are averaged
+	 * @return a down-sampled version of input
+	 */
+	public static <T extends RealType<T> & NativeType<T>> Img<T> downsample(RandomAccessibleInterval<T> input, float[] ratio, Downsampling mode)
 	{
 		
 		int nDim = input.numDimensions();
-		//IJ.log("nDim "+nDim);
 		double[] sig = new double[nDim];
 		for( int i=0; i<nDim; i++){ sig[i] = 1/(2*ratio[i]); }
 		
-		long[] input_range = new long[2*nDim]; for(int i=0; i<nDim; i++){	input_range[i]=0; input_range[i+nDim] = input.dimension(i); }
-		Interval interval = Intervals.createMinSize(input_range);
-		try {
-			Gauss3.gauss(sig,Views.extendMirrorDouble(input), Views.interval(input, interval) );
-		} catch (IncompatibleTypeException e) {
-			e.printStackTrace();
-		}
-		
 		// create a new image
 		final ImgFactory< T > imgFactory = new ArrayImgFactory< T >();
 		long[] out_dims = new long[nDim]; for(int i=0; i<nDim; i++){ out_dims[i] = (int)(input.dimension(i)*ratio[i]);} 
-		Img<T> output = imgFactory.create( out_dims , input.firstElement().createVariable() );
+		final Img<T> output = imgFactory.create( out_dims , Util.getTypeFromInterval( input ).createVariable() );
 		
-		// iterate through the image
-		RandomAccess< T > input_x = Views.extendBorder( input ).randomAccess();
-		Cursor< T > out_cursor = output.localizingCursor();
-		int[] out_pos = new int[nDim];
-		int[] in_pos = new int[nDim];
-		while(out_cursor.hasNext())
+		if( nDim>3 )
 		{
-			out_cursor.fwd();
-			out_cursor.localize(out_pos);
-			for(int i=0; i<nDim; i++){ in_pos[i] = (int)(out_pos[i]/ratio[i]); }
-			input_x.setPosition(in_pos);
-			out_cursor.get().setReal( input_x.get().getRealFloat() );
+			if( mode!=Downsampling.Gaussian )
+				System.err.println("downsampling: " + mode + " is only available up to 3 dimensions, using a gaussian");
+			
+			// blur in a full resolution buffer, then sample it
+			long[] in_dims = new long[nDim];
+			input.dimensions(in_dims);
+			Img<T> blurred = imgFactory.create( in_dims , Util.getTypeFromInterval( input ).createVariable() );
+			try {
+				Gauss3.gauss(sig,Views.extendMirrorDouble(zeroMin(input)), blurred );
+			} catch (IncompatibleTypeException e) {
+				e.printStackTrace();
+			}
+			RandomAccess< T > input_x = Views.extendBorder( blurred ).randomAccess();
+			Cursor< T > out_cursor = output.localizingCursor();
+			int[] out_pos = new int[nDim];
+			int[] in_pos = new int[nDim];
+			while(out_cursor.hasNext())
+			{
+				out_cursor.fwd();
+				out_cursor.localize(out_pos);
+				for(int i=0; i<nDim; i++){ in_pos[i] = (int)(out_pos[i]/ratio[i]); }
+				input_x.setPosition(in_pos);
+				out_cursor.get().setReal( input_x.get().getRealFloat() );
+			}
+			return output;
+		}
+		
+		final RandomAccessibleInterval<T> source = zeroMin( input );
+		final double[][] kernels = mode==Downsampling.Gaussian ? Gauss3.halfkernels( sig ) : null;
+		// for x, y and z (size 1 for missing dimensions): the input positions averaged in each output position and their weights
+		final int[] in_dims = new int[3];
+		final int[][][] index = new int[3][][];
+		final float[][][] weight = new float[3][][];
+		for(int d=0; d<3; d++)
+		{
+			in_dims[d] = d<nDim ? (int)input.dimension(d) : 1;
+			int out_size = d<nDim ? (int)out_dims[d] : 1;
+			index[d] = new int[out_size][];
+			weight[d] = new float[out_size][];
+			for(int i=0; i<out_size; i++)
+			{
+				if( d>=nDim )
+				{
+					index[d][i] = new int[] {0};
+					weight[d][i] = new float[] {1};
+				}
+				else if( mode==Downsampling.Gaussian )
+					gaussianWeights( (int)(i/ratio[d]), in_dims[d], kernels[d], index[d], weight[d], i );
+				else
+					areaWeights( i/(double)ratio[d], Math.min((i+1)/(double)ratio[d], in_dims[d]), index[d], weight[d], i );
+			}
+		}
+		
+		// tiles: slabs of output slices, split in blocks of output rows if there are less slices than threads
+		final int nThreads = Runtime.getRuntime().availableProcessors();
+		final int nTilesZ = Math.max(1, Math.min(nThreads, index[2].length));
+		final int nTilesY = Math.max(1, Math.min((nThreads+nTilesZ-1)/nTilesZ, index[1].length));
+		final Thread[] threads = SimpleMultiThreading.newThreads( nTilesZ*nTilesY );
+		for ( int i = 0; i < threads.length; i++ )
+		{
+			final int z0 = index[2].length*(i/nTilesY)/nTilesZ,   z1 = index[2].length*(i/nTilesY+1)/nTilesZ;
+			final int y0 = index[1].length*(i%nTilesY)/nTilesY,   y1 = index[1].length*(i%nTilesY+1)/nTilesY;
+			threads[ i ] = new Thread( "downsample thread " + i)
+			{
+				@Override
+				public void run()
+				{
+					downsampleTile(source, output, nDim, in_dims, index, weight, z0, z1, y0, y1);
+				}
+			};
 		}
+		SimpleMultiThreading.startAndJoin( threads );
 		
 		return output;
 	}
 	
 	
 	
+	/**
+	 * @return img translated to a zero min, img itself if its min is already zero (so that an ArrayImg stays an ArrayImg)
+	 */
+	private static <T> RandomAccessibleInterval<T> zeroMin(RandomAccessibleInterval<T> img)
+	{
+		for(int d=0; d<img.numDimensions(); d++)
+			if( img.min(d)!=0 )
+				return Views.zeroMin( img );
+		return img;
+	}
+	
+	
+	
+	/**
+	 * the input positions of a gaussian centered on the input position x, the kernel being given by its half
+	 */
+	private static void gaussianWeights(int x, int size, double[] halfkernel, int[][] index, float[][] weight, int i)
+	{
+		int n = 2*halfkernel.length-1;
+		index[i] = new int[n];
+		weight[i] = new float[n];
+		for(int k=1-halfkernel.length; k<halfkernel.length; k++)
+		{
+			index[i][k+halfkernel.length-1] = mirror(x+k, size);
+			weight[i][k+halfkernel.length-1] = (float) halfkernel[Math.abs(k)];
+		}
+	}
+	
+	/**
+	 * the input positions covered by [start, end), weighted by their covered fraction
+	 */
+	private static void areaWeights(double start, double end, int[][] index, float[][] weight, int i)
+	{
+		int first = (int)Math.floor(start);
+		int last = Math.max(first+1, (int)Math.ceil(end));
+		index[i] = new int[last-first];
+		weight[i] = new float[last-first];
+		for(int x=first; x<last; x++)
+		{
+			index[i][x-first] = x;
+			weight[i][x-first] = (float)( (Math.min(end, x+1) - Math.max(start, x)) / (end-start) );
+		}
+	}
+	
+	
+	
+	/**
+	 * fill the output slices [z0, z1) and rows [y0, y1) of downsample(). Each needed input slice is reduced once, first
+	 * along x for the input rows used by the tile, then along y, and the reduced slices are combined along z.
+	 */
+	private static <T extends RealType<T>> void downsampleTile(RandomAccessibleInterval<T> input, Img<T> output, int nDim,
+			int[] in_dims, int[][][] index, float[][][] weight, int z0, int z1, int y0, int y1)
+	{
+		final int W = in_dims[0], H = in_dims[1], D = in_dims[2];
+		final int outW = index[0].length, nRows = y1-y0;
+		if( outW==0 | nRows<=0 | z1<=z0 )
+			return;
+		
+		RandomAccess< T > in = input.randomAccess();
+		float[] line = new float[W];
+		float[][] reducedRows = new float[H][];
+		float[][] reducedSlices = new float[D][];
+		
+		RandomAccess< T > out = output.randomAccess();
+		float[] outRow = new float[outW];
+		for(int oz=z0; oz<z1; oz++)
+		{
+			// release the slices below the ones used by oz, the next output slices are above (a released slice is reduced again if a mirrored border needs it)
+			int zFirst = D;
+			for(int z : index[2][oz])
+				zFirst = Math.min(zFirst, z);
+			for(int z=0; z<zFirst; z++)
+				reducedSlices[z] = null;
+			
+			for(int z : index[2][oz])
+			{
+				if( reducedSlices[z]!=null )
+					continue;
+				
+				// reduce the input slice z along x, for the input rows used by the tile
+				Arrays.fill(reducedRows, null);
+				float[] slice = new float[outW*nRows];
+				for(int oy=y0; oy<y1; oy++)
+				{
+					for(int y : index[1][oy])
+					{
+						if( reducedRows[y]!=null )
+							continue;
+						in.setPosition(0, 0);
+						if( nDim>1 ) in.setPosition(y, 1);
+						if( nDim>2 ) in.setPosition(z, 2);
+						for(int x=0; x<W; x++)
+						{
+							line[x] = in.get().getRealFloat();
+							in.fwd(0);
+						}
+						float[] reduced = new float[outW];
+						for(int ox=0; ox<outW; ox++)
+						{
+							int[] xs = index[0][ox];
+							float[] ws = weight[0][ox];
+							double sum = 0;
+							for(int k=0; k<xs.length; k++)
+								sum += ws[k] * line[xs[k]];
+							reduced[ox] = (float) sum;
+						}
+						reducedRows[y] = reduced;
+					}
+					
+					// then along y
+					int offset = (oy-y0)*outW;
+					for(int k=0; k<index[1][oy].length; k++)
+					{
+						float[] reduced = reducedRows[ index[1][oy][k] ];
+						float w = weight[1][oy][k];
+						for(int ox=0; ox<outW; ox++)
+							slice[offset+ox] += w * reduced[ox];
+					}
+				}
+				reducedSlices[z] = slice;
+			}
+			
+			// combine the reduced slices along z
+			for(int oy=y0; oy<y1; oy++)
+			{
+				int offset = (oy-y0)*outW;
+				Arrays.fill(outRow, 0);
+				for(int k=0; k<index[2][oz].length; k++)
+				{
+					float[] slice = reducedSlices[ index[2][oz][k] ];
+					float w = weight[2][oz][k];
+					for(int ox=0; ox<outW; ox++)
+						outRow[ox] += w * slice[offset+ox];
+				}
+				out.setPosition(0, 0);
+				if( nDim>1 ) out.setPosition(oy, 1);
+				if( nDim>2 ) out.setPosition(oz, 2);
+				for(int ox=0; ox<outW; ox++)
+				{
+					out.get().setReal( outRow[ox] );
+					out.fwd(0);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return the position of i in [0, size) when the border is mirrored with the border pixel repeated (as Views.extendMirrorDouble())
+	 */
+	private static int mirror(int i, int size)
+	{
+		int period = 2*size;
+		i = i % period;
+		if( i<0 ) i += period;
+		return i<size ? i : period-1-i;
+	}
+	
+	
+	
 	/**
 	 * this function down-sample the input image and return an image which size is input.dimension(i)*ratio[i])
 	 * Prior to down-sampling the input is blurred to avoid aliasing
@@ -131,67 +398,216 @@ public class img_utils {
 		Lanczos;	
 	}
 	
-	public static <T extends RealType<T> & NativeType<T>> Img<T> upsample(Img<T> input, long[] out_size, Interpolator interpType)
+	public static <T extends RealType<T> & NativeType<T>> Img<T> upsample(RandomAccessibleInterval<T> input, long[] out_size, Interpolator interpType)
+	{
+		return upsample( input, out_size, interpType, 1, 0 );
+	}
+	
+	
+	
+	/**
+	 * this function resample the input image to the size out_size, the output position out_pos being interpolated in the
+	 * input at out_pos * input.dimension(d) / out_size[d] (with a border extension), and transform the interpolated values
+	 * in the same pass. The output rows are processed in several threads. Float images stored in an ArrayImg are
+	 * interpolated directly in their array for the Linear and NearestNeighbor interpolators.
+	 * @param input an image to up-sample, of any dimension
+	 * @param out_size the size of the output
+	 * @param interpType the interpolation method
+	 * @param scale the interpolated values are multiplied by scale (for instance 1/downsample_factor_z to compensate the z sampling of an altitude map)
+	 * @param offset and offset is added
+	 * @return the up-sampled version of input
+	 */
+	public static <T extends RealType<T> & NativeType<T>> Img<T> upsample(final RandomAccessibleInterval<T> input, final long[] out_size, final Interpolator interpType, final float scale, final float offset)
 	{
-		int nDim = input.numDimensions(); 
+		final int nDim = input.numDimensions(); 
 		if(nDim != out_size.length)
 		{
 			//print("upsampling error: the new size and input have a different number of dimension");
 			System.err.println("upsampling error: the new size and input have a different number of dimension");
-			return input;
+			return null;
+		}
+		final RandomAccessibleInterval<T> source = zeroMin( input );
+		final float[] upfactor = new float[nDim]; for(int i=0; i<nDim; i++){ upfactor[i] = (float)out_size[i]/input.dimension(i);}
+		
+		final ImgFactory< T > imgFactory = new ArrayImgFactory< T >();
+		final Img< T > output = imgFactory.create( out_size , Util.getTypeFromInterval( input ).createVariable() );
+		
+		final float[] in_array = getFloatArray( source );
+		final float[] out_array = getFloatArray( output );
+		final boolean primitive = in_array!=null & out_array!=null & interpType!=Interpolator.Lanczos;
+		
+		// the rows of the output (all the dimensions but x)
+		long nRows = 1;
+		for(int d=1; d<nDim; d++)
+			nRows *= out_size[d];
+		final long nOutRows = nRows;
+		final int nThreads = (int)Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), nRows));
+		final Thread[] threads = SimpleMultiThreading.newThreads( nThreads );
+		for ( int i = 0; i < threads.length; i++ )
+		{
+			final long row0 = nOutRows*i/nThreads;
+			final long row1 = nOutRows*(i+1)/nThreads;
+			threads[ i ] = new Thread( "upsample thread " + i)
+			{
+				@Override
+				public void run()
+				{
+					if( primitive )
+						upsampleRows(in_array, source, out_array, out_size, upfactor, interpType==Interpolator.Linear, scale, offset, row0, row1);
+					else
+						upsampleRows(source, output, upfactor, interpType, scale, offset, row0, row1);
+				}
+			};
 		}
-		long[] in_size = new long[nDim];
-		input.dimensions(in_size);
-		float[] upfactor = new float[nDim]; for(int i=0; i<nDim; i++){ upfactor[i] = (float)out_size[i]/in_size[i];}
+		SimpleMultiThreading.startAndJoin( threads );
 		
+		return output;
+	}
+	
+	
+	
+	/**
+	 * fill the output rows [row0, row1) of upsample() through an interpolated RealRandomAccess
+	 */
+	private static <T extends RealType<T>> void upsampleRows(RandomAccessibleInterval<T> input, Img<T> output, float[] upfactor,
+			Interpolator interpType, float scale, float offset, long row0, long row1)
+	{
+		int nDim = input.numDimensions();
 		RealRandomAccess< T > interpolant;
 		switch(interpType)
 		{
 			case Linear:
-				NLinearInterpolatorFactory<T> NLinterp_factory = new NLinearInterpolatorFactory<T>();
-				interpolant = Views.interpolate( Views.extendBorder( input ), NLinterp_factory ).realRandomAccess();
+				interpolant = Views.interpolate( Views.extendBorder( input ), new NLinearInterpolatorFactory<T>() ).realRandomAccess();
 				break;
 				
 			case Lanczos:
-				LanczosInterpolatorFactory<T> LanczosInterp_factory = new LanczosInterpolatorFactory<T>();
-				interpolant = Views.interpolate( Views.extendBorder( input ), LanczosInterp_factory ).realRandomAccess();
+				interpolant = Views.interpolate( Views.extendBorder( input ), new LanczosInterpolatorFactory<T>() ).realRandomAccess();
 				break;
 				
 			default: // NearestNeighbor:
-				NearestNeighborInterpolatorFactory<T> NNInterp_factory = new NearestNeighborInterpolatorFactory<T>();
-				interpolant = Views.interpolate( Views.extendBorder( input ), NNInterp_factory ).realRandomAccess();
+				interpolant = Views.interpolate( Views.extendBorder( input ), new NearestNeighborInterpolatorFactory<T>() ).realRandomAccess();
 				break;
 		}
 		
-		final ImgFactory< T > imgFactory = new ArrayImgFactory< T >();
-		
-		final Img< T > output = imgFactory.create( out_size , input.firstElement().createVariable() );
-		Cursor< T > out_cursor = output.localizingCursor();
+		RandomAccess< T > out = output.randomAccess();
+		long width = output.dimension(0);
+		for(long row=row0; row<row1; row++)
+		{
+			// position of the row start
+			long r = row;
+			out.setPosition(0, 0);
+			interpolant.setPosition(0, 0);
+			for(int d=1; d<nDim; d++)
+			{
+				long pos = r % output.dimension(d);
+				r /= output.dimension(d);
+				out.setPosition(pos, d);
+				interpolant.setPosition(pos / upfactor[d], d);
+			}
+			for(long x=0; x<width; x++)
+			{
+				interpolant.setPosition(x / upfactor[0], 0);
+				out.get().setReal( interpolant.get().getRealFloat() * scale + offset );
+				out.fwd(0);
+			}
+		}
+	}
+	
+	
+	
+	/**
+	 * fill the output rows [row0, row1) of upsample() directly in the float arrays of the input and the output, with the
+	 * same positions and border extension as the imglib2 NLinear and NearestNeighbor interpolators
+	 */
+	private static void upsampleRows(float[] in, Interval in_dims, float[] out, long[] out_size, float[] upfactor,
+			boolean linear, float scale, float offset, long row0, long row1)
+	{
+		int nDim = out_size.length;
+		int width = (int)out_size[0];
 		
-		float[] tmp = new float[2]; 
-		while(out_cursor.hasNext())
+		// along x: the 2 input positions of each output position and the weight of the second one
+		int[] x0 = new int[width], x1 = new int[width];
+		float[] wx = new float[width];
+		for(int x=0; x<width; x++)
 		{
-			out_cursor.fwd();
-			for ( int d = 0; d < nDim; ++d )
-                tmp[ d ] = out_cursor.getFloatPosition(d) /upfactor[d];
-			interpolant.setPosition(tmp);
-			out_cursor.get().setReal(  interpolant.get().getRealFloat()  );
+			double pos = x / upfactor[0];
+			int lo = linear ? (int)Math.floor(pos) : (int)Math.floor(pos + 0.5);
+			x0[x] = clamp(lo, in_dims.dimension(0));
+			x1[x] = clamp(lo+1, in_dims.dimension(0));
+			wx[x] = linear ? (float)(pos - lo) : 0;
 		}
 		
-		return output;
+		// the input rows interpolated for an output row: 2 per dimension for linear, 1 for nearest neighbor
+		int nCorners = linear ? 1<<(nDim-1) : 1;
+		int[] rowOffset = new int[nCorners];
+		float[] rowWeight = new float[nCorners];
+		for(long row=row0; row<row1; row++)
+		{
+			Arrays.fill(rowOffset, 0);
+			Arrays.fill(rowWeight, 1);
+			long r = row;
+			long stride = in_dims.dimension(0);
+			for(int d=1; d<nDim; d++)
+			{
+				long pos = r % out_size[d];
+				r /= out_size[d];
+				double p = pos / upfactor[d];
+				int lo = linear ? (int)Math.floor(p) : (int)Math.floor(p + 0.5);
+				int i0 = clamp(lo, in_dims.dimension(d)), i1 = clamp(lo+1, in_dims.dimension(d));
+				float w = (float)(p - lo);
+				for(int c=0; c<nCorners; c++)
+				{
+					if( linear && (c>>(d-1) & 1)==1 )
+					{
+						rowOffset[c] += i1*stride;
+						rowWeight[c] *= w;
+					}
+					else
+					{
+						rowOffset[c] += i0*stride;
+						rowWeight[c] *= linear ? 1-w : 1;
+					}
+				}
+				stride *= in_dims.dimension(d);
+			}
+			
+			int o = (int)(row*width);
+			for(int x=0; x<width; x++)
+			{
+				float value = 0;
+				for(int c=0; c<nCorners; c++)
+					value += rowWeight[c] * ( (1-wx[x]) * in[rowOffset[c]+x0[x]] + wx[x] * in[rowOffset[c]+x1[x]] );
+				out[o+x] = value * scale + offset;
+			}
+		}
+	}
+	
+	private static int clamp(int i, long size)
+	{
+		return (int)Math.max(0, Math.min(size-1, i));
+	}
+	
+	/**
+	 * @return the array of a float image stored in an ArrayImg, null for other images
+	 */
+	private static float[] getFloatArray(RandomAccessibleInterval<?> img)
+	{
+		if( !(img instanceof ArrayImg) )
+			return null;
+		Object type = Util.getTypeFromInterval( img );
+		Object access = ((ArrayImg<?,?>)img).update( null );
+		if( type instanceof FloatType && access instanceof FloatArray )
+			return ((FloatArray)access).getCurrentStorageArray();
+		return null;
 	}
 	
 
 	public static <T extends RealType<T> & NativeType<T>> Img<T> upsample(Img<T> input, float[] upsampling_factor, Interpolator interpType)
 	{
-		int dimension=0;
-		input.dimension(dimension);
-		long[] dims = new long[dimension];		
-		input.dimensions(dims);
-
+		int dimension = input.numDimensions();
 		long[] out_size = new long[dimension];
 		for(int i=0; i<dimension; i++)
-			out_size[i] = (long) (  (float)dims[i] * upsampling_factor[i]  );
+			out_size[i] = (long) (  (float)input.dimension(i) * upsampling_factor[i]  );
 		
 		return upsample( input, out_size, interpType);
 	}
@@ -293,6 +709,248 @@ public class img_utils {
 		return excerpt;
 	}
 
+	/**
+	 * Same output as ZSurface_reslice2(): the excerpt voxel (x, y, k) is the input linearly interpolated at the
+	 * position (x, y, depthMap(x, y) + k - sliceOnTop), the input border being extended.
+	 * 
+	 * The excerpt is computed by xy tiles on a ForkJoin pool. The depth map is read once per column, and the
+	 * excerpt slices of a tile row are then filled one after the other. Float, unsigned byte and unsigned short
+	 * ArrayImgs are interpolated directly in their arrays, the other images through a RandomAccess with no
+	 * allocation per voxel. Integral depths are copied without interpolation.
+	 * @param input a 3D image
+	 * @param depthMap a 2D image with same xy dimension as input where pixel value represent altitude, z, (in pixel) in input
+	 * @param sliceOnTop number of slices on top of the surface defined by the depth map in the output image
+	 * @param sliceBelow number of slices below the surface defined by the depth map in the output image
+	 * @param numThreads parallelism of the ForkJoin pool (all the processors if numThreads <= 0)
+	 * @return the excerpt, of size (input.dimension(0), input.dimension(1), sliceOnTop+sliceBelow+1)
+	 */
+	public static <T extends NumericType<T> & NativeType<T> , U extends RealType<U> >
+	Img<T> ZSurface_resliceTiles(RandomAccessibleInterval<T> input, RandomAccessibleInterval<U> depthMap, final int sliceOnTop, int sliceBelow, int numThreads)
+	{
+		final RandomAccessibleInterval<T> source = zeroMin( input );
+		final RandomAccessibleInterval<U> map = zeroMin( depthMap );
+		final int W = (int)input.dimension(0), H = (int)input.dimension(1);
+		final int nOut = sliceOnTop + sliceBelow + 1;
+		
+		final ImgFactory< T > imgFactory = new ArrayImgFactory< T >();
+		final Img< T > excerpt = imgFactory.create( new long[] {W, H, nOut} , Util.getTypeFromInterval( input ).createVariable() );
+		
+		final Samples in_samples = Samples.of( source );
+		final Samples out_samples = Samples.of( excerpt );
+		
+		final int tileSize = 64;
+		final int nTilesX = (W+tileSize-1)/tileSize, nTilesY = (H+tileSize-1)/tileSize;
+		IntConsumer tile = (t) -> {
+			int x0 = (t % nTilesX)*tileSize;
+			int y0 = (t / nTilesX)*tileSize;
+			resliceBlock(source, in_samples, map, sliceOnTop, excerpt, out_samples, x0, Math.min(W, x0+tileSize), y0, Math.min(H, y0+tileSize), 0, nOut);
+		};
+		
+		ForkJoinPool pool = new ForkJoinPool( numThreads>0 ? numThreads : Runtime.getRuntime().availableProcessors() );
+		try {
+			pool.invoke( new TileTask(0, nTilesX*nTilesY, tile) );
+		}
+		finally {
+			pool.shutdown();
+		}
+		return excerpt;
+	}
+	
+	/**
+	 * Same output as ZSurface_reslice2(), computed lazily: the excerpt is a cell image whose cells are computed
+	 * (as in ZSurface_resliceTiles()) when they are first accessed, and kept in a bounded cache from which the least
+	 * recently used cells are evicted. The cells are independent, so that the threads accessing the excerpt (for
+	 * instance the fetcher threads of BigDataViewer) compute them in parallel. The input and the depth map must not
+	 * change while the excerpt is used.
+	 * @param input a 3D image
+	 * @param depthMap a 2D image with same xy dimension as input where pixel value represent altitude, z, (in pixel) in input
+	 * @param sliceOnTop number of slices on top of the surface defined by the depth map in the output image
+	 * @param sliceBelow number of slices below the surface defined by the depth map in the output image
+	 * @param cellDimensions the size of the cells of the excerpt
+	 * @param maxCachedCells the maximum number of cells kept in memory
+	 * @return the excerpt, of size (input.dimension(0), input.dimension(1), sliceOnTop+sliceBelow+1)
+	 */
+	public static <T extends NumericType<T> & NativeType<T> , U extends RealType<U> >
+	Img<T> ZSurface_resliceCached(RandomAccessibleInterval<T> input, RandomAccessibleInterval<U> depthMap, final int sliceOnTop, int sliceBelow, int[] cellDimensions, long maxCachedCells)
+	{
+		final RandomAccessibleInterval<T> source = zeroMin( input );
+		final RandomAccessibleInterval<U> map = zeroMin( depthMap );
+		final Samples in_samples = Samples.of( source );
+		long[] dims = new long[] {input.dimension(0), input.dimension(1), sliceOnTop + sliceBelow + 1};
+		
+		ReadOnlyCachedCellImgOptions options = ReadOnlyCachedCellImgOptions.options()
+				.cellDimensions( cellDimensions )
+				.cacheType( CacheType.BOUNDED )
+				.maxCacheSize( maxCachedCells );
+		CellLoader< T > loader = cell -> resliceBlock(source, in_samples, map, sliceOnTop, cell, null,
+				(int)cell.min(0), (int)cell.max(0)+1, (int)cell.min(1), (int)cell.max(1)+1, (int)cell.min(2), (int)cell.max(2)+1);
+		return new ReadOnlyCachedCellImgFactory( options ).create( dims, Util.getTypeFromInterval( input ).createVariable(), loader );
+	}
+	
+	/**
+	 * ZSurface_resliceCached() with cells of 64x64 columns holding all the excerpt slices, at most 1024 of them in memory
+	 */
+	public static <T extends NumericType<T> & NativeType<T> , U extends RealType<U> >
+	Img<T> ZSurface_resliceCached(RandomAccessibleInterval<T> input, RandomAccessibleInterval<U> depthMap, int sliceOnTop, int sliceBelow)
+	{
+		return ZSurface_resliceCached(input, depthMap, sliceOnTop, sliceBelow, new int[] {64, 64, sliceOnTop + sliceBelow + 1}, 1024);
+	}
+	
+	
+	
+	/**
+	 * fill the excerpt voxels [x0, x1) x [y0, y1) x [k0, k1) of target (see ZSurface_resliceTiles()). The input is read
+	 * through in_samples if it is not null and the target written through out_samples if it is not null, the index of
+	 * a voxel in out_samples being relative to the min of target.
+	 */
+	private static <T extends NumericType<T> , U extends RealType<U> >
+	void resliceBlock(RandomAccessibleInterval<T> source, Samples in_samples, RandomAccessibleInterval<U> map, int sliceOnTop,
+			RandomAccessibleInterval<T> target, Samples out_samples, int x0, int x1, int y0, int y1, int k0, int k1)
+	{
+		final int W = (int)source.dimension(0), H = (int)source.dimension(1), D = (int)source.dimension(2);
+		final int tw = (int)target.dimension(0), th = (int)target.dimension(1);
+		final int tx = (int)target.min(0), ty = (int)target.min(1), tk = (int)target.min(2);
+		if( in_samples==null )
+			out_samples = null;
+		
+		RandomAccess< U > mapRA = map.randomAccess();
+		float[] depth = new float[x1-x0];
+		RandomAccess< T > inRA = in_samples!=null ? null : Views.extendBorder( source ).randomAccess();
+		RandomAccess< T > outRA = out_samples!=null ? null : target.randomAccess();
+		T a = Util.getTypeFromInterval( source ).createVariable(), b = a.createVariable();
+		for(int y=y0; y<y1; y++)
+		{
+			// the depth map is read once per column
+			mapRA.setPosition(x0, 0);
+			mapRA.setPosition(y, 1);
+			for(int x=x0; x<x1; x++)
+			{
+				depth[x-x0] = mapRA.get().getRealFloat();
+				mapRA.fwd(0);
+			}
+			
+			for(int k=k0; k<k1; k++)
+			{
+				int o = (x0-tx) + (y-ty)*tw + (k-tk)*tw*th;
+				if( outRA!=null )
+				{
+					outRA.setPosition(x0, 0);
+					outRA.setPosition(y, 1);
+					outRA.setPosition(k, 2);
+				}
+				for(int x=x0; x<x1; x++, o++)
+				{
+					float z = (float)(k-sliceOnTop) + depth[x-x0];
+					int z0 = (int)Math.floor(z);
+					float w = z - z0;
+					if( in_samples!=null )
+					{
+						float value = in_samples.get( x + y*W + clampZ(z0, D)*W*H );
+						if( w!=0 )
+							value += w * ( in_samples.get( x + y*W + clampZ(z0+1, D)*W*H ) - value );
+						if( out_samples!=null )
+							out_samples.set( o, value );
+						else
+							((RealType<?>)outRA.get()).setReal( value );
+					}
+					else
+					{
+						inRA.setPosition(x, 0);
+						inRA.setPosition(y, 1);
+						inRA.setPosition(z0, 2);
+						a.set( inRA.get() );
+						if( w!=0 )
+						{
+							inRA.fwd(2);
+							b.set( inRA.get() );
+							a.mul( 1-w );
+							b.mul( w );
+							a.add( b );
+						}
+						outRA.get().set( a );
+					}
+					if( outRA!=null )
+						outRA.fwd(0);
+				}
+			}
+		}
+	}
+	
+	private static int clampZ(int z, int depth)
+	{
+		return z<0 ? 0 : ( z>=depth ? depth-1 : z );
+	}
+	
+	/**
+	 * process the tiles [t0, t1), split in halves down to single tiles
+	 */
+	private static class TileTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		private final int t0, t1;
+		private final IntConsumer tile;
+		
+		TileTask(int t0, int t1, IntConsumer tile){ this.t0 = t0; this.t1 = t1; this.tile = tile; }
+		
+		@Override
+		protected void compute()
+		{
+			if( t1-t0<=1 )
+			{
+				for(int t=t0; t<t1; t++)
+					tile.accept(t);
+				return;
+			}
+			int mid = (t0+t1) >>> 1;
+			invokeAll( new TileTask(t0, mid, tile), new TileTask(mid, t1, tile) );
+		}
+	}
+	
+	/**
+	 * the values of an ArrayImg of float, unsigned byte or unsigned short, read and written as floats
+	 */
+	private static abstract class Samples
+	{
+		abstract float get(int i);
+		abstract void set(int i, float value);
+		
+		/**
+		 * @return the samples of img, null if it is not an ArrayImg of one of these types
+		 */
+		static Samples of(RandomAccessibleInterval<?> img)
+		{
+			if( !(img instanceof ArrayImg) )
+				return null;
+			Object type = Util.getTypeFromInterval( img );
+			Object access = ((ArrayImg<?,?>)img).update( null );
+			if( type instanceof FloatType && access instanceof FloatArray )
+			{
+				final float[] data = ((FloatArray)access).getCurrentStorageArray();
+				return new Samples() {
+					float get(int i){ return data[i]; }
+					void set(int i, float value){ data[i] = value; }
+				};
+			}
+			if( type instanceof UnsignedByteType && access instanceof ByteArray )
+			{
+				final byte[] data = ((ByteArray)access).getCurrentStorageArray();
+				return new Samples() {
+					float get(int i){ return data[i] & 0xff; }
+					void set(int i, float value){ data[i] = (byte)Math.round(value); }
+				};
+			}
+			if( type instanceof UnsignedShortType && access instanceof ShortArray )
+			{
+				final short[] data = ((ShortArray)access).getCurrentStorageArray();
+				return new Samples() {
+					float get(int i){ return data[i] & 0xffff; }
+					void set(int i, float value){ data[i] = (short)Math.round(value); }
+				};
+			}
+			return null;
+		}
+	}
+	
 	private static <T> IntervalView<T> createIntervalView(Img<T> img, long[] offset, long unit) {
 		long[] max = new long[img.numDimensions()];
 		img.dimensions(max);
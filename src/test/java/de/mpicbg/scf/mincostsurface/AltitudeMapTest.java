@@ -0,0 +1,142 @@
+package de.mpicbg.scf.mincostsurface;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+
+/**
+ *
+ * get_Altitude_Map() finds the altitude of each column by binary search, it must be equal to the number of nodes of
+ * the column on the source side of the cut.
+ *
+ */
+public class AltitudeMapTest {
+
+
+	private static Img<FloatType> randomCost(Random random, long[] dims)
+	{
+		Img<FloatType> cost = ArrayImgs.floats(dims);
+		Cursor<FloatType> cursor = cost.cursor();
+		while( cursor.hasNext() )
+			cursor.next().setReal( 255*random.nextFloat() );
+		return cost;
+	}
+
+
+
+	/**
+	 * check both altitude maps of surface Surf_Id against the labelling of the solver
+	 *
+	 * @param zOffset the first slice of the band of each column, null if the graph is built on the whole volume
+	 * @param Depth the number of slices of the graph
+	 */
+	private static void assertCountedAltitudes(String message, MinCostZSurface<FloatType> zSurf, MaxFlowSolver solver, long[] dims, int Surf_Id, int[] zOffset, long Depth)
+	{
+		assertCountedAltitudes(message + ", float map", zSurf.get_Altitude_Map(Surf_Id), solver, dims, Surf_Id, zOffset, Depth);
+		assertCountedAltitudes(message + ", 16 bit map", zSurf.get_Altitude_Map_16bit(Surf_Id), solver, dims, Surf_Id, zOffset, Depth);
+	}
+
+	private static void assertCountedAltitudes(String message, Img<? extends RealType<?>> map, MaxFlowSolver solver, long[] dims, int Surf_Id, int[] zOffset, long Depth)
+	{
+		long Slice = dims[0]*dims[1];
+		long offset = (Surf_Id-1)*Slice*Depth;
+		RandomAccess<? extends RealType<?>> mapRA = map.randomAccess();
+		for(long y=0; y<dims[1]; y++)
+			for(long x=0; x<dims[0]; x++)
+			{
+				// the nodes below the band are on the source side
+				long altitude = zOffset==null ? 0 : zOffset[(int)(x + y*dims[0])];
+				for(long z=0; z<Depth; z++)
+					if( solver.isSourceSide( offset + x + y*dims[0] + z*Slice ) )
+						altitude++;
+				mapRA.setPosition( new long[] {x, y} );
+				assertEquals(message + ", column (" + x + ", " + y + ")", altitude, (long)mapRA.get().getRealDouble());
+			}
+	}
+
+
+
+	@Test
+	public void binarySearchEqualsCountedAltitude()
+	{
+		Random random = new Random(51);
+		for(int i=0; i<20; i++)
+		{
+			long[] dims = new long[] {1+random.nextInt(12), 1+random.nextInt(12), 2+random.nextInt(20)};
+			MinCostZSurface<FloatType> zSurf = new MinCostZSurface<FloatType>();
+			zSurf.Create_Surface_Graph( randomCost(random, dims), random.nextInt(3) );
+			MaxFlowSolver solver = new GraphCutSolver();
+			zSurf.Process( solver );
+			assertCountedAltitudes("volume " + i, zSurf, solver, dims, 1, null, dims[2]);
+		}
+	}
+
+
+
+	@Test
+	public void binarySearchEqualsCountedAltitudeForTwoSurfaces()
+	{
+		Random random = new Random(52);
+		for(int i=0; i<10; i++)
+		{
+			long[] dims = new long[] {2+random.nextInt(10), 2+random.nextInt(10), 6+random.nextInt(16)};
+			MinCostZSurface<FloatType> zSurf = new MinCostZSurface<FloatType>();
+			zSurf.setImplicitGraph( true );
+			zSurf.Create_Surface_Graph( randomCost(random, dims), 1 );
+			zSurf.Create_Surface_Graph( randomCost(random, dims), 1 );
+			zSurf.Add_NoCrossing_Constraint_Between_Surfaces(1, 2, 1, 4);
+			MaxFlowSolver solver = new ImplicitGridMaxFlow();
+			zSurf.Process( solver );
+			for(int s=1; s<=2; s++)
+				assertCountedAltitudes("volume " + i + ", surface " + s, zSurf, solver, dims, s, null, dims[2]);
+		}
+	}
+
+
+
+
+	@Test
+	public void binarySearchEqualsCountedAltitudeInABand()
+	{
+		Random random = new Random(53);
+		for(int i=0; i<20; i++)
+		{
+			long[] dims = new long[] {1+random.nextInt(10), 1+random.nextInt(10), 4+random.nextInt(20)};
+			int width = 1+random.nextInt(6);
+			Img<FloatType> zLow = ArrayImgs.floats(dims[0], dims[1]);
+			Img<FloatType> zHigh = ArrayImgs.floats(dims[0], dims[1]);
+			Cursor<FloatType> lowCursor = zLow.cursor(), highCursor = zHigh.cursor();
+			while( lowCursor.hasNext() )
+			{
+				float low = random.nextInt((int)dims[2]);
+				lowCursor.next().set( low );
+				highCursor.next().set( low + width );
+			}
+
+			MinCostZSurface<FloatType> zSurf = new MinCostZSurface<FloatType>();
+			zSurf.setBand(zLow, zHigh);
+			zSurf.Create_Surface_Graph( randomCost(random, dims), random.nextInt(3) );
+			MaxFlowSolver solver = new ImplicitGridMaxFlow();
+			zSurf.Process( solver );
+
+			// the band of every column has the widest depth, shifted inside the volume (see MinCostZSurface.setBand())
+			long Depth = Math.min(width, dims[2]);
+			int[] zOffset = new int[(int)(dims[0]*dims[1])];
+			lowCursor.reset();
+			for(int idx=0; idx<zOffset.length; idx++)
+				zOffset[idx] = (int)Math.max(0, Math.min(lowCursor.next().get(), dims[2]-Depth));
+			assertCountedAltitudes("volume " + i, zSurf, solver, dims, 1, zOffset, Depth);
+		}
+	}
+
+}
@@ -0,0 +1,57 @@
+package de.mpicbg.scf.mincostsurface;
+
+import static de.mpicbg.scf.mincostsurface.MaxFlowConformanceTest.assertSameCut;
+import static de.mpicbg.scf.mincostsurface.MaxFlowConformanceTest.randomProblem;
+import static de.mpicbg.scf.mincostsurface.MaxFlowConformanceTest.solve;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+
+public class BigArrayStorageTest {
+
+
+	@Test
+	public void sameCutWithAnOffHeapStorage()
+	{
+		Random random = new Random(61);
+		for(int i=0; i<20; i++)
+		{
+			ZSurfaceGraph graph = randomProblem(random);
+			for(MaxFlowSolver.Type type : MaxFlowSolver.Type.values())
+			{
+				if( !type.supportsOffHeapStorage() )
+					continue;
+				MaxFlowSolver solver = type.create();
+				solver.setStorage( BigArrayStorage.direct() );
+				assertSameCut("graph " + i + ", " + type, graph, solve(new GraphCutSolver(), graph), solve(solver, graph));
+			}
+		}
+	}
+
+
+
+	@Test
+	public void heapOnlySolversRejectAnOffHeapStorage()
+	{
+		for(MaxFlowSolver.Type type : MaxFlowSolver.Type.values())
+		{
+			MaxFlowSolver solver = type.create();
+			solver.setStorage( BigArrayStorage.HEAP );
+			if( type.supportsOffHeapStorage() )
+				continue;
+			try
+			{
+				solver.setStorage( BigArrayStorage.direct() );
+				fail(type + " accepted an off-heap storage");
+			}
+			catch( IllegalArgumentException e )
+			{
+				// expected, the solver keeps its buffers on the heap
+			}
+		}
+	}
+
+}
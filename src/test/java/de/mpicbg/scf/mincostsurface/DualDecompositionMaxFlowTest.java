@@ -0,0 +1,58 @@
+package de.mpicbg.scf.mincostsurface;
+
+import static de.mpicbg.scf.mincostsurface.MaxFlowConformanceTest.assertSameCut;
+import static de.mpicbg.scf.mincostsurface.MaxFlowConformanceTest.randomGraph;
+import static de.mpicbg.scf.mincostsurface.MaxFlowConformanceTest.solve;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+
+public class DualDecompositionMaxFlowTest {
+
+
+	/**
+	 * @return a random graph of 1 or 2 surfaces, tall enough to be split in several stripes
+	 */
+	private static ZSurfaceGraph randomStripedGraph(Random random)
+	{
+		long[] dims = new long[] {1+random.nextInt(8), 4+random.nextInt(12), 2+random.nextInt(8)};
+		int nSurfaces = 1+random.nextInt(2);
+		ZSurfaceGraph graph = randomGraph(random, dims, nSurfaces, random.nextInt(3));
+		if( nSurfaces==2 )
+			graph.addNoCrossingConstraint(1, 2, random.nextInt(2), 2+random.nextInt(3));
+		return graph;
+	}
+
+
+
+	@Test
+	public void sameCutAfterTheFallback()
+	{
+		Random random = new Random(22);
+		for(int i=0; i<20; i++)
+		{
+			ZSurfaceGraph graph = randomStripedGraph(random);
+			DualDecompositionMaxFlow solver = new DualDecompositionMaxFlow(3, 0);
+			assertSameCut("graph " + i, graph, solve(new GraphCutSolver(), graph), solve(solver, graph));
+			assertTrue(solver.isFallback());
+		}
+	}
+
+
+
+	@Test
+	public void wholeGraphSolvedWithTooFewRows()
+	{
+		// fewer than 2 rows per stripe, the graph is solved as a whole without price update
+		Random random = new Random(23);
+		ZSurfaceGraph graph = randomGraph(random, new long[] {6, 3, 5}, 1, 1);
+		DualDecompositionMaxFlow solver = new DualDecompositionMaxFlow(4, 100);
+		assertSameCut("graph", graph, solve(new GraphCutSolver(), graph), solve(solver, graph));
+		assertEquals(0, solver.getNIterations());
+	}
+
+}
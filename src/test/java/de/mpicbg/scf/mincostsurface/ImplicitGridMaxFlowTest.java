@@ -0,0 +1,30 @@
+package de.mpicbg.scf.mincostsurface;
+
+import static de.mpicbg.scf.mincostsurface.MaxFlowConformanceTest.assertSameCut;
+import static de.mpicbg.scf.mincostsurface.MaxFlowConformanceTest.randomGraph;
+import static de.mpicbg.scf.mincostsurface.MaxFlowConformanceTest.solve;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+
+public class ImplicitGridMaxFlowTest {
+
+
+	@Test
+	public void sameCutWhenTheBuffersAreReused()
+	{
+		// a solver shared by graphs of the same size reuses its buffers, e.g. the frames of a time-lapse
+		Random random = new Random(13);
+		long[] dims = new long[] {7, 5, 9};
+		ImplicitGridMaxFlow solver = new ImplicitGridMaxFlow();
+		for(int i=0; i<10; i++)
+		{
+			ZSurfaceGraph graph = randomGraph(random, dims, 2, 1);
+			graph.addNoCrossingConstraint(1, 2, 1, 3);
+			assertSameCut("graph " + i, graph, solve(new GraphCutSolver(), graph), solve(solver, graph));
+		}
+	}
+
+}
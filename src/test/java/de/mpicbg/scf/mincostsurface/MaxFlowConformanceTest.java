@@ -0,0 +1,159 @@
+package de.mpicbg.scf.mincostsurface;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+
+/**
+ *
+ * Conformance test shared by all the MaxFlowSolver implementations: on the same graph every solver type must return
+ * the same max-flow value as GRAPH_CUT, the energy of the cut it labels must be equal to that value and the labelling
+ * must be the same as the one of GRAPH_CUT. A new solver type is checked as soon as it is added to MaxFlowSolver.Type.
+ *
+ * The cost volumes are random floats, so that the minimum cut is unique and the labellings of exact solvers agree.
+ *
+ */
+public class MaxFlowConformanceTest {
+
+
+	static final double TOLERANCE = 1e-4; // relative tolerance on the max-flow and cut energy values
+	static final float INFINITE_WEIGHT = 1000000.0f;
+
+
+
+	@Test
+	public void everySolverMatchesGraphCutOnRandomGraphs()
+	{
+		Random random = new Random(1);
+		for(int i=0; i<100; i++)
+		{
+			ZSurfaceGraph graph = randomProblem(random);
+			MaxFlowSolver reference = solve(MaxFlowSolver.Type.GRAPH_CUT.create(), graph);
+			for(MaxFlowSolver.Type type : MaxFlowSolver.Type.values())
+				assertSameCut("graph " + i + ", " + type, graph, reference, solve(type.create(), graph));
+		}
+	}
+
+
+
+	@Test
+	public void everySolverMatchesGraphCutOnBandGraphs()
+	{
+		Random random = new Random(2);
+		for(int i=0; i<100; i++)
+		{
+			long volumeDepth = 4+random.nextInt(10);
+			long[] dims = new long[] {1+random.nextInt(8), 1+random.nextInt(8), 2+random.nextInt((int)volumeDepth-2)};
+			ZSurfaceGraph graph = randomBandGraph(random, dims, volumeDepth, random.nextInt(3));
+			MaxFlowSolver reference = solve(MaxFlowSolver.Type.GRAPH_CUT.create(), graph);
+			for(MaxFlowSolver.Type type : MaxFlowSolver.Type.values())
+				assertSameCut("band graph " + i + ", " + type, graph, reference, solve(type.create(), graph));
+		}
+	}
+
+
+
+	static MaxFlowSolver solve(MaxFlowSolver solver, ZSurfaceGraph graph)
+	{
+		solver.computeMaximumFlow(graph);
+		return solver;
+	}
+
+
+
+	/**
+	 * check that solver found the same maximum flow and minimum cut as reference on graph
+	 */
+	static void assertSameCut(String message, ZSurfaceGraph graph, MaxFlowSolver reference, MaxFlowSolver solver)
+	{
+		double scale = Math.max(1.0, Math.abs(reference.getMaxFlow()));
+		assertEquals(message + ", max flow", reference.getMaxFlow(), solver.getMaxFlow(), TOLERANCE*scale);
+		assertEquals(message + ", cut energy", solver.getMaxFlow(), graph.getCutEnergy( solver::isSourceSide ), TOLERANCE*scale);
+		for(long node=0; node<graph.getNNodes(); node++)
+			assertTrue(message + ", label of node " + node, reference.isSourceSide(node) == solver.isSourceSide(node));
+	}
+
+
+
+	/**
+	 * build a random graph of 1 surface, or 2 surfaces with a no-crossing or crossing constraint
+	 */
+	static ZSurfaceGraph randomProblem(Random random)
+	{
+		long[] dims = new long[] {1+random.nextInt(8), 1+random.nextInt(8), 2+random.nextInt(10)};
+		int nSurfaces = 1+random.nextInt(2);
+		ZSurfaceGraph graph = randomGraph(random, dims, nSurfaces, random.nextInt(3));
+		if( nSurfaces==2 )
+		{
+			int a = random.nextInt(3);
+			int b = a + random.nextInt(3);
+			if( random.nextBoolean() )
+				graph.addNoCrossingConstraint(1, 2, a, b);
+			else
+				graph.addCrossingConstraint(1, 2, a, b);
+		}
+		return graph;
+	}
+
+
+
+	/**
+	 * build a random surface graph with the same terminal weights as MinCostZSurface.Create_Surface_Graph
+	 */
+	static ZSurfaceGraph randomGraph(Random random, long[] dims, int nSurfaces, int max_dz)
+	{
+		ZSurfaceGraph graph = new ZSurfaceGraph(dims, INFINITE_WEIGHT, 0f);
+		for(int s=0; s<nSurfaces; s++)
+			graph.addSurface( randomTerminalWeights(random, dims, null, dims[2]), max_dz );
+		return graph;
+	}
+
+
+
+	/**
+	 * build the graph of a random surface in a band of dims[2] slices of a volume of volumeDepth slices, the band
+	 * of two neighbour columns are shifted by at most 1 slice so that the surface always fits in the band
+	 */
+	static ZSurfaceGraph randomBandGraph(Random random, long[] dims, long volumeDepth, int max_dz)
+	{
+		long Slice = dims[0]*dims[1];
+		int base = random.nextInt( (int)(volumeDepth-dims[2]) );
+		int[] zOffset = new int[(int)Slice];
+		for(int i=0; i<Slice; i++)
+			zOffset[i] = base + random.nextInt(2);
+
+		ZSurfaceGraph graph = new ZSurfaceGraph(dims, zOffset, volumeDepth, INFINITE_WEIGHT, 0f);
+		graph.addSurface( randomTerminalWeights(random, dims, zOffset, volumeDepth), max_dz );
+		return graph;
+	}
+
+
+
+	/**
+	 * @return the terminal weights of a random cost volume in a band of dims[2] slices (no band if zOffset is null)
+	 */
+	static BigFloatArray[] randomTerminalWeights(Random random, long[] dims, int[] zOffset, long volumeDepth)
+	{
+		long Slice = dims[0]*dims[1];
+		BigFloatArray cost = new ChunkedFloatArray(Slice*volumeDepth);
+		for(long i=0; i<Slice*volumeDepth; i++)
+			cost.set(i, 255*random.nextFloat());
+
+		long nNodes_perSurf = Slice*dims[2];
+		BigFloatArray[] tw = new BigFloatArray[] {new ChunkedFloatArray(nNodes_perSurf), new ChunkedFloatArray(nNodes_perSurf)};
+		for(long i=0; i<nNodes_perSurf; i++)
+		{
+			long c = i%Slice;
+			long z = i/Slice + (zOffset==null ? 0 : zOffset[(int)c]);
+			float w = z==0 ? -INFINITE_WEIGHT : cost.get(z*Slice+c) - cost.get((z-1)*Slice+c);
+			if( w<0 ) tw[0].set(i, -w);
+			else tw[1].set(i, w);
+		}
+		return tw;
+	}
+
+}
@@ -0,0 +1,28 @@
+package de.mpicbg.scf.mincostsurface;
+
+import static de.mpicbg.scf.mincostsurface.MaxFlowConformanceTest.assertSameCut;
+import static de.mpicbg.scf.mincostsurface.MaxFlowConformanceTest.randomGraph;
+import static de.mpicbg.scf.mincostsurface.MaxFlowConformanceTest.solve;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+
+public class ParallelPushRelabelMaxFlowTest {
+
+
+	@Test
+	public void sameCutWhateverTheThreadInterleaving()
+	{
+		// the order of the pushes depends on the threads, the cut must not
+		Random random = new Random(33);
+		ZSurfaceGraph graph = randomGraph(random, new long[] {16, 16, 12}, 2, 1);
+		graph.addCrossingConstraint(1, 2, 2, 2);
+		MaxFlowSolver reference = solve(new GraphCutSolver(), graph);
+		for(int nThreads : new int[] {1, 2, 3, 4, 8})
+			for(int i=0; i<5; i++)
+				assertSameCut(nThreads + " threads, run " + i, graph, reference, solve(new ParallelPushRelabelMaxFlow(nThreads), graph));
+	}
+
+}
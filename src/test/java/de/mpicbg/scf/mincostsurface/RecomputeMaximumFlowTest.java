@@ -0,0 +1,127 @@
+package de.mpicbg.scf.mincostsurface;
+
+import static de.mpicbg.scf.mincostsurface.MaxFlowConformanceTest.assertSameCut;
+import static de.mpicbg.scf.mincostsurface.MaxFlowConformanceTest.randomGraph;
+import static de.mpicbg.scf.mincostsurface.MaxFlowConformanceTest.randomTerminalWeights;
+import static de.mpicbg.scf.mincostsurface.MaxFlowConformanceTest.solve;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+
+/**
+ *
+ * A warm re-solve (MaxFlowSolver.recomputeMaximumFlow() after a change of the graph) must find the same cut as a
+ * cold solve of the modified graph.
+ *
+ */
+public class RecomputeMaximumFlowTest {
+
+
+	private static final long[] DIMS = new long[] {9, 7, 10};
+
+
+
+	private static ZSurfaceGraph twoSurfaces(Random random)
+	{
+		ZSurfaceGraph graph = randomGraph(random, DIMS, 2, 1);
+		graph.addNoCrossingConstraint(1, 2, 1, 4);
+		return graph;
+	}
+
+	private static void assertWarmEqualsCold(String message, ZSurfaceGraph graph, MaxFlowSolver warm)
+	{
+		warm.recomputeMaximumFlow(graph);
+		assertSameCut(message + ", cold implicit solve", graph, solve(new ImplicitGridMaxFlow(), graph), warm);
+		assertSameCut(message + ", cold GraphCut solve", graph, solve(new GraphCutSolver(), graph), warm);
+	}
+
+
+
+	@Test
+	public void changedTerminalWeights()
+	{
+		Random random = new Random(41);
+		for(int i=0; i<20; i++)
+		{
+			ZSurfaceGraph graph = twoSurfaces(random);
+			ImplicitGridMaxFlow solver = new ImplicitGridMaxFlow();
+			solver.computeMaximumFlow(graph);
+
+			// a few weights are modified in place, as Refill_Surface_Graph does
+			BigFloatArray[] tw = graph.getTerminalWeights( random.nextInt(2) );
+			for(int k=0; k<20; k++)
+			{
+				long node = random.nextInt( (int)graph.getNNodesPerSurface() );
+				if( node < DIMS[0]*DIMS[1] )
+					continue; // the first slice keeps its infinite source weight
+				float w = 255*random.nextFloat() - 127.5f;
+				tw[0].set(node, Math.max(0, -w));
+				tw[1].set(node, Math.max(0, w));
+			}
+			assertWarmEqualsCold("graph " + i, graph, solver);
+		}
+	}
+
+
+
+	@Test
+	public void replacedSurface()
+	{
+		Random random = new Random(42);
+		for(int i=0; i<20; i++)
+		{
+			ZSurfaceGraph graph = twoSurfaces(random);
+			ImplicitGridMaxFlow solver = new ImplicitGridMaxFlow();
+			solver.computeMaximumFlow(graph);
+
+			// new cost image and possibly a new max_dz, see Update_Surface_Graph
+			graph.setSurface( random.nextInt(2), randomTerminalWeights(random, DIMS, null, DIMS[2]), random.nextInt(3) );
+			assertWarmEqualsCold("graph " + i, graph, solver);
+		}
+	}
+
+
+
+	@Test
+	public void replacedConstraint()
+	{
+		Random random = new Random(43);
+		for(int i=0; i<20; i++)
+		{
+			ZSurfaceGraph graph = twoSurfaces(random);
+			ImplicitGridMaxFlow solver = new ImplicitGridMaxFlow();
+			solver.computeMaximumFlow(graph);
+
+			int a = random.nextInt(3);
+			int b = a + random.nextInt(4);
+			if( random.nextBoolean() )
+				graph.setNoCrossingConstraint(1, 2, a, b);
+			else
+				graph.setCrossingConstraint(1, 2, a, b);
+			assertWarmEqualsCold("graph " + i, graph, solver);
+		}
+	}
+
+
+
+	@Test
+	public void successiveUpdates()
+	{
+		// each re-solve starts from the flow of the previous one
+		Random random = new Random(44);
+		ZSurfaceGraph graph = twoSurfaces(random);
+		ImplicitGridMaxFlow solver = new ImplicitGridMaxFlow();
+		solver.computeMaximumFlow(graph);
+		for(int i=0; i<10; i++)
+		{
+			if( i%2==0 )
+				graph.setSurface( random.nextInt(2), randomTerminalWeights(random, DIMS, null, DIMS[2]), 1 );
+			else
+				graph.setNoCrossingConstraint(1, 2, random.nextInt(2), 2+random.nextInt(3));
+			assertWarmEqualsCold("update " + i, graph, solver);
+		}
+	}
+
+}
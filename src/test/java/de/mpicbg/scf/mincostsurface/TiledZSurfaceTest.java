@@ -0,0 +1,181 @@
+package de.mpicbg.scf.mincostsurface;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+
+/**
+ *
+ * The seam bands must restore the max_dz constraint across the seams between the tiles, on every row and column
+ * of the altitude map.
+ *
+ */
+public class TiledZSurfaceTest {
+
+
+	/**
+	 * @return a cost volume with a low cost along a smooth surface, plus noise
+	 */
+	private static Img<FloatType> smoothSurfaceCost(Random random, long[] dims)
+	{
+		Img<FloatType> cost = ArrayImgs.floats(dims);
+		double Width = dims[0], Height = dims[1], Depth = dims[2];
+		Cursor<FloatType> cursor = cost.localizingCursor();
+		while( cursor.hasNext() )
+		{
+			cursor.fwd();
+			double x = cursor.getDoublePosition(0), y = cursor.getDoublePosition(1), z = cursor.getDoublePosition(2);
+			double z0 = Depth/2 + Depth/4 * Math.sin(2*Math.PI*x/Width) * Math.cos(2*Math.PI*y/Height);
+			cursor.get().setReal( Math.min(255, 192*Math.abs(z-z0)/Depth*4 + 64*random.nextDouble()) );
+		}
+		return cost;
+	}
+
+
+
+	/**
+	 * @return a cost volume with a low cost at altitude 5 or 9, switching every period rows, plus noise. Tiles of period
+	 * rows solved independently then have a step of 4 slices at each seam.
+	 */
+	private static Img<FloatType> steppedCost(Random random, long[] dims, long period)
+	{
+		Img<FloatType> cost = ArrayImgs.floats(dims);
+		Cursor<FloatType> cursor = cost.localizingCursor();
+		while( cursor.hasNext() )
+		{
+			cursor.fwd();
+			long z0 = (cursor.getLongPosition(1)/period) % 2 == 0 ? 5 : 9;
+			cursor.get().setReal( 32*Math.abs(cursor.getLongPosition(2) - z0) + 8*random.nextDouble() );
+		}
+		return cost;
+	}
+
+
+
+	/**
+	 * @return true if neighbour columns differ by at most max_dz in x and y
+	 */
+	private static boolean respectsMaxDz(Img<FloatType> map, int max_dz)
+	{
+		try
+		{
+			assertMaxDz("", map, max_dz);
+			return true;
+		}
+		catch( AssertionError e )
+		{
+			return false;
+		}
+	}
+
+
+
+	/**
+	 * check that neighbour columns differ by at most max_dz in x and y
+	 */
+	private static void assertMaxDz(String message, Img<FloatType> map, int max_dz)
+	{
+		RandomAccess<FloatType> ra = map.randomAccess();
+		for(long y=0; y<map.dimension(1); y++)
+			for(long x=0; x<map.dimension(0); x++)
+			{
+				ra.setPosition( new long[] {x, y} );
+				float z = ra.get().get();
+				if( x>0 )
+				{
+					ra.bck(0);
+					assertTrue(message + ", x step at (" + x + ", " + y + ")", Math.abs(z - ra.get().get()) <= max_dz);
+					ra.fwd(0);
+				}
+				if( y>0 )
+				{
+					ra.bck(1);
+					assertTrue(message + ", y step at (" + x + ", " + y + ")", Math.abs(z - ra.get().get()) <= max_dz);
+				}
+			}
+	}
+
+
+
+	private static Img<FloatType> process(Img<FloatType> cost, int max_dz, int nTiles, int halo, int seamBand, String message)
+	{
+		TiledZSurface<FloatType> tiled = new TiledZSurface<FloatType>( (detector, part) -> detector.Create_Surface_Graph(part, max_dz), 1, max_dz );
+		if( halo>=0 )
+			tiled.setHalo( halo );
+		if( seamBand>=0 )
+			tiled.setSeamBand( seamBand );
+		Img<FloatType> map = ArrayImgs.floats( cost.dimension(0), cost.dimension(1) );
+		tiled.process( cost, nTiles, map );
+		assertEquals(message + ", rejected seams", 0, tiled.getNRejectedSeams());
+		return map;
+	}
+
+
+
+	@Test
+	public void maxDzHoldsAcrossTheSeams()
+	{
+		Random random = new Random(71);
+		long[] dims = new long[] {24, 40, 16};
+		Img<FloatType> cost = smoothSurfaceCost(random, dims);
+		for(int max_dz=1; max_dz<=2; max_dz++)
+			for(int nTiles=2; nTiles<=6; nTiles++)
+			{
+				String message = "max_dz " + max_dz + ", " + nTiles + " tiles";
+				assertMaxDz(message, process(cost, max_dz, nTiles, -1, -1, message), max_dz);
+			}
+	}
+
+
+
+	@Test
+	public void seamBandsRepairTheStepsBetweenTiles()
+	{
+		Random random = new Random(72);
+		long[] dims = new long[] {12, 36, 16};
+		for(int nTiles : new int[] {2, 3, 4, 6})
+		{
+			String message = nTiles + " tiles";
+			Img<FloatType> cost = steppedCost(random, dims, dims[1]/nTiles);
+			// without seam band the tiles solved without halo break max_dz, the cost is hard enough
+			assertTrue(message + ", no seam band", !respectsMaxDz(process(cost, 1, nTiles, 0, 0, message), 1));
+			assertMaxDz(message, process(cost, 1, nTiles, 0, -1, message), 1);
+		}
+	}
+
+
+
+	@Test
+	public void maxDzHoldsWithTheWidestSeamBands()
+	{
+		// 3 tiles of 4 rows, the outer ones strongly bound to altitudes 9 and 3, the middle one loosely to 6. Each seam
+		// band pulls the middle tile toward its outer tile as far as it reaches, a band of half the tile height would
+		// move the 2 middle rows in opposite directions. The band is capped so that an untouched row separates them.
+		Random random = new Random(73);
+		long[] dims = new long[] {6, 12, 14};
+		Img<FloatType> cost = ArrayImgs.floats(dims);
+		Cursor<FloatType> cursor = cost.localizingCursor();
+		while( cursor.hasNext() )
+		{
+			cursor.fwd();
+			long tile = cursor.getLongPosition(1)/4;
+			cursor.get().setReal( (tile==1 ? 8 : 32)*Math.abs(cursor.getLongPosition(2) - (9-3*tile)) + random.nextDouble() );
+		}
+		for(int seamBand : new int[] {2, 100})
+		{
+			String message = "seam band " + seamBand;
+			assertMaxDz(message, process(cost, 1, 3, 0, seamBand, message), 1);
+		}
+	}
+
+}